@@ -0,0 +1,34 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result
+ * comes with its allocation rate (gc.alloc.rate.norm is bytes per op;
+ * the hot paths are expected to report 0).
+ *
+ * usage: BenchmarkRunner result.json [benchmark regex ...]
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        String result = args.length > 0 ? args[0] : "jmh-result.json";
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(result);
+
+        if(args.length > 1){
+            for(int i = 1; i < args.length; i++) options.include(args[i]);
+        }
+        else{
+            options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,55 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.esu.spacesys.btrobotremote.DriveCommandMapper;
+
+/**
+ * Cost of turning a filtered tilt into move frames, the work
+ * updateOrientation does for every accelerometer sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandMapperBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private DriveCommandMapper mMapper;
+    private final float[] mX = new float[SAMPLES];
+    private final float[] mY = new float[SAMPLES];
+    private final byte[] mBuffer = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
+    private int mIndex;
+
+    @Setup
+    public void setup(){
+        //tilts spread around the threshold so every branch is taken
+        Random random = new Random(42);
+        for(int i = 0; i < SAMPLES; i++){
+            mX[i] = (float) random.nextGaussian() * 0.2f;
+            mY[i] = (float) random.nextGaussian() * 0.2f;
+        }
+        mMapper = new DriveCommandMapper();
+    }
+
+    @Benchmark
+    public int mapOrientation(){
+        int i = mIndex;
+        mIndex = (i + 1) & (SAMPLES - 1);
+        return mMapper.map(mX[i], mY[i], mBuffer, 0);
+    }
+}
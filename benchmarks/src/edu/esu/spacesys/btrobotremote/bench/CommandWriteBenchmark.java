@@ -0,0 +1,82 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.esu.spacesys.btrobotremote.CommandFrame;
+import edu.esu.spacesys.btrobotremote.FrameDecoder;
+import edu.esu.spacesys.btrobotremote.OutboundQueue;
+
+/**
+ * Cost of encoding command frames and moving them through the outbound
+ * queue into an in-memory stream, the path between write() and the
+ * socket. Decoding is measured too since the robot side runs it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandWriteBenchmark implements FrameDecoder.Listener {
+    private final byte[] mFrames = new byte[4 * CommandFrame.FRAME_SIZE];
+    private final byte[] mBatch = new byte[OutboundQueue.maxDrainSize()];
+    private OutboundQueue mQueue;
+    private ByteArrayOutputStream mStream;
+    private FrameDecoder mDecoder;
+    private int mSequence;
+    private int mLastSequence;
+
+    @Setup
+    public void setup(){
+        mQueue = new OutboundQueue();
+        mStream = new ByteArrayOutputStream(mBatch.length);
+        mDecoder = new FrameDecoder(this);
+        int len = 0;
+        len += CommandFrame.encode(mFrames, len, CommandFrame.OP_MOVE, CommandFrame.MOVE_FORWARD, 500, 1);
+        len += CommandFrame.encode(mFrames, len, CommandFrame.OP_MOVE, CommandFrame.MOVE_LEFT, 200, 2);
+        len += CommandFrame.encode(mFrames, len, CommandFrame.OP_IR, 0, 0, 3);
+        len += CommandFrame.encode(mFrames, len, CommandFrame.OP_SONAR, 0, 0, 4);
+    }
+
+    @Benchmark
+    public byte encodeFrame(){
+        mSequence = (mSequence + 1) & CommandFrame.SEQUENCE_MASK;
+        CommandFrame.encode(mFrames, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_FORWARD, mSequence, mSequence);
+        return mFrames[CommandFrame.OFFSET_CHECKSUM];
+    }
+
+    //one batch of frames from the producer to the stream, as the writer thread does it
+    @Benchmark
+    public int queueAndWrite(){
+        for(int i = 0; i < mFrames.length; i += CommandFrame.FRAME_SIZE){
+            mQueue.offer(mFrames, i);
+        }
+        int count = mQueue.drainTo(mBatch);
+        mStream.reset();
+        mStream.write(mBatch, 0, count);
+        return mStream.size();
+    }
+
+    @Benchmark
+    public int decodeFrames(){
+        mDecoder.feed(mFrames, 0, mFrames.length);
+        return mLastSequence;
+    }
+
+    @Override
+    public void onFrame(int opcode, int arg, int payload, int seq){
+        mLastSequence = seq;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.esu.spacesys.btrobotremote.MotionEventBus;
+
+/**
+ * Cost of handing one sensor sample to the motion pipeline and the
+ * trace recorder, through a SampleRing each as the app did before and
+ * through one MotionEventBus with two subscriptions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionEventBusBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private final float[] mValues = new float[SAMPLES * 3];
+    private final MotionEventBus.Sample mPipelineSample = new MotionEventBus.Sample();
+    private final MotionEventBus.Sample mRecorderSample = new MotionEventBus.Sample();
+    private SampleRing mPipelineRing;
+    private SampleRing mRecorderRing;
+    private MotionEventBus mBus;
+    private MotionEventBus.Subscription mPipeline;
+    private MotionEventBus.Subscription mRecorder;
+    private int mIndex;
+    private long mTimestamp;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        for(int i = 0; i < SAMPLES * 3; i++) mValues[i] = (float) random.nextGaussian();
+        mPipelineRing = new SampleRing(256);
+        mRecorderRing = new SampleRing(4096);
+        mBus = new MotionEventBus(1024);
+        mPipeline = mBus.subscribe();
+        mRecorder = mBus.subscribe();
+    }
+
+    @Benchmark
+    public long twoRings(){
+        int i = mIndex;
+        mIndex = (i + 1) & (SAMPLES - 1);
+        float x = mValues[i * 3], y = mValues[i * 3 + 1], z = mValues[i * 3 + 2];
+        mPipelineRing.offer(MotionEventBus.TYPE_ACCEL, ++mTimestamp, x, y, z);
+        mRecorderRing.offer(MotionEventBus.TYPE_ACCEL, mTimestamp, x, y, z);
+        mPipelineRing.poll(mPipelineSample);
+        mRecorderRing.poll(mRecorderSample);
+        return mPipelineSample.sequence + mRecorderSample.sequence;
+    }
+
+    @Benchmark
+    public long bus(){
+        int i = mIndex;
+        mIndex = (i + 1) & (SAMPLES - 1);
+        mBus.publish(MotionEventBus.TYPE_ACCEL, ++mTimestamp, mValues[i * 3], mValues[i * 3 + 1], mValues[i * 3 + 2]);
+        mPipeline.poll(mPipelineSample);
+        mRecorder.poll(mRecorderSample);
+        return mPipelineSample.sequence + mRecorderSample.sequence;
+    }
+}
@@ -0,0 +1,105 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.esu.spacesys.btrobotremote.MotionEventBus;
+import edu.esu.spacesys.btrobotremote.MotionPipeline;
+
+/**
+ * Cost of processing one sensor sample: the accelerometer high pass
+ * filter and the gyroscope rotation integration in MotionPipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionPipelineBenchmark implements MotionPipeline.Listener {
+    //samples cycled through so the filters do not settle on a constant
+    private static final int SAMPLES = 1024;
+
+    //sensor period at SENSOR_DELAY_FASTEST on a typical phone
+    private static final long PERIOD_NANOS = 5000000L;
+
+    private MotionPipeline mPipeline;
+    private final float[] mAccel = new float[SAMPLES * 3];
+    private final float[] mGyro = new float[SAMPLES * 3];
+    private final float[] mValues = new float[3];
+    private int mIndex;
+    private long mTimestamp;
+    private Blackhole mHole;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        for(int i = 0; i < SAMPLES * 3; i++){
+            mAccel[i] = (float) random.nextGaussian();
+            mGyro[i] = (float) random.nextGaussian() * 0.5f;
+        }
+        //gravity on the z axis
+        for(int i = 2; i < SAMPLES * 3; i += 3) mAccel[i] += 9.8f;
+
+        mPipeline = new MotionPipeline();
+        mTimestamp = 1;
+
+        //the fusion only corrects the gyro with the gradient step once it has
+        //an accelerometer reading, without one rotationIntegration skips it
+        mPipeline.process(MotionEventBus.TYPE_ACCEL, nextSample(mAccel), mValues, new MotionPipeline.Listener(){
+            @Override
+            public void onAcceleration(float[] accel, long timestamp){}
+            @Override
+            public void onRotation(float[] rotation, long timestamp){}
+        });
+    }
+
+    @Benchmark
+    public void highPassFilter(Blackhole hole){
+        mHole = hole;
+        mPipeline.process(MotionEventBus.TYPE_ACCEL, nextSample(mAccel), mValues, this);
+    }
+
+    @Benchmark
+    public void rotationIntegration(Blackhole hole){
+        mHole = hole;
+        mPipeline.process(MotionEventBus.TYPE_GYRO, nextSample(mGyro), mValues, this);
+    }
+
+    //copies the next sample into mValues and returns its timestamp
+    private long nextSample(float[] source){
+        int i = mIndex * 3;
+        mValues[0] = source[i];
+        mValues[1] = source[i + 1];
+        mValues[2] = source[i + 2];
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        mTimestamp += PERIOD_NANOS;
+        return mTimestamp;
+    }
+
+    @Override
+    public void onAcceleration(float[] accel, long timestamp){
+        mHole.consume(accel[0]);
+        mHole.consume(accel[1]);
+        mHole.consume(accel[2]);
+    }
+
+    @Override
+    public void onRotation(float[] rotation, long timestamp){
+        mHole.consume(rotation[0]);
+        mHole.consume(rotation[1]);
+        mHole.consume(rotation[2]);
+    }
+}
@@ -0,0 +1,100 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.esu.spacesys.btrobotremote.MotionEventBus;
+
+/**
+ * Lock-free single producer / single consumer ring of sensor samples,
+ * one per consumer as the app had before MotionEventBus. Kept as the
+ * baseline of MotionEventBusBenchmark only.
+ *
+ * Slots are preallocated as parallel primitive arrays, so neither side
+ * allocates. When the consumer falls behind the producer overwrites the
+ * oldest unread sample and counts it as dropped; it never waits.
+ *
+ * Every sample gets a sequence number (its position in the stream), so a
+ * consumer can also see gaps directly.
+ *
+ * Both ends advance the tail with compareAndSet: the producer to drop the
+ * oldest sample, the consumer to commit a read. A consumer that loses the
+ * race was reading a slot that is being overwritten and simply retries.
+ */
+public class SampleRing {
+    private final int mMask;
+    private final int[] mType;
+    private final long[] mTimestamp;
+    private final float[] mValues;
+
+    //next position to write, only advanced by the producer
+    private final AtomicLong mHead = new AtomicLong();
+    //next position to read, advanced by the consumer and by the producer when full
+    private final AtomicLong mTail = new AtomicLong();
+
+    //written by the producer only
+    private volatile long mDropped;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public SampleRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mType = new int[size];
+        mTimestamp = new long[size];
+        mValues = new float[size * 3];
+    }
+
+    public int getCapacity(){return mMask + 1;}
+
+    /**
+     * Publish a sample. Producer thread only, never blocks.
+     */
+    public void offer(int type, long timestamp, float x, float y, float z){
+        final long head = mHead.get();
+        final long tail = mTail.get();
+        if(head - tail > mMask){
+            //full, drop the oldest sample. If the consumer got there first
+            //the slot is free anyway
+            if(mTail.compareAndSet(tail, tail + 1)) mDropped++;
+        }
+        final int i = (int) head & mMask;
+        mType[i] = type;
+        mTimestamp[i] = timestamp;
+        mValues[i * 3] = x;
+        mValues[i * 3 + 1] = y;
+        mValues[i * 3 + 2] = z;
+        mHead.lazySet(head + 1);
+    }
+
+    /**
+     * Copy the oldest unread sample into out. Consumer thread only.
+     * @return false if the ring is empty
+     */
+    public boolean poll(MotionEventBus.Sample out){
+        while(true){
+            final long tail = mTail.get();
+            if(tail >= mHead.get()) return false;
+
+            final int i = (int) tail & mMask;
+            out.type = mType[i];
+            out.timestamp = mTimestamp[i];
+            out.values[0] = mValues[i * 3];
+            out.values[1] = mValues[i * 3 + 1];
+            out.values[2] = mValues[i * 3 + 2];
+            out.sequence = tail;
+
+            //the copy is only valid if the producer did not take the slot meanwhile
+            if(mTail.compareAndSet(tail, tail + 1)) return true;
+        }
+    }
+
+    //number of samples waiting to be read
+    public int size(){
+        long n = mHead.get() - mTail.get();
+        return n < 0 ? 0 : (int) n;
+    }
+
+    //number of samples overwritten before the consumer read them
+    public long getDroppedCount(){return mDropped;}
+}
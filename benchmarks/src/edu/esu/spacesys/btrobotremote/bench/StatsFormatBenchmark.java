@@ -0,0 +1,64 @@
+package edu.esu.spacesys.btrobotremote.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.esu.spacesys.btrobotremote.FloatFormatter;
+
+/**
+ * Cost of the accelerometer stats text, with String.format as it used
+ * to be built and with the FloatFormatter the UI uses now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsFormatBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private final float[] mX = new float[SAMPLES];
+    private final float[] mY = new float[SAMPLES];
+    private final float[] mZ = new float[SAMPLES];
+    private final FloatFormatter mText = new FloatFormatter(64);
+    private int mIndex;
+
+    @Setup
+    public void setup(){
+        //accelerometer readings around gravity
+        Random random = new Random(42);
+        for(int i = 0; i < SAMPLES; i++){
+            mX[i] = (float) random.nextGaussian() * 2f;
+            mY[i] = (float) random.nextGaussian() * 2f;
+            mZ[i] = 9.81f + (float) random.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    public String stringFormat(){
+        int i = mIndex;
+        mIndex = (i + 1) & (SAMPLES - 1);
+        return "Accelerometer[x, y, z]: " + String.format("%.4f, %.4f, %.4f\n", mX[i], mY[i], mZ[i]);
+    }
+
+    @Benchmark
+    public int floatFormatter(){
+        int i = mIndex;
+        mIndex = (i + 1) & (SAMPLES - 1);
+        mText.clear().append("Accelerometer[x, y, z]: ").append(mX[i], 4).append(", ")
+             .append(mY[i], 4).append(", ").append(mZ[i], 4).append('\n');
+        return mText.length();
+    }
+}
@@ -0,0 +1,102 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of what CommandEmitter lets through in MODE_DIRECTIONAL, in
+ * particular that levelling the device sends a stop, and of how
+ * OutboundQueue orders a stop against pending moves.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class CommandEmitterTest {
+    private static final long MILLI = 1000000L;
+    private static final float TILT = 0.5f;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        stopOnLevel();
+        magnitudeIsNotState();
+        stopRefresh();
+        queueStop();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //tilted forward and left, then level
+    private static void stopOnLevel(){
+        CommandEmitter emitter = new CommandEmitter(new DriveCommandMapper());
+        byte[] buf = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
+
+        int len = emitter.emit(TILT, -TILT, 10 * MILLI, buf, 0);
+        check("tilted frames", 2 * CommandFrame.FRAME_SIZE, len);
+        check("forward", CommandFrame.MOVE_FORWARD, CommandFrame.arg(buf, 0));
+        check("left", CommandFrame.MOVE_LEFT, CommandFrame.arg(buf, CommandFrame.FRAME_SIZE));
+
+        len = emitter.emit(0f, 0f, 20 * MILLI, buf, 0);
+        check("level sends one frame", CommandFrame.FRAME_SIZE, len);
+        check("level opcode", CommandFrame.OP_MOVE, CommandFrame.opcode(buf, 0));
+        check("level arg", CommandFrame.MOVE_STOP, CommandFrame.arg(buf, 0));
+
+        len = emitter.emit(0.01f, 0f, 30 * MILLI, buf, 0);
+        check("still level", 0, len);
+        check("sent", 2, emitter.getSentCount());
+        check("suppressed", 1, emitter.getSuppressedCount());
+    }
+
+    //more tilt in the same direction is the same command
+    private static void magnitudeIsNotState(){
+        CommandEmitter emitter = new CommandEmitter(new DriveCommandMapper());
+        byte[] buf = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
+
+        emitter.emit(0f, -TILT, 10 * MILLI, buf, 0);
+        check("no magnitude", 0, CommandFrame.payload(buf, 0));
+        check("steeper tilt", 0, emitter.emit(0f, -4 * TILT, 20 * MILLI, buf, 0));
+        check("new direction", CommandFrame.FRAME_SIZE, emitter.emit(0f, TILT, 30 * MILLI, buf, 0));
+        check("backward", CommandFrame.MOVE_BACKWARD, CommandFrame.arg(buf, 0));
+    }
+
+    //a level device keeps telling the robot to stop at the refresh interval
+    private static void stopRefresh(){
+        CommandEmitter emitter = new CommandEmitter(new DriveCommandMapper());
+        byte[] buf = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
+        long refresh = emitter.getRefreshInterval();
+
+        check("first level", CommandFrame.FRAME_SIZE, emitter.emit(0f, 0f, 0, buf, 0));
+        check("level before refresh", 0, emitter.emit(0f, 0f, refresh - 1, buf, 0));
+        check("level refresh", CommandFrame.FRAME_SIZE, emitter.emit(0f, 0f, refresh, buf, 0));
+        check("refresh arg", CommandFrame.MOVE_STOP, CommandFrame.arg(buf, 0));
+    }
+
+    //a stop replaces unsent moves on both axes, a later turn goes after it
+    private static void queueStop(){
+        OutboundQueue queue = new OutboundQueue();
+        byte[] frame = new byte[CommandFrame.FRAME_SIZE];
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+
+        CommandFrame.encode(frame, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_FORWARD, 0, 1);
+        queue.offer(frame, 0);
+        CommandFrame.encode(frame, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_RIGHT, 0, 2);
+        queue.offer(frame, 0);
+        CommandFrame.encode(frame, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_STOP, 0, 3);
+        queue.offer(frame, 0);
+        check("stop replaces both", 1, queue.size());
+        check("stop coalesced", 2, queue.getCoalescedCount());
+
+        CommandFrame.encode(frame, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_LEFT, 0, 4);
+        queue.offer(frame, 0);
+        int len = queue.drainTo(out);
+        check("drained", 2 * CommandFrame.FRAME_SIZE, len);
+        check("stop first", CommandFrame.MOVE_STOP, CommandFrame.arg(out, 0));
+        check("turn after stop", CommandFrame.MOVE_LEFT, CommandFrame.arg(out, CommandFrame.FRAME_SIZE));
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
@@ -0,0 +1,179 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.Random;
+
+/**
+ * Checks of DriveDeltaEncoder: which changes become short deltas, long
+ * deltas or keyframes, when keyframes are forced, and that FrameDecoder
+ * turns the encoded stream back into the drive commands that went in.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class DriveDeltaEncoderTest {
+    private static final int FRAME = CommandFrame.FRAME_SIZE;
+    private static final long MILLI = 1000000L;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        deltaKinds();
+        keyframeInterval();
+        keyframeTime();
+        otherFramesPass();
+        roundTrip();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static void deltaKinds(){
+        DriveDeltaEncoder encoder = new DriveDeltaEncoder();
+        byte[] buf = new byte[FRAME];
+        check("first is keyframe", FRAME, drive(encoder, buf, 10, 10, 0));
+        check("small change", 1, drive(encoder, buf, 13, 6, 0));
+        check("short delta", true, (buf[0] & CommandFrame.DELTA_MASK) == CommandFrame.DELTA_SHORT);
+        check("no change", 1, drive(encoder, buf, 13, 6, 0));
+        check("medium change", 2, drive(encoder, buf, 40, -100, 0));
+        check("long delta", true, (buf[0] & CommandFrame.DELTA_MASK) == CommandFrame.DELTA_LONG);
+        check("large change", FRAME, drive(encoder, buf, -60, 100, 0));
+        check("keyframes", 2, encoder.getKeyframeCount());
+        check("short deltas", 2, encoder.getShortDeltaCount());
+        check("long deltas", 1, encoder.getLongDeltaCount());
+
+        encoder.reset();
+        check("keyframe after reset", FRAME, drive(encoder, buf, -60, 100, 0));
+    }
+
+    //a keyframe after KEYFRAME_INTERVAL deltas even if nothing changes
+    private static void keyframeInterval(){
+        DriveDeltaEncoder encoder = new DriveDeltaEncoder();
+        byte[] buf = new byte[FRAME];
+        drive(encoder, buf, 0, 0, 0);
+        for(int i = 0; i < DriveDeltaEncoder.KEYFRAME_INTERVAL; i++){
+            check("delta " + i, 1, drive(encoder, buf, 0, 0, i));
+        }
+        check("interval keyframe", FRAME, drive(encoder, buf, 0, 0, 100));
+    }
+
+    //a keyframe after KEYFRAME_NANOS even if few deltas were sent
+    private static void keyframeTime(){
+        DriveDeltaEncoder encoder = new DriveDeltaEncoder();
+        byte[] buf = new byte[FRAME];
+        long t = 1000 * MILLI;
+        drive(encoder, buf, 0, 0, t);
+        check("before timeout", 1, drive(encoder, buf, 1, 1, t + DriveDeltaEncoder.KEYFRAME_NANOS - 1));
+        check("timeout keyframe", FRAME, drive(encoder, buf, 2, 2, t + DriveDeltaEncoder.KEYFRAME_NANOS));
+    }
+
+    //frames other than OP_DRIVE keep their place and bytes
+    private static void otherFramesPass(){
+        DriveDeltaEncoder encoder = new DriveDeltaEncoder();
+        byte[] buf = new byte[4 * FRAME];
+        CommandFrame.encodeDrive(buf, 0, 5, 5, 1);
+        CommandFrame.encodeDrive(buf, FRAME, 6, 5, 2);
+        CommandFrame.encode(buf, 2 * FRAME, CommandFrame.OP_IR, 2, 0, 3);
+        CommandFrame.encodeDrive(buf, 3 * FRAME, 6, 6, 4);
+        int len = encoder.encode(buf, buf.length, 0);
+        check("mixed size", FRAME + 1 + FRAME + 1, len);
+        check("ir moved", true, CommandFrame.isValid(buf, FRAME + 1));
+        check("ir opcode", CommandFrame.OP_IR, CommandFrame.opcode(buf, FRAME + 1));
+        check("ir seq", 3, CommandFrame.sequence(buf, FRAME + 1));
+    }
+
+    //random drive commands in batches, decoded in random sized reads
+    private static void roundTrip(){
+        Random random = new Random(42);
+        DriveDeltaEncoder encoder = new DriveDeltaEncoder();
+        Recorder recorder = new Recorder(2000);
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        int[] sentThrottle = new int[2000];
+        int[] sentSteer = new int[2000];
+        int sent = 0;
+
+        byte[] buf = new byte[4 * FRAME];
+        int throttle = 0, steer = 0, seq = 0;
+        long now = 0;
+        while(sent < sentThrottle.length - 4){
+            int frames = 1 + random.nextInt(4);
+            for(int f = 0; f < frames; f++){
+                int step = random.nextInt(10);
+                if(step < 6){
+                    throttle += random.nextInt(7) - 3;
+                    steer += random.nextInt(7) - 3;
+                }
+                else if(step < 9){
+                    throttle += random.nextInt(41) - 20;
+                    steer += random.nextInt(201) - 100;
+                }
+                else{
+                    throttle = random.nextInt(201) - 100;
+                    steer = random.nextInt(201) - 100;
+                }
+                throttle = clamp(throttle);
+                steer = clamp(steer);
+                CommandFrame.encodeDrive(buf, f * FRAME, throttle, steer, ++seq);
+                sentThrottle[sent] = throttle;
+                sentSteer[sent] = steer;
+                sent++;
+            }
+            now += (1 + random.nextInt(60)) * MILLI;
+            int len = encoder.encode(buf, frames * FRAME, now);
+            for(int i = 0; i < len; ){
+                int n = Math.min(len - i, 1 + random.nextInt(5));
+                decoder.feed(buf, i, n);
+                i += n;
+            }
+        }
+        check("round trip count", sent, recorder.count);
+        int mismatches = 0;
+        for(int i = 0; i < sent && i < recorder.count; i++){
+            if(recorder.throttle[i] != sentThrottle[i] || recorder.steer[i] != sentSteer[i]) mismatches++;
+        }
+        check("round trip values", 0, mismatches);
+        check("round trip used deltas", true,
+              encoder.getShortDeltaCount() > 0 && encoder.getLongDeltaCount() > 0);
+        check("round trip bad checksums", 0, decoder.getBadChecksumCount());
+    }
+
+    private static int clamp(int value){
+        return Math.max(-CommandFrame.DRIVE_MAX, Math.min(CommandFrame.DRIVE_MAX, value));
+    }
+
+    //encode one drive command and return the bytes it became
+    private static int drive(DriveDeltaEncoder encoder, byte[] buf, int throttle, int steer, long now){
+        CommandFrame.encodeDrive(buf, 0, throttle, steer, 1);
+        return encoder.encode(buf, FRAME, now);
+    }
+
+    private static class Recorder implements FrameDecoder.Listener {
+        final int[] throttle, steer;
+        int count;
+
+        Recorder(int capacity){
+            throttle = new int[capacity];
+            steer = new int[capacity];
+        }
+
+        public void onFrame(int opcode, int arg, int payload, int seq){
+            if(opcode != CommandFrame.OP_DRIVE || count == throttle.length) return;
+            throttle[count] = (byte) arg;
+            steer[count] = payload;
+            count++;
+        }
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
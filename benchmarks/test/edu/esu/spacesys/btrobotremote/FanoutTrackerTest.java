@@ -0,0 +1,92 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of FanoutTracker: a fan-out completes when the last link of
+ * its set writes, newer frames complete older fan-outs, forgotten links
+ * are not waited for, and fan-outs overwritten while in flight are
+ * counted as incomplete.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class FanoutTrackerTest {
+    private static final long MICRO = 1000L;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        lastLinkCompletes();
+        newerFrameCompletes();
+        forgottenLink();
+        overwritten();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //fan-out is queue to last write, spread is first write to last write
+    private static void lastLinkCompletes(){
+        FanoutTracker tracker = new FanoutTracker();
+        long t = 1000000 * MICRO;
+        tracker.begin(t, 1 << 0 | 1 << 2);
+        tracker.written(0, t, t + 100 * MICRO);
+        check("waiting for link 2", 0, tracker.getFanout().getCount());
+        //a link outside the set changes nothing
+        tracker.written(1, t, t + 150 * MICRO);
+        check("other link ignored", 0, tracker.getFanout().getCount());
+        tracker.written(2, t, t + 300 * MICRO);
+        check("complete", 1, tracker.getFanout().getCount());
+        check("fan-out", 300, tracker.getFanout().getMax());
+        check("spread", 200, tracker.getSpread().getMax());
+        //writing it again records nothing more
+        tracker.written(2, t, t + 400 * MICRO);
+        check("recorded once", 1, tracker.getFanout().getCount());
+
+        tracker.begin(t, 0);
+        check("empty set ignored", 0, tracker.getIncompleteCount());
+    }
+
+    //movement frames replace each other, writing a newer one completes the older fan-out
+    private static void newerFrameCompletes(){
+        FanoutTracker tracker = new FanoutTracker();
+        long t = 1000000 * MICRO;
+        tracker.begin(t, 1 << 0);
+        tracker.begin(t + 50 * MICRO, 1 << 0);
+        tracker.written(0, t + 50 * MICRO, t + 80 * MICRO);
+        check("both complete", 2, tracker.getFanout().getCount());
+        check("older fan-out", 80, tracker.getFanout().getMax());
+
+        //an older frame does not complete a newer fan-out
+        tracker.begin(t + 200 * MICRO, 1 << 1);
+        tracker.written(1, t + 100 * MICRO, t + 250 * MICRO);
+        check("older write ignored", 2, tracker.getFanout().getCount());
+    }
+
+    //a link that went away is no longer waited for
+    private static void forgottenLink(){
+        FanoutTracker tracker = new FanoutTracker();
+        long t = 1000000 * MICRO;
+        tracker.begin(t, 1 << 0 | 1 << 3);
+        tracker.forget(3);
+        tracker.written(0, t, t + 20 * MICRO);
+        check("complete without link 3", 1, tracker.getFanout().getCount());
+    }
+
+    //more fan-outs in flight than slots, the oldest are given up
+    private static void overwritten(){
+        FanoutTracker tracker = new FanoutTracker();
+        long t = 1000000 * MICRO;
+        for(int i = 0; i < 40; i++) tracker.begin(t + i * MICRO, 1 << 1);
+        check("incomplete", 8, tracker.getIncompleteCount());
+        tracker.written(1, t + 39 * MICRO, t + 100 * MICRO);
+        check("the rest complete", 32, tracker.getFanout().getCount());
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
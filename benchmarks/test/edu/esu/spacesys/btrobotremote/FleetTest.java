@@ -0,0 +1,196 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of BluetoothClientService.addRobot() and removeRobot(), in
+ * particular that a robot removed while its link is still connecting
+ * does not get attached afterwards.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class FleetTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        //the service logs every connect and disconnect
+        AppLog.setSink(new AppLog.Sink(){
+            public void log(int level, String tag, String msg, Throwable tr){}
+        });
+        addAndRemove();
+        idsOutOfRange();
+        removeWhileConnecting();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static void addAndRemove() throws Exception {
+        GateTransport transport = new GateTransport();
+        transport.open.countDown();
+        BluetoothClientService service = newService(transport);
+        try{
+            int id = service.addRobot("robot");
+            check("added", true, id >= 0);
+            check("added twice", id, service.addRobot("robot"));
+            RobotLink link = service.getRobot(id);
+            check("connected", true, awaitState(link, RobotLink.STATE_CONNECTED));
+            check("in mask", 1 << id, service.getFleetMask());
+
+            service.removeRobot(id);
+            check("removed", true, service.getRobot(id) == null);
+            check("removed state", RobotLink.STATE_NONE, link.getState());
+            check("removed offers nothing", false, offerMove(link));
+        }
+        finally{
+            service.stop();
+            transport.close();
+        }
+    }
+
+    //like addRobot, ids outside the fleet are ignored
+    private static void idsOutOfRange() throws Exception {
+        GateTransport transport = new GateTransport();
+        BluetoothClientService service = newService(transport);
+        try{
+            service.removeRobot(-1);
+            service.removeRobot(FleetScheduler.MAX_LINKS);
+            check("out of range ignored", true, true);
+        }
+        catch(ArrayIndexOutOfBoundsException e){
+            check("out of range ignored", true, false);
+        }
+        finally{
+            service.stop();
+            transport.close();
+        }
+    }
+
+    //the link thread is held after connect(), the robot is removed meanwhile
+    private static void removeWhileConnecting() throws Exception {
+        GateTransport transport = new GateTransport();
+        BluetoothClientService service = newService(transport);
+        try{
+            int id = service.addRobot("robot");
+            RobotLink link = service.getRobot(id);
+            check("reached gate", true, transport.reached.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            service.removeRobot(id);
+            transport.open.countDown();
+            check("thread finished", true, transport.awaitClosed());
+
+            check("late removal state", RobotLink.STATE_NONE, link.getState());
+            check("late removal offers nothing", false, offerMove(link));
+            check("late removal mask", 0, service.getFleetMask());
+        }
+        finally{
+            service.stop();
+            transport.close();
+        }
+    }
+
+    private static BluetoothClientService newService(Transport transport){
+        return new BluetoothClientService(new QuietHost(), new LatencyTracker(), transport,
+                                          new NoHistory());
+    }
+
+    private static boolean offerMove(RobotLink link){
+        byte[] frame = new byte[CommandFrame.FRAME_SIZE];
+        CommandFrame.encode(frame, 0, CommandFrame.OP_MOVE, CommandFrame.MOVE_STOP, 0, 1);
+        return link.offer(frame, 0, frame.length, System.nanoTime());
+    }
+
+    private static boolean awaitState(RobotLink link, int state) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(link.getState() != state){
+            if(System.currentTimeMillis() > end) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * LoopbackTransport to a SimulatedRobot whose connections hand out
+     * their output stream only once the gate is open.
+     */
+    private static class GateTransport implements Transport {
+        final CountDownLatch reached = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+        //closed by removeRobot(), then by the link thread once it gave up
+        private final CountDownLatch mClosed = new CountDownLatch(2);
+        private final SimulatedRobot mRobot = new SimulatedRobot(200);
+        private final LoopbackTransport mLoopback = new LoopbackTransport();
+
+        GateTransport(){
+            mLoopback.bind("robot", mRobot);
+        }
+
+        public Connection open(String address, boolean secure) throws IOException {
+            final Connection connection = mLoopback.open(address, secure);
+            return new Connection(){
+                public void connect() throws IOException {connection.connect();}
+                public InputStream getInputStream() throws IOException {
+                    return connection.getInputStream();
+                }
+                public OutputStream getOutputStream() throws IOException {
+                    reached.countDown();
+                    try{
+                        open.await();
+                    }
+                    catch(InterruptedException e){
+                        throw new IOException("interrupted");
+                    }
+                    return connection.getOutputStream();
+                }
+                public void close() throws IOException {
+                    connection.close();
+                    mClosed.countDown();
+                }
+            };
+        }
+
+        boolean awaitClosed() throws InterruptedException {
+            return mClosed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        void close(){
+            open.countDown();
+            mRobot.close();
+        }
+    }
+
+    private static class QuietHost implements BluetoothClientService.Host {
+        public void sendMessage(int what, int arg1, int arg2, Object obj){}
+        public void postDelayed(Runnable task, long delayMillis){}
+        public void removeCallbacks(Runnable task){}
+        public long threadCpuTimeNanos(){return 0;}
+    }
+
+    private static class NoHistory implements ConnectHistory {
+        public int getSocketType(String address){return SOCKET_INSECURE;}
+        public void putSocketType(String address, int type){}
+        public void forgetSocketType(String address){}
+        public void recordAttempt(String address, boolean success){}
+        public void setLastAddress(String address){}
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
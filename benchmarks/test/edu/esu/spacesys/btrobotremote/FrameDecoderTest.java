@@ -0,0 +1,153 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of CommandFrame encoding and of FrameDecoder: round trips,
+ * frames split across reads, and resynchronisation after garbage,
+ * truncated frames and bad checksums.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class FrameDecoderTest {
+    private static final int FRAME = CommandFrame.FRAME_SIZE;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        roundTrip();
+        payloadClamped();
+        splitReads();
+        leadingGarbage();
+        truncatedFrame();
+        badChecksum();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static void roundTrip(){
+        byte[] buf = new byte[FRAME];
+        check("encoded size", FRAME, CommandFrame.encode(buf, 0, CommandFrame.OP_SONAR, 3, -1234, 0x1FFFF));
+        check("valid", true, CommandFrame.isValid(buf, 0));
+        check("opcode", CommandFrame.OP_SONAR, CommandFrame.opcode(buf, 0));
+        check("arg", 3, CommandFrame.arg(buf, 0));
+        check("payload", -1234, CommandFrame.payload(buf, 0));
+        check("sequence wraps", 0xFFFF, CommandFrame.sequence(buf, 0));
+
+        Recorder r = new Recorder();
+        new FrameDecoder(r).feed(buf, 0, FRAME);
+        check("decoded", 1, r.count);
+        check("decoded payload", -1234, r.payload);
+        check("decoded seq", 0xFFFF, r.seq);
+
+        CommandFrame.encodeDrive(buf, 0, -60, 250, 7);
+        check("drive throttle", -60, CommandFrame.driveThrottle(buf, 0));
+        check("drive steer clamped", CommandFrame.DRIVE_MAX, CommandFrame.payload(buf, 0));
+    }
+
+    private static void payloadClamped(){
+        byte[] buf = new byte[FRAME];
+        CommandFrame.encode(buf, 0, CommandFrame.OP_IR, 0, 100000, 1);
+        check("payload max", CommandFrame.PAYLOAD_MAX, CommandFrame.payload(buf, 0));
+        CommandFrame.encode(buf, 0, CommandFrame.OP_IR, 0, -100000, 1);
+        check("payload min", CommandFrame.PAYLOAD_MIN, CommandFrame.payload(buf, 0));
+    }
+
+    //three frames fed one byte at a time, then in uneven chunks
+    private static void splitReads(){
+        byte[] buf = frames(3);
+        Recorder r = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(r);
+        for(int i = 0; i < buf.length; i++) decoder.feed(buf, i, 1);
+        check("byte by byte", 3, r.count);
+        check("byte by byte last seq", 3, r.seq);
+
+        decoder.feed(buf, 0, 5);
+        decoder.feed(buf, 5, 13);
+        decoder.feed(buf, 18, buf.length - 18);
+        check("chunks", 6, r.count);
+        check("chunks skipped nothing", 0, decoder.getSkippedByteCount());
+    }
+
+    //bytes before the first header are skipped
+    private static void leadingGarbage(){
+        byte[] frames = frames(2);
+        byte[] buf = new byte[5 + frames.length];
+        for(int i = 0; i < 5; i++) buf[i] = (byte) ('a' + i);
+        System.arraycopy(frames, 0, buf, 5, frames.length);
+
+        Recorder r = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(r);
+        decoder.feed(buf, 0, buf.length);
+        check("after garbage", 2, r.count);
+        check("garbage skipped", 5, decoder.getSkippedByteCount());
+        check("garbage first seq", 1, r.first);
+    }
+
+    //the start of a frame is lost, the next header starts inside the assembled bytes
+    private static void truncatedFrame(){
+        byte[] frames = frames(2);
+        byte[] buf = new byte[3 + frames.length];
+        System.arraycopy(frames, 0, buf, 0, 3);
+        System.arraycopy(frames, 0, buf, 3, frames.length);
+
+        Recorder r = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(r);
+        decoder.feed(buf, 0, buf.length);
+        check("after truncated", 2, r.count);
+        check("truncated first seq", 1, r.first);
+        check("truncated bad checksum", 1, decoder.getBadChecksumCount());
+        check("truncated skipped", 3, decoder.getSkippedByteCount());
+    }
+
+    //a corrupted frame is dropped, the frames around it are not
+    private static void badChecksum(){
+        byte[] buf = frames(3);
+        buf[FRAME + CommandFrame.OFFSET_PAYLOAD] ^= 0x10;
+
+        Recorder r = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(r);
+        decoder.feed(buf, 0, buf.length);
+        check("around corrupt", 2, r.count);
+        check("corrupt counted", 1, decoder.getBadChecksumCount());
+        check("corrupt first seq", 1, r.first);
+        check("corrupt last seq", 3, r.seq);
+        check("frame count", 2, decoder.getFrameCount());
+    }
+
+    //count OP_IR frames with sequence 1..count, payloads that never contain a header
+    private static byte[] frames(int count){
+        byte[] buf = new byte[count * FRAME];
+        for(int i = 0; i < count; i++){
+            CommandFrame.encode(buf, i * FRAME, CommandFrame.OP_IR, 1, 100 + i, i + 1);
+        }
+        return buf;
+    }
+
+    private static class Recorder implements FrameDecoder.Listener {
+        int count;
+        int first = -1;
+        int payload, seq;
+
+        public void onFrame(int opcode, int arg, int payload, int seq){
+            if(first < 0) first = seq;
+            count++;
+            this.payload = payload;
+            this.seq = seq;
+        }
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
@@ -0,0 +1,95 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of the HighPassFilter coefficients: the order 1 alpha for a
+ * given cutoff and sample interval, that MotionPipeline's default keeps
+ * the old fixed alpha = 0.2 at the UI rate, and that the biquads stay
+ * stable when the cutoff is above Nyquist at a slow rate.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class HighPassFilterTest {
+    private static final long MILLI = 1000000L;
+    private static final float EPSILON = 1e-4f;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        coefficient();
+        defaultAtUiRate();
+        stepResponse();
+        biquadAtSlowRate();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //alpha = RC / (RC + dt) with RC = 1 / (2 pi fc)
+    private static void coefficient(){
+        //RC = 1 / (2 pi 2) = 0.0795775
+        check("2 Hz at 100 ms", 0.443137f, HighPassFilter.alpha(2f, 0.1f));
+        //RC = 1 / (2 pi 10) = 0.0159155
+        check("10 Hz at 20 ms", 0.443137f, HighPassFilter.alpha(10f, 0.02f));
+        check("10 Hz at 200 ms", 0.0737117f, HighPassFilter.alpha(10f, 0.2f));
+    }
+
+    //the default must not change how hard the device has to be tilted
+    private static void defaultAtUiRate(){
+        check("default cutoff", 10.6103f, MotionPipeline.DEFAULT_CUTOFF_HZ, 1e-3f);
+        check("default alpha at 60 ms", 0.2f, HighPassFilter.alpha(MotionPipeline.DEFAULT_CUTOFF_HZ, 0.06f));
+        check("default alpha at 200 ms", 0.0697674f,
+              HighPassFilter.alpha(MotionPipeline.DEFAULT_CUTOFF_HZ, 0.2f));
+    }
+
+    //a unit step through an order 1 filter comes out as alpha on the first sample
+    private static void stepResponse(){
+        HighPassFilter filter = new HighPassFilter(1, MotionPipeline.DEFAULT_CUTOFF_HZ, 1);
+        float[] v = new float[1];
+        long t = 0;
+        for(int i = 0; i < 10; i++){
+            t += 60 * MILLI;
+            v[0] = 0;
+            filter.filter(v, t, v);
+        }
+        check("settled at zero", 0f, v[0]);
+        t += 60 * MILLI;
+        v[0] = 1;
+        filter.filter(v, t, v);
+        check("step at 60 ms", 0.2f, v[0]);
+    }
+
+    //10.6 Hz is past the 2.5 Hz Nyquist at 200 ms, the sections must not blow up
+    private static void biquadAtSlowRate(){
+        HighPassFilter filter = new HighPassFilter(1, MotionPipeline.DEFAULT_CUTOFF_HZ, 4);
+        float[] v = new float[1];
+        float peak = 0;
+        long t = 0;
+        for(int i = 0; i < 500; i++){
+            t += 200 * MILLI;
+            v[0] = (float) Math.sin(i * 0.7) + (i % 2 == 0 ? 1 : -1);
+            filter.filter(v, t, v);
+            if(Float.isNaN(v[0])) peak = Float.POSITIVE_INFINITY;
+            else peak = Math.max(peak, Math.abs(v[0]));
+        }
+        check("slow rate bounded", true, peak < 10f);
+    }
+
+    private static void check(String what, float expected, float actual){
+        check(what, expected, actual, EPSILON);
+    }
+
+    private static void check(String what, float expected, float actual, float epsilon){
+        if(Math.abs(expected - actual) <= epsilon) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
@@ -0,0 +1,163 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks of MotionEventBus: overrun accounting per subscriber, sequence
+ * numbers, subscription limits, and that a subscriber racing the
+ * producer never sees a torn sample and accounts for every one.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class MotionEventBusTest {
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        capacity();
+        overrun();
+        independentSubscribers();
+        subscriptions();
+        concurrentOverrun();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static void capacity(){
+        check("rounded up", 8, new MotionEventBus(5).getCapacity());
+        check("power of two kept", 8, new MotionEventBus(8).getCapacity());
+        check("at least two", 2, new MotionEventBus(0).getCapacity());
+    }
+
+    //a subscriber that falls behind loses its oldest samples, and counts them
+    private static void overrun(){
+        MotionEventBus bus = new MotionEventBus(8);
+        MotionEventBus.Subscription sub = bus.subscribe();
+        for(int i = 0; i < 20; i++) publish(bus, i);
+        check("dropped", 12, sub.getDroppedCount());
+        check("waiting", 8, sub.size());
+
+        MotionEventBus.Sample sample = new MotionEventBus.Sample();
+        for(int i = 12; i < 20; i++){
+            check("polled " + i, true, sub.poll(sample));
+            check("sequence " + i, i, sample.sequence);
+            check("timestamp " + i, 1000 + i, sample.timestamp);
+            check("values " + i, true, sample.values[0] == i && sample.values[2] == -i);
+        }
+        check("drained", false, sub.poll(sample));
+        check("published", 20, bus.getPublishedCount());
+    }
+
+    //one slow subscriber does not cost a fast one anything
+    private static void independentSubscribers(){
+        MotionEventBus bus = new MotionEventBus(4);
+        MotionEventBus.Subscription fast = bus.subscribe();
+        MotionEventBus.Subscription slow = bus.subscribe();
+        MotionEventBus.Sample sample = new MotionEventBus.Sample();
+        long read = 0;
+        for(int i = 0; i < 10; i++){
+            publish(bus, i);
+            while(fast.poll(sample)) read++;
+        }
+        check("fast read all", 10, read);
+        check("fast dropped none", 0, fast.getDroppedCount());
+        check("slow dropped", 6, slow.getDroppedCount());
+
+        //a late subscriber starts at the next sample
+        MotionEventBus.Subscription late = bus.subscribe();
+        check("late empty", 0, late.size());
+        publish(bus, 10);
+        check("late polled", true, late.poll(sample));
+        check("late sequence", 10, sample.sequence);
+    }
+
+    private static void subscriptions(){
+        MotionEventBus bus = new MotionEventBus(4);
+        MotionEventBus.Subscription[] subs = new MotionEventBus.Subscription[MotionEventBus.MAX_SUBSCRIBERS];
+        for(int i = 0; i < subs.length; i++) subs[i] = bus.subscribe();
+        boolean threw = false;
+        try{
+            bus.subscribe();
+        }
+        catch(IllegalStateException e){
+            threw = true;
+        }
+        check("too many subscribers", true, threw);
+
+        for(int i = 0; i < 6; i++) publish(bus, i);
+        subs[0].close();
+        check("closed polls nothing", false, subs[0].poll(new MotionEventBus.Sample()));
+        MotionEventBus.Subscription again = bus.subscribe();
+        check("slot reused", true, again == subs[0]);
+        check("reuse starts clean", 0, again.getDroppedCount());
+        check("reuse starts empty", 0, again.size());
+    }
+
+    //the producer outruns the subscriber, every sample is either read whole or dropped
+    private static void concurrentOverrun() throws InterruptedException {
+        final MotionEventBus bus = new MotionEventBus(16);
+        final MotionEventBus.Subscription sub = bus.subscribe();
+        final long samples = 2000000;
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong torn = new AtomicLong();
+        final AtomicLong disorder = new AtomicLong();
+        final boolean[] done = {false};
+
+        Thread consumer = new Thread(){
+            public void run(){
+                MotionEventBus.Sample sample = new MotionEventBus.Sample();
+                long last = -1;
+                while(true){
+                    boolean finished;
+                    synchronized(done){
+                        finished = done[0];
+                    }
+                    if(!sub.poll(sample)){
+                        if(finished) return;
+                        continue;
+                    }
+                    received.incrementAndGet();
+                    if(sample.sequence <= last) disorder.incrementAndGet();
+                    last = sample.sequence;
+                    float v = sample.sequence;
+                    if(sample.timestamp != 1000 + sample.sequence
+                       || sample.values[0] != v || sample.values[1] != 2 * v || sample.values[2] != -v){
+                        torn.incrementAndGet();
+                    }
+                }
+            }
+        };
+        consumer.start();
+        //values stay exact as floats below 2^24
+        for(long i = 0; i < samples; i++) publish(bus, i);
+        synchronized(done){
+            done[0] = true;
+        }
+        consumer.join();
+
+        check("every sample accounted for", samples, received.get() + sub.getDroppedCount());
+        check("in order", 0, disorder.get());
+        check("torn samples", 0, torn.get());
+    }
+
+    //sample i carries i in every field so a reader can check it
+    private static void publish(MotionEventBus bus, long i){
+        float v = i;
+        bus.publish(MotionEventBus.TYPE_ACCEL, 1000 + i, v, 2 * v, -v);
+    }
+
+    private static synchronized void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static synchronized void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
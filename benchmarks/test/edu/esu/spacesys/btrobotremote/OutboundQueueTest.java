@@ -0,0 +1,160 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of OutboundQueue: latest wins coalescing of movement frames,
+ * FIFO order of the rest, both drop policies when the FIFO is full,
+ * partial drains, timestamps and closing.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class OutboundQueueTest {
+    private static final int FRAME = CommandFrame.FRAME_SIZE;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        coalesce();
+        fifoOrder();
+        dropNewest();
+        dropOldest();
+        partialDrain();
+        close();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //only the newest frame of a channel is sent, channels do not replace each other
+    private static void coalesce(){
+        OutboundQueue queue = new OutboundQueue();
+        offer(queue, CommandFrame.OP_MOVE, CommandFrame.MOVE_FORWARD, 1, 10);
+        offer(queue, CommandFrame.OP_MOVE, CommandFrame.MOVE_BACKWARD, 2, 20);
+        offer(queue, CommandFrame.OP_MOVE, CommandFrame.MOVE_LEFT, 3, 30);
+        offer(queue, CommandFrame.OP_DRIVE, 10, 4, 40);
+        offer(queue, CommandFrame.OP_DRIVE, 20, 5, 50);
+        check("pending", 3, queue.size());
+        check("coalesced", 2, queue.getCoalescedCount());
+
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+        long[] stamps = new long[OutboundQueue.maxDrainFrames()];
+        check("drained", 3 * FRAME, queue.drainTo(out, stamps));
+        check("throttle newest", 2, CommandFrame.sequence(out, 0));
+        check("throttle stamp", 20, stamps[0]);
+        check("steer", 3, CommandFrame.sequence(out, FRAME));
+        check("drive newest", 5, CommandFrame.sequence(out, 2 * FRAME));
+        check("drive stamp", 50, stamps[2]);
+        check("empty", 0, queue.size());
+        check("nothing left", 0, queue.drainTo(out));
+    }
+
+    //replies go out in order and are never coalesced
+    private static void fifoOrder(){
+        OutboundQueue queue = new OutboundQueue();
+        for(int i = 1; i <= 5; i++) offer(queue, CommandFrame.OP_SONAR, 0, i, i);
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+        check("fifo drained", 5 * FRAME, queue.drainTo(out));
+        for(int i = 0; i < 5; i++) check("fifo order " + i, i + 1, CommandFrame.sequence(out, i * FRAME));
+        check("fifo not coalesced", 0, queue.getCoalescedCount());
+    }
+
+    private static void dropNewest(){
+        OutboundQueue queue = new OutboundQueue();
+        fill(queue);
+        check("newest rejected", false, offer(queue, CommandFrame.OP_IR, 0, 1000, 0));
+        check("newest dropped", 1, queue.getDroppedCount());
+        //movement frames have their own slots
+        check("move still queued", true, offer(queue, CommandFrame.OP_MOVE, CommandFrame.MOVE_LEFT, 1001, 0));
+
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+        int len = queue.drainTo(out);
+        check("newest drained", (OutboundQueue.FIFO_FRAMES + 1) * FRAME, len);
+        check("newest first fifo", 1, CommandFrame.sequence(out, FRAME));
+        check("newest last fifo", OutboundQueue.FIFO_FRAMES, CommandFrame.sequence(out, len - FRAME));
+    }
+
+    private static void dropOldest(){
+        OutboundQueue queue = new OutboundQueue();
+        queue.setDropPolicy(OutboundQueue.DROP_OLDEST);
+        fill(queue);
+        check("oldest queued", true, offer(queue, CommandFrame.OP_IR, 0, 1000, 0));
+        check("oldest dropped", 1, queue.getDroppedCount());
+
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+        int len = queue.drainTo(out);
+        check("oldest drained", OutboundQueue.FIFO_FRAMES * FRAME, len);
+        check("oldest first", 2, CommandFrame.sequence(out, 0));
+        check("oldest last", 1000, CommandFrame.sequence(out, len - FRAME));
+
+        boolean threw = false;
+        try{
+            queue.setDropPolicy(7);
+        }
+        catch(IllegalArgumentException e){
+            threw = true;
+        }
+        check("unknown policy", true, threw);
+    }
+
+    //a small drain takes the slots first and leaves the rest in order
+    private static void partialDrain(){
+        OutboundQueue queue = new OutboundQueue();
+        offer(queue, CommandFrame.OP_IR, 0, 1, 0);
+        offer(queue, CommandFrame.OP_IR, 0, 2, 0);
+        offer(queue, CommandFrame.OP_MOVE, CommandFrame.MOVE_FORWARD, 3, 0);
+        byte[] out = new byte[OutboundQueue.maxDrainSize()];
+        check("two frames", 2 * FRAME, queue.drainTo(out, null, 2 * FRAME + 3));
+        check("slot first", 3, CommandFrame.sequence(out, 0));
+        check("then fifo", 1, CommandFrame.sequence(out, FRAME));
+        check("rest", 1, queue.size());
+        check("rest drained", FRAME, queue.drainTo(out));
+        check("rest seq", 2, CommandFrame.sequence(out, 0));
+    }
+
+    //a waiting consumer wakes up with -1, later offers are rejected
+    private static void close() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue();
+        final int[] result = {0};
+        Thread consumer = new Thread(){
+            public void run(){
+                try{
+                    result[0] = queue.awaitAndDrain(new byte[OutboundQueue.maxDrainSize()], null);
+                }
+                catch(InterruptedException e){
+                }
+            }
+        };
+        consumer.start();
+        Thread.sleep(20);
+        queue.close();
+        consumer.join(5000);
+        check("consumer woke", false, consumer.isAlive());
+        check("closed drain", -1, result[0]);
+        check("closed offer", false, offer(queue, CommandFrame.OP_IR, 0, 1, 0));
+    }
+
+    //fill the FIFO with sequence 1..FIFO_FRAMES
+    private static void fill(OutboundQueue queue){
+        for(int i = 1; i <= OutboundQueue.FIFO_FRAMES; i++) offer(queue, CommandFrame.OP_IR, 0, i, 0);
+    }
+
+    private static boolean offer(OutboundQueue queue, int opcode, int arg, int seq, long stamp){
+        byte[] frame = new byte[FRAME];
+        CommandFrame.encode(frame, 0, opcode, arg, 0, seq);
+        return queue.offer(frame, 0, stamp);
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
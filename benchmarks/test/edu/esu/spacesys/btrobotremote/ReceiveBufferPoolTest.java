@@ -0,0 +1,270 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks of ReceiveBufferPool and of how BluetoothClientService hands
+ * leased buffers to its RawConsumer: leases, hand-off to another thread,
+ * release, and what happens when the consumer holds every buffer.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class ReceiveBufferPoolTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        //the service logs every connect and disconnect
+        AppLog.setSink(new AppLog.Sink(){
+            public void log(int level, String tag, String msg, Throwable tr){}
+        });
+        leaseAndRelease();
+        exhaustion();
+        handOff();
+        serviceWithoutConsumer();
+        serviceConsumerHoldsEverything();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    private static void leaseAndRelease(){
+        ReceiveBufferPool pool = new ReceiveBufferPool(2, 16);
+        ReceiveBufferPool.Buffer a = pool.lease();
+        check("lease", true, a != null);
+        check("lease size", 16, a.data.length);
+        a.length = 5;
+        check("outstanding", 1, pool.getOutstanding());
+        a.release();
+        check("released", 0, pool.getOutstanding());
+        ReceiveBufferPool.Buffer b = pool.lease();
+        check("buffer reused", true, a == b);
+        check("length reset", 0, b.length);
+        b.release();
+        boolean threw = false;
+        try{
+            b.release();
+        }
+        catch(IllegalStateException e){
+            threw = true;
+        }
+        check("double release throws", true, threw);
+        check("lease count", 2, pool.getLeaseCount());
+    }
+
+    private static void exhaustion(){
+        ReceiveBufferPool pool = new ReceiveBufferPool(2, 16);
+        ReceiveBufferPool.Buffer a = pool.lease();
+        ReceiveBufferPool.Buffer b = pool.lease();
+        check("distinct buffers", true, a != b);
+        check("empty pool", true, pool.lease() == null);
+        check("empty pool again", true, pool.lease() == null);
+        check("exhausted count", 2, pool.getExhaustedCount());
+        check("low water", 0, pool.getLowWaterMark());
+        b.release();
+        check("lease after release", true, pool.lease() == b);
+    }
+
+    //a reader thread fills buffers, a consumer thread checks and releases them
+    private static void handOff() throws InterruptedException {
+        final ReceiveBufferPool pool = new ReceiveBufferPool(4, 64);
+        final BlockingQueue<ReceiveBufferPool.Buffer> queue =
+            new ArrayBlockingQueue<ReceiveBufferPool.Buffer>(pool.getCapacity());
+        final int rounds = 200000;
+        final AtomicLong handed = new AtomicLong();
+        final AtomicLong corrupt = new AtomicLong();
+
+        Thread consumer = new Thread(){
+            public void run(){
+                try{
+                    while(true){
+                        ReceiveBufferPool.Buffer b = queue.take();
+                        if(b.length < 0) return;
+                        //every byte carries the round it was filled in
+                        for(int i = 0; i < b.length; i++){
+                            if(b.data[i] != b.data[0]){
+                                corrupt.incrementAndGet();
+                                break;
+                            }
+                        }
+                        b.release();
+                    }
+                }
+                catch(InterruptedException e){
+                }
+            }
+        };
+        consumer.start();
+        for(int n = 0; n < rounds; n++){
+            ReceiveBufferPool.Buffer b = pool.lease();
+            if(b == null) continue;
+            b.length = 1 + n % b.data.length;
+            for(int i = 0; i < b.length; i++) b.data[i] = (byte) n;
+            queue.put(b);
+            handed.incrementAndGet();
+        }
+        ReceiveBufferPool.Buffer last;
+        while((last = pool.lease()) == null) Thread.sleep(1);
+        last.length = -1;
+        queue.put(last);
+        consumer.join();
+
+        check("hand-off delivered", handed.get() + 1, pool.getLeaseCount());
+        check("hand-off corrupt", 0, corrupt.get());
+        check("hand-off outstanding", 1, pool.getOutstanding());
+    }
+
+    //without a consumer reads lease nothing, frames are decoded all the same
+    private static void serviceWithoutConsumer() throws Exception {
+        Robot robot = new Robot();
+        try{
+            check("frames without consumer", true, robot.host.awaitFrames(20));
+            check("no leases without consumer", 0, robot.service.getReceivePool().getLeaseCount());
+        }
+        finally{
+            robot.close();
+        }
+    }
+
+    //a consumer that keeps every buffer starves the pool, decoding goes on
+    private static void serviceConsumerHoldsEverything() throws Exception {
+        Robot robot = new Robot();
+        final List<ReceiveBufferPool.Buffer> held = new ArrayList<ReceiveBufferPool.Buffer>();
+        final boolean[] keep = {true};
+        try{
+            ReceiveBufferPool pool = robot.service.getReceivePool();
+            robot.service.setRawConsumer(new BluetoothClientService.RawConsumer(){
+                public void onReceive(ReceiveBufferPool.Buffer buffer){
+                    check("raw bytes", true, buffer.length > 0);
+                    synchronized(held){
+                        if(keep[0]) held.add(buffer);
+                        else buffer.release();
+                    }
+                }
+            });
+            check("pool drained", true, await(pool, pool.getCapacity(), 1));
+            long frames = robot.host.getFrames();
+            check("frames while exhausted", true, robot.host.awaitFrames(frames + 10));
+            synchronized(held){
+                check("held every buffer", pool.getCapacity(), held.size());
+            }
+
+            //give them back from this thread, from now on the consumer
+            //releases what it gets and the reader leases again
+            long leases = pool.getLeaseCount();
+            synchronized(held){
+                keep[0] = false;
+                for(ReceiveBufferPool.Buffer b : held) b.release();
+                held.clear();
+            }
+            check("leases after release", true, awaitLeases(pool, leases + 10));
+            check("released outstanding", true, pool.getOutstanding() <= 1);
+
+            robot.service.setRawConsumer(null);
+            Thread.sleep(50);
+            leases = pool.getLeaseCount();
+            long seen = robot.host.getFrames();
+            robot.host.awaitFrames(seen + 10);
+            check("no leases once unset", leases, pool.getLeaseCount());
+        }
+        finally{
+            robot.close();
+        }
+    }
+
+    private static boolean await(ReceiveBufferPool pool, int outstanding, long exhausted)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(pool.getOutstanding() < outstanding || pool.getExhaustedCount() < exhausted){
+            if(System.currentTimeMillis() > end) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static boolean awaitLeases(ReceiveBufferPool pool, long leases) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(pool.getLeaseCount() < leases){
+            if(System.currentTimeMillis() > end) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * A service connected to a SimulatedRobot that pushes readings fast,
+     * over LoopbackTransport.
+     */
+    private static class Robot {
+        final CountingHost host = new CountingHost();
+        final SimulatedRobot robot = new SimulatedRobot(200);
+        final BluetoothClientService service;
+
+        Robot(){
+            LoopbackTransport transport = new LoopbackTransport();
+            transport.bind("robot", robot);
+            service = new BluetoothClientService(host, new LatencyTracker(), transport,
+                                                 new NoHistory());
+            service.connect("robot");
+        }
+
+        void close(){
+            service.stop();
+            robot.close();
+        }
+    }
+
+    //counts decoded frames, messages are handled on the sending thread
+    private static class CountingHost implements BluetoothClientService.Host {
+        private long mFrames;
+
+        public synchronized void sendMessage(int what, int arg1, int arg2, Object obj){
+            if(what != BluetoothClientService.MESSAGE_FRAME) return;
+            mFrames++;
+            notifyAll();
+        }
+        public void postDelayed(Runnable task, long delayMillis){}
+        public void removeCallbacks(Runnable task){}
+        public long threadCpuTimeNanos(){return 0;}
+
+        synchronized long getFrames(){return mFrames;}
+
+        synchronized boolean awaitFrames(long frames) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while(mFrames < frames){
+                long left = end - System.currentTimeMillis();
+                if(left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    private static class NoHistory implements ConnectHistory {
+        public int getSocketType(String address){return SOCKET_INSECURE;}
+        public void putSocketType(String address, int type){}
+        public void forgetSocketType(String address){}
+        public void recordAttempt(String address, boolean success){}
+        public void setLastAddress(String address){}
+    }
+
+    private static synchronized void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static synchronized void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
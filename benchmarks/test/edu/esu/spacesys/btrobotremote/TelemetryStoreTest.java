@@ -0,0 +1,103 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of TelemetryStore.summarize(), in particular which resolution
+ * it picks early in a session and once the raw ring has wrapped.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class TelemetryStoreTest {
+    private static final long SECOND = 1000000000L;
+    //20 Hz, as the activity polls
+    private static final long PERIOD = SECOND / 20;
+    //like BTRobotRemoteActivity.RECENT_NANOS
+    private static final long RECENT = 2 * SECOND;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        firstReadings();
+        openSecond();
+        afterRawWrapped();
+        beyondRawRing();
+        emptySeries();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //fewer readings than the window, no second closed yet
+    private static void firstReadings(){
+        TelemetryStore store = new TelemetryStore(1);
+        long t0 = 5 * SECOND + 100;
+        long now = record(store, t0, 15, 100);
+        TelemetryStore.Summary s = summarize(store, now - RECENT, now);
+        check("first readings count", 15, s.count);
+        check("first readings level", TelemetryStore.LEVEL_RAW, s.level);
+        check("first readings min", 86f, s.min);
+    }
+
+    //one second closed, the next still open
+    private static void openSecond(){
+        TelemetryStore store = new TelemetryStore(1);
+        long t0 = 7 * SECOND;
+        long now = record(store, t0, 30, 100);
+        TelemetryStore.Summary s = summarize(store, now - RECENT, now);
+        check("open second count", 30, s.count);
+        check("open second min", 71f, s.min);
+        check("open second max", 100f, s.max);
+    }
+
+    //a minute and a half in, the window is still all raw
+    private static void afterRawWrapped(){
+        TelemetryStore store = new TelemetryStore(1);
+        long now = record(store, 3 * SECOND, 1800, 5000);
+        TelemetryStore.Summary s = summarize(store, now - RECENT, now);
+        check("wrapped count", 41, s.count);
+        check("wrapped level", TelemetryStore.LEVEL_RAW, s.level);
+    }
+
+    //a window longer than the raw ring comes from the seconds
+    private static void beyondRawRing(){
+        TelemetryStore store = new TelemetryStore(1);
+        long t0 = 3 * SECOND;
+        long now = record(store, t0, 1800, 5000);
+        TelemetryStore.Summary s = summarize(store, now - 300 * SECOND, now);
+        check("beyond raw count", 1800, s.count);
+        check("beyond raw level", TelemetryStore.LEVEL_SECOND, s.level);
+        check("beyond raw max", 5000f, s.max);
+    }
+
+    private static void emptySeries(){
+        TelemetryStore store = new TelemetryStore(2);
+        record(store, SECOND, 10, 100);
+        TelemetryStore.Summary s = new TelemetryStore.Summary();
+        store.summarize(1, 0, 2 * SECOND, s);
+        check("empty series count", 0, s.count);
+    }
+
+    //count readings PERIOD apart from t0, counting down from first; returns the last time
+    private static long record(TelemetryStore store, long t0, int count, int first){
+        long t = t0;
+        for(int i = 0; i < count; i++){
+            t = t0 + i * PERIOD;
+            store.record(0, t, first - i);
+        }
+        return t;
+    }
+
+    private static TelemetryStore.Summary summarize(TelemetryStore store, long from, long to){
+        TelemetryStore.Summary s = new TelemetryStore.Summary();
+        store.summarize(0, from, to, s);
+        return s;
+    }
+
+    private static void check(String what, float expected, float actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
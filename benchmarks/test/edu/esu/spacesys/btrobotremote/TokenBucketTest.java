@@ -0,0 +1,123 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Checks of TokenBucket: the initial burst, refill at the rate, the cap
+ * at the burst size, debt, waiting times and rate changes.
+ *
+ * Needs no test framework, run it with "ant test". Exits with 1 if a
+ * check fails.
+ */
+public class TokenBucketTest {
+    private static final long SECOND = 1000000000L;
+    private static final long MILLI = 1000000L;
+
+    private static int sFailures;
+
+    public static void main(String[] args){
+        burst();
+        refill();
+        debt();
+        waiting();
+        rateChange();
+        invalid();
+        if(sFailures > 0){
+            System.out.println(sFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    //starts full, a burst goes out back to back and then nothing
+    private static void burst(){
+        TokenBucket bucket = new TokenBucket(1000, 64);
+        long t = 5 * SECOND;
+        check("starts full", 64, bucket.available(t));
+        for(int i = 0; i < 8; i++) check("burst frame " + i, true, bucket.tryConsume(8, t));
+        check("burst spent", false, bucket.tryConsume(8, t));
+        check("nothing left", 0, bucket.available(t));
+    }
+
+    //tokens accrue at the rate and stop at the burst size
+    private static void refill(){
+        TokenBucket bucket = new TokenBucket(1000, 64);
+        long t = SECOND;
+        bucket.consume(64, t);
+        check("after 10 ms", 10, bucket.available(t + 10 * MILLI));
+        check("after 40 ms", 40, bucket.available(t + 40 * MILLI));
+        check("capped", 64, bucket.available(t + 10 * SECOND));
+        //time going backwards adds nothing
+        check("clock step back", 64, bucket.available(t));
+    }
+
+    //consume() can overdraw, the debt is paid off before tryConsume succeeds
+    private static void debt(){
+        TokenBucket bucket = new TokenBucket(1000, 64);
+        long t = SECOND;
+        bucket.consume(100, t);
+        check("in debt", false, bucket.tryConsume(1, t + 30 * MILLI));
+        check("debt paid", true, bucket.tryConsume(1, t + 37 * MILLI));
+    }
+
+    private static void waiting(){
+        TokenBucket bucket = new TokenBucket(1000, 64);
+        long t = SECOND;
+        check("no wait when full", 0, bucket.nanosUntil(8, t));
+        bucket.consume(64, t);
+        check("wait for a frame", 8 * MILLI, bucket.nanosUntil(8, t));
+        check("wait shrinks", 3 * MILLI, bucket.nanosUntil(8, t + 5 * MILLI));
+        //more than the burst waits for a full bucket only
+        check("wait capped at burst", 59 * MILLI, bucket.nanosUntil(1000, t + 5 * MILLI));
+    }
+
+    //tokens accrued before the change count at the old rate
+    private static void rateChange(){
+        TokenBucket bucket = new TokenBucket(1000, 640);
+        long t = SECOND;
+        bucket.consume(640, t);
+        bucket.setRate(10000, t + 10 * MILLI);
+        check("rate", 10000.0, bucket.getRate());
+        check("old rate until change", 10, bucket.available(t + 10 * MILLI));
+        check("new rate after change", 110, bucket.available(t + 20 * MILLI));
+    }
+
+    private static void invalid(){
+        check("zero rate", true, throwsIllegalArgument(0, 64));
+        check("zero burst", true, throwsIllegalArgument(1000, 0));
+        boolean threw = false;
+        try{
+            new TokenBucket(1000, 64).setRate(Double.NaN, 0);
+        }
+        catch(IllegalArgumentException e){
+            threw = true;
+        }
+        check("NaN rate", true, threw);
+    }
+
+    private static boolean throwsIllegalArgument(int rate, int burst){
+        try{
+            new TokenBucket(rate, burst);
+        }
+        catch(IllegalArgumentException e){
+            return true;
+        }
+        return false;
+    }
+
+    private static void check(String what, long expected, long actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, double expected, double actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+
+    private static void check(String what, boolean expected, boolean actual){
+        if(expected == actual) return;
+        System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        sFailures++;
+    }
+}
@@ -44,18 +44,26 @@ public final class R {
     }
     public static final class id {
         public static final int accel_stats=0x7f070009;
+        public static final int add_robot=0x7f070012;
         public static final int bottom=0x7f070008;
         public static final int button_scan=0x7f070004;
+        public static final int dump_latency=0x7f07000e;
         public static final int forward=0x7f070005;
         public static final int gyro_stats=0x7f07000a;
         public static final int left=0x7f070006;
         public static final int new_devices=0x7f070003;
         public static final int paired_devices=0x7f070001;
+        public static final int proportional=0x7f07000f;
+        public static final int recent_devices=0x7f070010;
+        public static final int record=0x7f07000d;
+        public static final int remove_robot=0x7f070014;
         public static final int right=0x7f070007;
         public static final int scan=0x7f07000c;
         public static final int status_button=0x7f07000b;
+        public static final int telemetry_stats=0x7f070013;
         public static final int title_new_devices=0x7f070002;
         public static final int title_paired_devices=0x7f070000;
+        public static final int title_recent_devices=0x7f070011;
     }
     public static final class layout {
         public static final int device_list=0x7f030000;
@@ -66,6 +74,7 @@ public final class R {
         public static final int main_menu=0x7f060000;
     }
     public static final class string {
+        public static final int add_robot=0x7f050017;
         /** Bluetooth Remote 
          */
         public static final int app_name=0x7f050000;
@@ -75,12 +84,18 @@ public final class R {
         public static final int connected=0x7f05000b;
         public static final int connecting=0x7f050009;
         public static final int disconnected=0x7f05000a;
+        public static final int dump_latency=0x7f050014;
+        public static final int fleet_empty=0x7f05001a;
+        public static final int fleet_full=0x7f050018;
         public static final int forward_button=0x7f050003;
         public static final int left_button=0x7f050004;
         public static final int menu_title=0x7f050001;
         public static final int none_found=0x7f05000f;
         public static final int none_paired=0x7f05000e;
         public static final int not_connected=0x7f050007;
+        public static final int proportional_drive=0x7f050015;
+        public static final int record_trace=0x7f050013;
+        public static final int remove_robot=0x7f050019;
         public static final int right_button=0x7f050006;
         public static final int scan_button=0x7f050002;
         /**   DeviceListActivity 
@@ -89,5 +104,6 @@ public final class R {
         public static final int select_device=0x7f05000d;
         public static final int title_other_devices=0x7f050011;
         public static final int title_paired_devices=0x7f050010;
+        public static final int title_recent_devices=0x7f050016;
     }
 }
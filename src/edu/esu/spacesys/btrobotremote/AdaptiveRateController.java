@@ -0,0 +1,151 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Picks a sensor sampling rate from how much the device is moving.
+ *
+ * Motion energy is the rotation speed from the gyroscope plus how far the
+ * accelerometer magnitude is from gravity, smoothed over ENERGY_TAU_NANOS.
+ * The rate steps up as soon as the energy crosses the next level, so the
+ * first movement is picked up quickly. It only steps down after the energy
+ * stayed below half of the current level for a while, so it does not
+ * flip back and forth around a threshold.
+ *
+ * Has no Android dependencies: the caller maps the RATE_ constants to
+ * SensorManager delays. Time is taken from the sample timestamps.
+ */
+public class AdaptiveRateController {
+    //rates from slowest to fastest
+    public static final int RATE_IDLE = 0;    //lying still
+    public static final int RATE_UI = 1;      //picked up
+    public static final int RATE_GAME = 2;    //driving
+    public static final int RATE_FASTEST = 3; //fast manoeuvres
+    public static final int RATE_COUNT = 4;
+
+    private static final String[] RATE_NAMES = {"idle", "ui", "game", "fastest"};
+
+    //energy needed to enter each rate, in rad/s (RATE_IDLE is never entered by energy)
+    private static final float[] ENTER_LEVEL = {0f, 0.05f, 0.3f, 1.0f};
+    //a rate is left once the energy is below ENTER_LEVEL * EXIT_FRACTION
+    private static final float EXIT_FRACTION = 0.5f;
+
+    //m/s^2 of linear acceleration that count as much as 1 rad/s of rotation
+    private static final float ACCEL_WEIGHT = 0.1f;
+
+    //time constant of the energy average
+    private static final long ENERGY_TAU_NANOS = 250000000L;
+    //quiet time before stepping down one rate, and before going idle
+    private static final long STEP_DOWN_NANOS = 1500000000L;
+    private static final long IDLE_NANOS = 5000000000L;
+    //longer gaps between samples are not counted (e.g. monitor was stopped)
+    private static final long MAX_GAP_NANOS = 1000000000L;
+    //sensors feeding the average, MotionEventBus.TYPE_ACCEL and TYPE_GYRO
+    private static final int STREAM_COUNT = 2;
+
+    private int mRate;
+    private float mEnergy;
+    private float mAccelDeviation; //latest |accel| - g, combined with each gyro sample
+    //last sample of each sensor, the two are batched independently and interleave out of order
+    private final long[] mLastTimestamp = new long[STREAM_COUNT];
+    private long mNewest;          //newest timestamp of any sensor, for the time at rate
+    private long mQuietSince;      //start of the quiet period, 0 if not quiet
+
+    private final long[] mTimeAtRate = new long[RATE_COUNT];
+    private long mSwitches;
+
+    public AdaptiveRateController(){
+        this(RATE_UI);
+    }
+    public AdaptiveRateController(int initialRate){
+        mRate = initialRate;
+    }
+
+    public static String rateName(int rate){return RATE_NAMES[rate];}
+
+    /**
+     * Feed one raw sample.
+     * @param type MotionEventBus.TYPE_ACCEL or MotionEventBus.TYPE_GYRO
+     * @param timestamp time of the reading in nanoseconds
+     * @return true if the rate changed, getRate() returns the new one
+     */
+    public synchronized boolean update(int type, long timestamp, float x, float y, float z){
+        float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+        float sample;
+        if(type == MotionEventBus.TYPE_ACCEL){
+            mAccelDeviation = Math.abs(magnitude - 9.80665f);
+            sample = mAccelDeviation * ACCEL_WEIGHT;
+        }
+        else if(type == MotionEventBus.TYPE_GYRO){
+            sample = magnitude + mAccelDeviation * ACCEL_WEIGHT;
+        }
+        else{
+            return false;
+        }
+
+        final long last = mLastTimestamp[type];
+        if(last != 0 && timestamp - last <= 0){
+            //repeated or out of order within the sensor, the average keeps its value
+            return false;
+        }
+        mLastTimestamp[type] = timestamp;
+        final boolean first = mNewest == 0;
+        long advance = first ? 0 : timestamp - mNewest;
+        if(advance > 0 && advance <= MAX_GAP_NANOS) mTimeAtRate[mRate] += advance;
+        if(advance > 0 || first) mNewest = timestamp;
+
+        long dt = last == 0 ? 0 : timestamp - last;
+        if(dt > MAX_GAP_NANOS || first){
+            //after a stop, or the very first sample: restart the average from this sample
+            mEnergy = sample;
+            return false;
+        }
+        //first sample of the other sensor, no time step yet
+        if(dt == 0) return false;
+
+        //both sensors move the average, each by its own time step, so each counts half
+        float alpha = (float) dt / (ENERGY_TAU_NANOS * STREAM_COUNT + dt);
+        mEnergy += alpha * (sample - mEnergy);
+
+        int target = mRate;
+        while(target + 1 < RATE_COUNT && mEnergy >= ENTER_LEVEL[target + 1]) target++;
+        if(target > mRate){
+            mQuietSince = 0;
+            return setRate(target);
+        }
+
+        if(mRate == RATE_IDLE || mEnergy >= ENTER_LEVEL[mRate] * EXIT_FRACTION){
+            mQuietSince = 0;
+            return false;
+        }
+        if(mQuietSince == 0){
+            mQuietSince = timestamp;
+            return false;
+        }
+        long hold = mRate == RATE_UI ? IDLE_NANOS : STEP_DOWN_NANOS;
+        if(timestamp - mQuietSince < hold) return false;
+        mQuietSince = 0;
+        return setRate(mRate - 1);
+    }
+
+    private boolean setRate(int rate){
+        if(rate == mRate) return false;
+        mRate = rate;
+        mSwitches++;
+        return true;
+    }
+
+    public synchronized int getRate(){return mRate;}
+    public synchronized float getEnergy(){return mEnergy;}
+    //nanoseconds of samples received at rate
+    public synchronized long getTimeAtRate(int rate){return mTimeAtRate[rate];}
+    public synchronized long getSwitchCount(){return mSwitches;}
+
+    //start over at rate, keeping the time statistics
+    public synchronized void reset(int rate){
+        mRate = rate;
+        mEnergy = 0;
+        mAccelDeviation = 0;
+        for(int i = 0; i < STREAM_COUNT; i++) mLastTimestamp[i] = 0;
+        mNewest = 0;
+        mQuietSince = 0;
+    }
+}
@@ -0,0 +1,13 @@
+package edu.esu.spacesys.btrobotremote;
+
+import android.util.Log;
+
+/**
+ * Sends AppLog lines to logcat.
+ */
+public class AndroidLogSink implements AppLog.Sink {
+    @Override
+    public void log(int level, String tag, String msg, Throwable tr){
+        Log.println(level, tag, tr == null ? msg : msg + '\n' + Log.getStackTraceString(tr));
+    }
+}
@@ -0,0 +1,42 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Logging for classes that also run off the phone, e.g. the connection
+ * service under LinkSoakTest. The calls are those of android.util.Log;
+ * the app installs an AndroidLogSink at startup, anywhere else lines go
+ * to System.err unless another Sink is set.
+ */
+public final class AppLog {
+    //same values as the android.util.Log priorities
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    //receives every line, from any thread
+    public interface Sink {
+        //tr is null for lines without an exception
+        void log(int level, String tag, String msg, Throwable tr);
+    }
+
+    private static final char[] LEVELS = {'V', 'V', 'V', 'D', 'I', 'W', 'E'};
+
+    private static volatile Sink sSink = new Sink(){
+        @Override
+        public void log(int level, String tag, String msg, Throwable tr){
+            System.err.println(LEVELS[level] + "/" + tag + ": " + msg);
+            if(tr != null) tr.printStackTrace();
+        }
+    };
+
+    private AppLog(){}
+
+    public static void setSink(Sink sink){sSink = sink;}
+
+    public static void d(String tag, String msg){sSink.log(DEBUG, tag, msg, null);}
+    public static void i(String tag, String msg){sSink.log(INFO, tag, msg, null);}
+    public static void w(String tag, String msg){sSink.log(WARN, tag, msg, null);}
+    public static void w(String tag, String msg, Throwable tr){sSink.log(WARN, tag, msg, tr);}
+    public static void e(String tag, String msg){sSink.log(ERROR, tag, msg, null);}
+    public static void e(String tag, String msg, Throwable tr){sSink.log(ERROR, tag, msg, tr);}
+}
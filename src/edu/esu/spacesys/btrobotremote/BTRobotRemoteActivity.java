@@ -1,11 +1,18 @@
 package edu.esu.spacesys.btrobotremote;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.lang.Math;
 import android.content.Intent;
 
 import android.app.Activity;
 import android.app.ActionBar;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.util.Log;
 import android.os.Bundle;
 import android.os.Handler;
@@ -24,6 +31,7 @@ import android.widget.TextView;
 import android.view.View;
 
 public class BTRobotRemoteActivity extends Activity
+        implements MotionPipeline.Listener, TelemetryPoller.Listener
 {
     private static final String TAG = "BT-Robot-Remote";
     
@@ -37,18 +45,29 @@ public class BTRobotRemoteActivity extends Activity
     
     //motion stats go in here
     private TextView statsArea;
+    //puts motion and telemetry on the screen once per display frame
+    private UiUpdateStage mUi;
 
     //handler to communicate with other threads
     private UiHandler mHandler;
 
+    //latest results of the motion pipeline, written on its thread and put
+    //on the screen by the UI thread; only the newest values are shown
+    private static final int MESSAGE_MOTION = 0xFE;
+    private final Object mMotionLock = new Object();
+    private final float[] mLatestAccel = new float[3];
+    private final float[] mLatestRotation = new float[3];
+    private int mLatestDirections;
+    //true while a MESSAGE_MOTION is on its way, so only one is queued at a time
+    private final AtomicBoolean mMotionPending = new AtomicBoolean(false);
+    //copies of the latest results for the UI thread
+    private final float[] mShownAccel = new float[3];
+    private final float[] mShownRotation = new float[3];
+
     // Local Bluetooth adapter
     private BluetoothAdapter mBluetoothAdapter = null;
-    // Member object for the chat services
-    private BluetoothClientService mClientService = null;
-
-    // Key names received from the BluetoothClientService Handler
-    public static final String DEVICE_NAME = "device_name";
-    public static final String TOAST = "toast";
+    // Member object for the chat services, also used by the motion pipeline thread
+    private volatile BluetoothClientService mClientService = null;
 
     private String mConnectedDeviceName = null;
 
@@ -56,31 +75,57 @@ public class BTRobotRemoteActivity extends Activity
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
+    private static final int REQUEST_CONNECT_DEVICE = 4; //secure or insecure, whichever connects first
+    private static final int REQUEST_ADD_ROBOT = 5; //another robot for the fleet
+
+    //turns the tilt of the device into move commands
+    private final DriveCommandMapper mCommandMapper = new DriveCommandMapper();
+    //only lets commands through when they change or need a refresh
+    private final CommandEmitter mCommandEmitter = new CommandEmitter(mCommandMapper);
 
-    //header for message
-    //every message must have this heaader
-    private int HEADER = 'H';
+    //time from sensor sample to each stage of the command path
+    private final LatencyTracker mLatency = new LatencyTracker();
 
-    //message commands
-    private char MOVE = 'M';
-    private char  IR = 'I';
-    private char SONAR='S';
+    //commands are encoded into this buffer and written in one call
+    private final byte[] mCommandBuffer = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
 
-    //parameters for move commands
-    private char LEFT='L';
-    private char RIGHT='R';
-    private char FORWARD='F';
-    private char BACKWARD='B';
+    //polls of the robot's sensors, enough readings a second to drive by
+    private static final int TELEMETRY_HZ = 20;
+    private final TelemetryPoller mTelemetry = new TelemetryPoller(new CommandSink(){
+        @Override
+        public void write(byte[] out, int offset, int count, long timestamp){
+            BluetoothClientService service = mClientService;
+            if(service != null) service.write(out, offset, count, timestamp);
+        }
+    }, this);
+    private final Runnable mTelemetryTick = new Runnable(){
+        @Override
+        public void run(){
+            tickTelemetry();
+        }
+    };
+    //history of the readings, for charts and obstacle checks
+    private static final int SERIES_SONAR = 0;
+    private static final int SERIES_IR = 1;
+    private final TelemetryStore mTelemetryStore = new TelemetryStore(2);
+    private final TelemetryStore.Summary mRecentSonar = new TelemetryStore.Summary();
+    //how far back "closest" looks
+    private static final long RECENT_NANOS = 2000000000L;
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
+        AppLog.setSink(new AndroidLogSink());
         setContentView(R.layout.main);
         final ActionBar actionBar = getActionBar();
         
         mHandler = new UiHandler(this);
+        mUi = new UiUpdateStage(this, mHandler);
+
+        mTelemetry.schedule(CommandFrame.OP_SONAR, 0, TELEMETRY_HZ);
+        mTelemetry.schedule(CommandFrame.OP_IR, 0, TELEMETRY_HZ);
 
         if(actionBar == null){Log.e(TAG, "There is no ACTIONBAR");}
         actionBar.setDisplayShowTitleEnabled(false);
@@ -108,7 +153,11 @@ public class BTRobotRemoteActivity extends Activity
     public void setupBluetooth(){
         Log.d(TAG, "setupBluetooth()");
         // Initialize the BluetoothClient to perform bluetooth connections
-        if(mClientService == null) mClientService = new BluetoothClientService(this, mHandler);
+        if(mClientService == null){
+            DeviceIndex index = new DeviceIndex(this);
+            mClientService = new BluetoothClientService(new HandlerHost(mHandler), mLatency,
+                    new RfcommTransport(mBluetoothAdapter, index), index);
+        }
     }
 
     //called when application is first created and resuming from pause
@@ -131,6 +180,101 @@ public class BTRobotRemoteActivity extends Activity
         inflater.inflate(R.menu.main_menu, menu);
         return true;
     }
+    //called when an item in the Options Menu is selected
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item){
+        switch(item.getItemId()){
+        //start or stop recording raw sensor samples
+        case R.id.record:{
+            if(motionMonitor == null){
+                Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            if(item.isChecked()){
+                motionMonitor.stopRecording();
+                item.setChecked(false);
+            }
+            else if(motionMonitor.startRecording() != null){
+                item.setChecked(true);
+            }
+            return true;
+        }
+        //switch between four on/off directions and proportional throttle and steer
+        case R.id.proportional:{
+            boolean proportional = !item.isChecked();
+            mCommandMapper.setMode(proportional ? DriveCommandMapper.MODE_PROPORTIONAL
+                                                : DriveCommandMapper.MODE_DIRECTIONAL);
+            item.setChecked(proportional);
+            return true;
+        }
+        //connect one more robot, it gets the same commands as the first
+        case R.id.add_robot:{
+            if(mClientService == null){
+                Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            startActivityForResult(new Intent(this, DeviceListActivity.class), REQUEST_ADD_ROBOT);
+            return true;
+        }
+        //disconnect a robot of the fleet, its id is free again
+        case R.id.remove_robot:{
+            if(mClientService == null){
+                Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            showRemoveRobotDialog();
+            return true;
+        }
+        //write the latency histograms to a file
+        case R.id.dump_latency:{
+            File file = dumpLatency();
+            if(file != null){
+                Toast.makeText(this, "Latency written to " + file, Toast.LENGTH_LONG).show();
+            }
+            return true;
+        }
+        default:
+            return super.onOptionsItemSelected(item);
+        }
+    }
+    //dumps the latency histograms into a new file next to the sensor traces
+    //returns the file, or null if it could not be written
+    public File dumpLatency(){
+        File dir = getExternalFilesDir(null);
+        if(dir == null){dir = getFilesDir();}
+        File file = new File(dir, "latency-" + System.currentTimeMillis() + ".txt");
+        FileWriter out = null;
+        try{
+            out = new FileWriter(file);
+            mLatency.dump(out);
+            if(mClientService != null && mClientService.getFleetMask() != 0){
+                FanoutTracker fanout = mClientService.getFanout();
+                out.write("\nfleet count p50 p99 max\n");
+                writeSummary(out, "fanout", fanout.getFanout());
+                writeSummary(out, "spread", fanout.getSpread());
+                out.write("incomplete " + fanout.getIncompleteCount() + "\n");
+                out.flush();
+            }
+        }
+        catch(IOException e){
+            Log.e(TAG, "Unable to write latency to " + file, e);
+            return null;
+        }
+        finally{
+            if(out != null){
+                try{out.close();}
+                catch(IOException e){Log.e(TAG, "Unable to close " + file, e);}
+            }
+        }
+        return file;
+    }
+    private static void writeSummary(Writer out, String name, LatencyHistogram h) throws IOException{
+        out.write(name + " " + h.getCount() + " " + h.getPercentile(0.50)
+                  + " " + h.getPercentile(0.99) + " " + h.getMax() + "\n");
+    }
+    public LatencyTracker getLatencyTracker(){
+        return mLatency;
+    }
     //called when user is inactive from activity
     @Override
     public void onPause(){
@@ -144,19 +288,98 @@ public class BTRobotRemoteActivity extends Activity
     public void onStop(){
         super.onStop();
         Log.i(TAG, "-- ON STOP --");
+        stopTelemetry();
+        mUi.cancel();
         //stop bluetooth service
         if(mClientService != null)mClientService.stop(); mClientService = null;
 
     }
-    private void sendCommand(int command){
-        //not connected
-        if(mClientService.getState() != BluetoothClientService.STATE_CONNECTED)
-            return;
+    //sends the sensor polls that are due and comes back when more are
+    private void tickTelemetry(){
+        mHandler.removeCallbacks(mTelemetryTick);
+        long wait = mTelemetry.tick(System.nanoTime());
+        if(wait != Long.MAX_VALUE) mHandler.postDelayed(mTelemetryTick, Math.max(1, wait / 1000000L));
+    }
+    private void startTelemetry(){
+        mTelemetry.reset();
+        tickTelemetry();
+    }
+    private void stopTelemetry(){
+        mHandler.removeCallbacks(mTelemetryTick);
+        mTelemetry.reset();
+    }
+    //a frame from the robot, readings answer the sensor polls
+    public void onRobotFrame(int opcode, int arg, int payload, int seq){
+        //an answer frees room in the window, send what waits for it
+        if(mTelemetry.onFrame(opcode, arg, payload, seq, System.nanoTime())) tickTelemetry();
+    }
+    @Override
+    public void onIrReading(int channel, int level, long timestamp){
+        mTelemetryStore.record(SERIES_IR, timestamp, level);
+        showTelemetry();
+    }
+    @Override
+    public void onSonarReading(int channel, int distance, long timestamp){
+        mTelemetryStore.record(SERIES_SONAR, timestamp, distance);
+        showTelemetry();
+    }
+    @Override
+    public void onTimeout(int opcode, int channel, long timestamp){
+        Log.d(TAG, "no answer from " + (char) opcode + channel);
+        showTelemetry();
+    }
+    private void showTelemetry(){
+        TelemetryStore store = mTelemetryStore;
+        long now = System.nanoTime();
+        store.summarize(SERIES_SONAR, now - RECENT_NANOS, now, mRecentSonar);
+        mUi.setTelemetry(store.size(SERIES_SONAR, TelemetryStore.LEVEL_RAW) > 0
+                         ? (int) store.latest(SERIES_SONAR) : -1,
+                         mRecentSonar.count > 0 ? (int) mRecentSonar.min : -1,
+                         store.size(SERIES_IR, TelemetryStore.LEVEL_RAW) > 0
+                         ? (int) store.latest(SERIES_IR) : -1,
+                         mTelemetry.getTimeoutCount());
+    }
+    //history of the sonar and IR readings
+    public TelemetryStore getTelemetryStore(){
+        return mTelemetryStore;
     }
 
+  //lets the user pick a robot of the fleet to disconnect
+  private void showRemoveRobotDialog(){
+      final int[] ids = new int[FleetScheduler.MAX_LINKS];
+      String[] labels = new String[FleetScheduler.MAX_LINKS];
+      int n = 0;
+      for(int id = 0; id < FleetScheduler.MAX_LINKS; id++){
+          RobotLink link = mClientService.getRobot(id);
+          if(link == null) continue;
+          ids[n] = id;
+          labels[n] = "Robot " + (id + 1) + ": " + link.getAddress()
+                      + (link.getState() == RobotLink.STATE_CONNECTED ? "" : " (connecting)");
+          n++;
+      }
+      if(n == 0){
+          Toast.makeText(this, R.string.fleet_empty, Toast.LENGTH_SHORT).show();
+          return;
+      }
+      new AlertDialog.Builder(this)
+          .setTitle(R.string.remove_robot)
+          .setItems(Arrays.copyOf(labels, n), new DialogInterface.OnClickListener(){
+              @Override
+              public void onClick(DialogInterface dialog, int which){
+                  if(mClientService == null) return;
+                  mClientService.removeRobot(ids[which]);
+                  Toast.makeText(BTRobotRemoteActivity.this, "Robot " + (ids[which] + 1)
+                                 + " removed from the fleet", Toast.LENGTH_SHORT).show();
+              }
+          })
+          .show();
+  }
+
   //updates the oriention of the device based on data read from accelerometer
   //this is what highlights the buttons based rotation of phone
-  public  void updateOrientation(float [] data){
+  //timestamp is the time of the sensor sample, it travels with the commands
+  //runs on the motion pipeline thread, the commands never wait for the UI
+  public  void updateOrientation(float [] data, long timestamp){
      if(data == null){Log.e(TAG, "Failed type message data to float []"); return;}
      if(data.length != 3){Log.e(TAG, "updateOrientation data must have length of 3");return;}
 
@@ -164,47 +387,61 @@ public class BTRobotRemoteActivity extends Activity
      float  y = data[1];
      float  z = data[2];
 
-     //use this as the threshold for detecting direction
-     final float NEUTRAl = 0.01f;
-     final float THRESHOLD  = 0.10f;
-
-     //commands to send based on orientation
-     final String MOVE_FORWARD="HMF";
-     final String MOVE_BACKWARD="HMB";
-     final String MOVE_RIGHT="HMR";
-     final String MOVE_LEFT="HML";
-
-     String msg = "Accelerometer[x, y, z]: " + String.format("%.4f, %.4f, %.4f\n", x, y, z);
-     TextView stats = (TextView) findViewById(R.id.accel_stats);
-     stats.setText(msg);
-     //forward
-     if(y <= -(THRESHOLD)) {
-         findViewById(R.id.forward).setPressed(true);
-         mClientService.write(MOVE_FORWARD.getBytes());
+     //frames for every active direction are batched into one write
+     //unchanged commands are held back until the refresh interval
+     int len = mCommandEmitter.emit(x, y, timestamp, mCommandBuffer, 0);
+     int dirs = mCommandMapper.getDirections();
+     mLatency.record(LatencyTracker.STAGE_CLASSIFY, timestamp);
+
+     BluetoothClientService service = mClientService;
+     if(len > 0 && service != null){
+         service.write(mCommandBuffer, 0, len, timestamp);
+         //the fleet follows the same commands
+         service.broadcast(mCommandBuffer, 0, len);
      }
-     else{findViewById(R.id.forward).setPressed(false);}
 
-     //backward
-     if(y>=THRESHOLD){
-         findViewById(R.id.bottom).setPressed(true);
-         mClientService.write(MOVE_BACKWARD.getBytes());
+     //acceleration and the buttons for the active directions are shown
+     //with the next display frame
+     synchronized(mMotionLock){
+         mLatestAccel[0] = x;
+         mLatestAccel[1] = y;
+         mLatestAccel[2] = z;
+         mLatestDirections = dirs;
      }
-     else{findViewById(R.id.bottom).setPressed(false);}
-
-     //left
-     if(x >= THRESHOLD) {
-         findViewById(R.id.left).setPressed(true);
-         mClientService.write(MOVE_LEFT.getBytes());
-
-     }
-     else{findViewById(R.id.left).setPressed(false);}
-
-     //right
-     if(x<= -(THRESHOLD)) {
-         findViewById(R.id.right).setPressed(true);
-         mClientService.write(MOVE_RIGHT.getBytes());
-     }
-     else{findViewById(R.id.right).setPressed(false);}
+     postMotion();
+  }
+  //pipeline results, called on the motion pipeline thread
+  @Override
+  public void onAcceleration(float [] accel, long timestamp){
+      mLatency.record(LatencyTracker.STAGE_FILTER, timestamp);
+      updateOrientation(accel, timestamp);
+  }
+  @Override
+  public void onRotation(float [] rotation, long timestamp){
+      synchronized(mMotionLock){
+          System.arraycopy(rotation, 0, mLatestRotation, 0, 3);
+      }
+      postMotion();
+  }
+  //wake the UI thread unless a wake up is already on its way
+  private void postMotion(){
+      if(mMotionPending.compareAndSet(false, true)){
+          mHandler.obtainMessage(MESSAGE_MOTION).sendToTarget();
+      }
+  }
+  //puts the latest pipeline results on the screen, UI thread only
+  private void showMotion(){
+      //clear first, results after this point send a new message
+      mMotionPending.set(false);
+      int dirs;
+      synchronized(mMotionLock){
+          System.arraycopy(mLatestAccel, 0, mShownAccel, 0, 3);
+          System.arraycopy(mLatestRotation, 0, mShownRotation, 0, 3);
+          dirs = mLatestDirections;
+      }
+      mUi.setAcceleration(mShownAccel[0], mShownAccel[1], mShownAccel[2]);
+      mUi.setRotation(mShownRotation[0], mShownRotation[1], mShownRotation[2]);
+      mUi.setDirections(dirs);
   }
   //sets the status for bluetooth connection
   public void setStatus(int status){
@@ -217,8 +454,16 @@ public class BTRobotRemoteActivity extends Activity
                 statusButton.setBackgroundResource(R.drawable.connecting_button);
             break;
         }
+        //lost the connection, the service is retrying the same device
+        case BluetoothClientService.STATE_RECONNECTING:{
+                stopTelemetry();
+                ToggleButton statusButton  = (ToggleButton) this.findViewById(R.id.status_button);
+                statusButton.setBackgroundResource(R.drawable.connecting_button);
+            break;
+        }
         //not connected
         case BluetoothClientService.STATE_NONE:{
+                stopTelemetry();
                 Toast.makeText(this, "Unable to connect to remote device", Toast.LENGTH_SHORT).show();
                 ToggleButton statusButton  = (ToggleButton) this.findViewById(R.id.status_button);
                 statusButton.setBackgroundResource(R.drawable.disconnect_button);
@@ -233,8 +478,13 @@ public class BTRobotRemoteActivity extends Activity
                 statusButton.setBackgroundResource(R.drawable.connect_button);
                 statusButton.setTextOff(getString(R.string.connected));
                 statusButton.setChecked(true);
-                //start motion monitor
-                 motionMonitor = new MotionMonitor(this, mHandler);
+                startTelemetry();
+                //start motion monitor, a reconnect replaces the previous one
+                 if(motionMonitor != null){motionMonitor.stop();}
+                //the robot knows nothing yet, send the first command right away
+                //no pipeline thread is running, so the emitter is ours to reset
+                 mCommandEmitter.reset();
+                 motionMonitor = new MotionMonitor(this, this);
                  motionMonitor.start();
                 break;
         }
@@ -253,7 +503,7 @@ public class BTRobotRemoteActivity extends Activity
          Log.i(TAG, "-- ON STATUS CHECKED --");
             // Launch the DeviceListActivity to see devices and do scan
             Intent serverIntent = new Intent(this, DeviceListActivity.class);
-            startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_INSECURE);
+            startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
       }
       else{
           Log.i(TAG, "-- ON STATUS UNCHECKED --");
@@ -262,7 +512,8 @@ public class BTRobotRemoteActivity extends Activity
   }    
   //attempts a connection with remote device
   //data = contains information about device (Mac address mostly)
-   private void connectToDevice(Intent data, boolean secure){
+  //secure = socket type to use, null to let the service race both types
+   private void connectToDevice(Intent data, Boolean secure){
         Log.i(TAG, "-- connect to device --");
         if(data == null){Log.e(TAG, "data is null");}
         // Get the device MAC address
@@ -276,7 +527,8 @@ public class BTRobotRemoteActivity extends Activity
         Log.i(TAG, "-- connecting to device  to device --");
         // Attempt to connect to the device
         if(mClientService == null){Log.e(TAG, "bluetooth client service is null");}
-        mClientService.connect(device, secure);
+        if(secure == null){mClientService.connect(address, device.getName());}
+        else{mClientService.connect(address, device.getName(), secure);}
         Log.i(TAG,"-- after connection function");
     }
     //this method is called once an activity has returned
@@ -286,8 +538,24 @@ public class BTRobotRemoteActivity extends Activity
         
         Log.d(TAG, "onActivityResult " + resultCode);
         switch (requestCode) {
-        //for now, only dealiing with insecure connection
-        //i don't think its possible to have secure connections with a serial profile
+        //modules differ in which socket type works with the serial profile,
+        //so both are tried and the service remembers the winner per device
+        case REQUEST_CONNECT_DEVICE:
+               if(resultCode == Activity.RESULT_OK){
+                   setupBluetooth();//since BT is enabled, setup client service
+                   connectToDevice(data, null);
+                }
+               else
+                    setStatus(BluetoothClientService.STATE_NONE);
+            break;
+        case REQUEST_ADD_ROBOT:
+               if(resultCode == Activity.RESULT_OK && mClientService != null){
+                   String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                   if(mClientService.addRobot(address) < 0){
+                       Toast.makeText(this, R.string.fleet_full, Toast.LENGTH_SHORT).show();
+                   }
+               }
+            break;
         case REQUEST_CONNECT_DEVICE_INSECURE:
                if(resultCode == Activity.RESULT_OK){
                    setupBluetooth();//since BT is enabled, setup client service
@@ -343,40 +611,47 @@ public class BTRobotRemoteActivity extends Activity
             }
             //service wrote data 
             case BluetoothClientService.MESSAGE_WRITE:{
-                 //store data as a string
-                 String writeMessage = new String((byte[]) msg.obj);
+                 //arg1 holds the number of bytes written
                 break;
             }
-            //service read data
-            case BluetoothClientService.MESSAGE_READ:{
-                String readMessage = new String((byte[])msg.obj, 0, msg.arg1);
+            //service decoded a frame sent by the robot
+            case BluetoothClientService.MESSAGE_FRAME:{
+                activity.onRobotFrame(BluetoothClientService.frameOpcode(msg.arg1),
+                                      BluetoothClientService.frameArg(msg.arg1),
+                                      BluetoothClientService.framePayload(msg.arg2),
+                                      BluetoothClientService.frameSequence(msg.arg2));
+                break;
+            }
+            //a robot of the fleet connected or went away
+            case BluetoothClientService.MESSAGE_FLEET_STATE:{
+                if(msg.arg2 == RobotLink.STATE_CONNECTED){
+                    Toast.makeText(activity, "Robot " + (msg.arg1 + 1) + " joined the fleet",
+                                   Toast.LENGTH_SHORT).show();
+                }
+                else if(msg.arg2 == RobotLink.STATE_NONE){
+                    Toast.makeText(activity, "Robot " + (msg.arg1 + 1) + " left the fleet",
+                                   Toast.LENGTH_SHORT).show();
+                }
                 break;
             }
             //service retreived device's name
             case BluetoothClientService.MESSAGE_DEVICE_NAME:{
                 // save the connected device's name
-                activity.setDeviceName(msg.getData().getString(DEVICE_NAME));
+                activity.setDeviceName((String) msg.obj);
                 Toast.makeText(activity.getApplicationContext(), "Connected to "
                                + activity.getDeviceName(), Toast.LENGTH_SHORT).show();
                 break;
             }
-            //motion sensor
-            case MotionMonitor.MESSAGE_MOTION:{
-                 if(msg.arg1 == MotionMonitor.ARG_ACCEL){
-                     Bundle b = (Bundle) msg.obj;
-                     if(b == null){Log.e(TAG, "Failed to convert message object to bundle");}
-                     float [] data = b.getFloatArray(MotionMonitor.KEY_ACCEL);
-                     activity.updateOrientation(data);
-                 }
-                 else if(msg.arg1 == MotionMonitor.ARG_GYRO){
-                     Bundle b = (Bundle) msg.obj;
-                    if(b == null){Log.e(TAG, "Failed type message data to float []");}
-                    //set data in gyrostats view 
-                     float [] data = b.getFloatArray(MotionMonitor.KEY_ROTATE);
-                     TextView stats = (TextView) activity.findViewById(R.id.gyro_stats);
-                     stats.setText(String.format("%4f, %4f, %4f", data[0], data[1], data[2]));
-                 }
-                 else{Log.e(TAG, "Unsupported argument for MESSAGE_MOTION in handleMessage()");}
+            //service could not connect or reconnect
+            case BluetoothClientService.MESSAGE_TOAST:{
+                Toast.makeText(activity.getApplicationContext(), (String) msg.obj,
+                               Toast.LENGTH_SHORT).show();
+                break;
+            }
+            //the motion pipeline has new results to show
+            case MESSAGE_MOTION:{
+                 activity.showMotion();
+                 break;
             }
             //ignore other types
             default:{
@@ -0,0 +1,50 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff between reconnect attempts.
+ *
+ * The ceiling doubles with every attempt from the base up to the maximum,
+ * and each delay is drawn between half the ceiling and the ceiling
+ * ("equal jitter"). The first retry after a short dropout comes quickly,
+ * and several phones talking to robots in the same room do not retry in
+ * lock step.
+ */
+public class Backoff {
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom;
+    private int mAttempts;
+
+    public Backoff(long baseMillis, long maxMillis){
+        this(baseMillis, maxMillis, new Random());
+    }
+    //random is injectable so replays and tests are deterministic
+    public Backoff(long baseMillis, long maxMillis, Random random){
+        if(baseMillis <= 0 || maxMillis < baseMillis){
+            throw new IllegalArgumentException("bad backoff range " + baseMillis + ".." + maxMillis);
+        }
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mRandom = random;
+    }
+
+    /**
+     * Return the delay before the next attempt and count the attempt.
+     */
+    public synchronized long nextDelay(){
+        //stop shifting once past the maximum, so the ceiling cannot overflow
+        long ceiling = mAttempts < 32 ? Math.min(mMaxMillis, mBaseMillis << mAttempts) : mMaxMillis;
+        if(ceiling < mBaseMillis) ceiling = mMaxMillis;
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    //number of delays handed out since the last reset
+    public synchronized int getAttempts(){return mAttempts;}
+
+    //start again from the base delay, e.g. after a successful connection
+    public synchronized void reset(){mAttempts = 0;}
+}
@@ -3,64 +3,129 @@ package edu.esu.spacesys.btrobotremote;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
-
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connection with  a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread each for receiving and sending data when connected.
+ *
+ * Connections are made through a Transport, RFCOMM on the phone. The
+ * service itself has no Android dependencies: messages for the UI and
+ * delayed reconnects go through a Host, logging through AppLog, so
+ * LinkSoakTest runs the same threads against SimulatedRobots on any JVM.
+ *
+ * Fleet mode adds up to FleetScheduler.MAX_LINKS more robots next to the
+ * main connection. Each has its own thread connecting and then reading,
+ * and its own RobotLink queue; one FleetScheduler thread writes to all
+ * of them. Commands reach them through unicast(), multicast() and
+ * broadcast().
  */
-public class BluetoothClientService {
+public class BluetoothClientService implements CommandSink {
     // Debugging
     private static final String TAG = "BluetoothClientService";
     private static final boolean D = true;
 
-
-    // Unique UUID for serial applications
-    private static final UUID MY_UUID =
-        UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-        
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Transport mTransport;
+    private final Host mHost;
+    private final LatencyTracker mLatency;
     private ConnectThread mConnectThread;
+    private ConnectThread mRivalThread;   // other socket type while racing
     private ConnectedThread mConnectedThread;
+    private WriterThread mWriterThread;
     private int mState;
 
+    // Buffers handed to the RawConsumer, only leased while one is set
+    private static final int RECEIVE_BUFFERS = 8;
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    private final ReceiveBufferPool mReceivePool =
+        new ReceiveBufferPool(RECEIVE_BUFFERS, RECEIVE_BUFFER_SIZE);
+    private volatile RawConsumer mRawConsumer;
+
+    // Pacing of the write path, in bytes per second of the robot's serial link
+    public static final int DEFAULT_LINK_RATE = 960;  // 9600 baud, 10 bits per byte
+    private static final int MIN_LINK_RATE = 120;     // never pace below 15 frames a second
+    private static final int LINK_BURST = 64;         // receive buffer of the robot's UART
+    private volatile int mLinkRate = DEFAULT_LINK_RATE;
+    private volatile int mDropPolicy = OutboundQueue.DROP_NEWEST;
+
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_RECONNECTING = 4; // lost the connection, retrying the same device
+
+    // Reconnecting after a lost connection
+    private static final int MAX_RECONNECT_ATTEMPTS = 12;
+    private final ConnectHistory mHistory;
+    private final Backoff mBackoff = new Backoff(250, 8000);
+    private boolean mAutoReconnect = true;
+    private String mAddress;               // device of the last connect()
+    private String mName;
+    private int mSocketType;               // ConnectHistory.SOCKET_ asked for by the last connect()
+    private boolean mReconnecting;         // lost the connection and trying to get it back
+    private long mLostAt;                  // nanoTime of the drop
+    private long mLastReconnectMillis = -1;
+    private int mReconnects;
+    // Fleet mode, links are created on demand
+    private final RobotLink[] mFleet = new RobotLink[FleetScheduler.MAX_LINKS];
+    private final FleetLinkThread[] mFleetThreads = new FleetLinkThread[FleetScheduler.MAX_LINKS];
+    private final FanoutTracker mFanout = new FanoutTracker();
+    private FleetScheduler mScheduler;
+
+    private final Runnable mReconnect = new Runnable() {
+        public void run() {
+            reconnect();
+        }
+    };
 
 
     //type of messages to be sent to handler
     public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_DEVICE_NAME = 4;
-    public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_DEVICE_NAME = 4; // obj is the name
+    public static final int MESSAGE_TOAST = 5;       // obj is the text
+    public static final int MESSAGE_FRAME = 6;
+    public static final int MESSAGE_FLEET_STATE = 7; // arg1 is the link id, arg2 its state
+
+    /**
+     * What the service needs from the platform it runs on. On the phone
+     * a HandlerHost around the UI Activity's Handler.
+     */
+    public interface Host {
+        // deliver one of the MESSAGE_ types, from any thread
+        void sendMessage(int what, int arg1, int arg2, Object obj);
+        // run task after delayMillis, or not at all once removed
+        void postDelayed(Runnable task, long delayMillis);
+        void removeCallbacks(Runnable task);
+        // cpu time used by the calling thread so far
+        long threadCpuTimeNanos();
+    }
+
+    /**
+     * Receives the raw bytes read on the main connection, next to the
+     * decoded MESSAGE_FRAMEs, e.g. to log the link. Called on the reader
+     * thread: the consumer owns the buffer from then on and must
+     * release() it, on any thread, when done with it.
+     */
+    public interface RawConsumer {
+        void onReceive(ReceiveBufferPool.Buffer buffer);
+    }
 
-    //keys to retrieve data from bundle
-    public static final String DEVICE = "device_name";
-    public static final String TOAST = "toast";
     /**
      * Constructor. Prepares a new BluetoothChat session.
-     * @param context  The UI Activity Context
-     * @param handler  A Handler to send messages back to the UI Activity
+     * @param host  Receives the messages for the UI and runs the reconnects
+     * @param latency  Receives the enqueue and write latency of commands
+     * @param transport  How robots are reached, e.g. an RfcommTransport
+     * @param history  Remembers which socket type works for a device
      */
-    public BluetoothClientService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
+    public BluetoothClientService(Host host, LatencyTracker latency, Transport transport,
+            ConnectHistory history) {
         mState = STATE_NONE;
-        mHandler = handler;
+        mHost = host;
+        mLatency = latency;
+        mHistory = history;
+        mTransport = transport;
     }
 
     /**
@@ -68,11 +133,11 @@ public class BluetoothClientService {
      * @param state  An integer defining the current connection state
      */
     private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
+        if (D) AppLog.d(TAG, "setState() " + mState + " -> " + state);
         mState = state;
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        // Give the new state to the Host so the UI Activity can update
+        mHost.sendMessage(MESSAGE_STATE_CHANGE, state, -1, null);
     }
     /**
      * Return the current connection state. */
@@ -82,52 +147,202 @@ public class BluetoothClientService {
 
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
-     * @param device  The BluetoothDevice to connect
+     * @param address  The address of the device, e.g. its Bluetooth MAC address
+     * @param name  Reported with MESSAGE_DEVICE_NAME once connected
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        if (D) Log.d(TAG, "connect to: " + device);
+    public synchronized void connect(String address, String name, boolean secure) {
+        connect(address, name, secure ? ConnectHistory.SOCKET_SECURE : ConnectHistory.SOCKET_INSECURE);
+    }
+    /**
+     * Connect with the socket type that worked last time for this device.
+     * If there is none, race a secure and an insecure attempt and keep
+     * whichever connects first.
+     * @param address  The address of the device, e.g. its Bluetooth MAC address
+     * @param name  Reported with MESSAGE_DEVICE_NAME once connected
+     */
+    public synchronized void connect(String address, String name) {
+        connect(address, name, ConnectHistory.SOCKET_UNKNOWN);
+    }
+    /**
+     * Connect to an address of the service's transport, e.g. host:port of
+     * a SimulatedRobot when running over TCP.
+     * @param address  The address to connect to
+     */
+    public synchronized void connect(String address) {
+        connect(address, address, ConnectHistory.SOCKET_UNKNOWN);
+    }
+    private synchronized void connect(String address, String name, int socketType) {
+        if (D) AppLog.d(TAG, "connect to: " + address);
 
+        // A connection picked by the user replaces any pending reconnect
+        cancelReconnect();
+        mAddress = address;
+        mName = name;
+        mSocketType = socketType;
+        startConnect(address, socketType);
+        setState(STATE_CONNECTING);
+    }
+
+    /**
+     * Cancel running connections and start the ConnectThreads, without
+     * changing the state.
+     */
+    private synchronized void startConnect(String address, int socketType) {
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-        }
+        cancelConnectThreads();
 
         // Cancel any thread currently running a connection
         if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        if (mWriterThread != null) {mWriterThread.cancel(); mWriterThread = null;}
+
+        // Go straight to the type that won before, if any
+        if (socketType == ConnectHistory.SOCKET_UNKNOWN) {
+            socketType = mHistory.getSocketType(address);
+        }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
+        if (socketType == ConnectHistory.SOCKET_UNKNOWN) {
+            mConnectThread = new ConnectThread(address, true, true);
+            mRivalThread = new ConnectThread(address, false, true);
+            mRivalThread.start();
+        } else {
+            mConnectThread = new ConnectThread(address, socketType == ConnectHistory.SOCKET_SECURE, false);
+        }
         mConnectThread.start();
-        setState(STATE_CONNECTING);
+    }
+
+    private synchronized void cancelConnectThreads() {
+        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        if (mRivalThread != null) {mRivalThread.cancel(); mRivalThread = null;}
+    }
+
+    /**
+     * Called by a ConnectThread that has a connected socket. The first
+     * one wins and the other attempt is canceled.
+     * @return false if the connection is not wanted anymore
+     */
+    private synchronized boolean claimConnection(ConnectThread thread) {
+        if (thread != mConnectThread && thread != mRivalThread) return false;
+        ConnectThread loser = thread == mConnectThread ? mRivalThread : mConnectThread;
+        if (loser != null) loser.cancel();
+        mConnectThread = null;
+        mRivalThread = null;
+        if (thread.mmRace) {
+            mHistory.putSocketType(thread.mmAddress,
+                    thread.mmSecure ? ConnectHistory.SOCKET_SECURE : ConnectHistory.SOCKET_INSECURE);
+        }
+        return true;
+    }
+
+    /**
+     * Called by a ConnectThread whose attempt failed.
+     * @return true once no attempt is left running
+     */
+    private synchronized boolean attemptFailed(ConnectThread thread) {
+        if (thread == mConnectThread) mConnectThread = null;
+        else if (thread == mRivalThread) mRivalThread = null;
+        else return false; // canceled, nobody is waiting for it
+
+        // a type that won before stopped working, race again next time
+        if (!thread.mmRace && mSocketType == ConnectHistory.SOCKET_UNKNOWN) {
+            mHistory.forgetSocketType(thread.mmAddress);
+        }
+        return mConnectThread == null && mRivalThread == null;
+    }
+
+    /**
+     * Try the last device again, called after the backoff delay.
+     */
+    private synchronized void reconnect() {
+        if (!mReconnecting) return; // stopped or connected meanwhile
+        if (D) AppLog.d(TAG, "reconnect attempt " + mBackoff.getAttempts() + " to " + mAddress);
+        startConnect(mAddress, mSocketType);
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (mBackoff.getAttempts() >= MAX_RECONNECT_ATTEMPTS) {
+            mReconnecting = false;
+            sendToast("Unable to reconnect to device");
+            setState(STATE_NONE);
+            return;
+        }
+        mHost.postDelayed(mReconnect, mBackoff.nextDelay());
+    }
+
+    private synchronized void cancelReconnect() {
+        mHost.removeCallbacks(mReconnect);
+        mReconnecting = false;
+    }
+
+    /**
+     * Reconnect automatically to the same device when the connection drops.
+     * On by default. */
+    public synchronized void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+        if (!autoReconnect && mReconnecting) {
+            cancelReconnect();
+            setState(STATE_NONE);
+        }
+    }
+    /**
+     * Return how long the last automatic reconnect took, -1 if there was none. */
+    public synchronized long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+    /**
+     * Return the number of successful automatic reconnects. */
+    public synchronized int getReconnectCount() {
+        return mReconnects;
+    }
+    /**
+     * Return what is remembered about devices we connected to. */
+    public ConnectHistory getConnectHistory() {
+        return mHistory;
     }
 
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * @param connection  The connected Transport.Connection
+     * @param address  The address of the device that has been connected
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    private synchronized void connected(Transport.Connection connection, String address,
+            final String socketType) {
+        if (D) AppLog.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        // Cancel the threads that were trying to connect
+        cancelConnectThreads();
 
         // Cancel any thread currently running a connection
         if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        if (mWriterThread != null) {mWriterThread.cancel(); mWriterThread = null;}
 
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(connection, socketType);
         mConnectedThread.start();
 
+        // Start the thread that drains the outbound queue into the socket
+        mWriterThread = new WriterThread(mConnectedThread.getOutputStream(), mLinkRate);
+        mWriterThread.mmQueue.setDropPolicy(mDropPolicy);
+        mWriterThread.start();
+
+        // Measure how long the link was down
+        if (mReconnecting) {
+            mLastReconnectMillis = (System.nanoTime() - mLostAt) / 1000000L;
+            mReconnects++;
+            mReconnecting = false;
+            AppLog.i(TAG, "Reconnected after " + mBackoff.getAttempts() + " attempts in "
+                  + mLastReconnectMillis + " ms");
+            sendToast("Reconnected in " + mLastReconnectMillis + " ms");
+        } else {
+            mHistory.recordAttempt(address, true);
+        }
+        mBackoff.reset();
+        mHistory.setLastAddress(address);
+
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(DEVICE, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mHost.sendMessage(MESSAGE_DEVICE_NAME, -1, -1, mName);
 
         setState(STATE_CONNECTED);
     }
@@ -136,66 +351,320 @@ public class BluetoothClientService {
      * Stop all threads
      */
     public synchronized void stop() {
-        if (D) Log.d(TAG, "stop");
+        if (D) AppLog.d(TAG, "stop");
+        cancelReconnect();
+        stopFleet();
 
-        //destroy connect thread
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        //destroy connect threads
+        cancelConnectThreads();
         //destroy connected thread
         if (mConnectedThread != null) {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        //destroy writer thread
+        if (mWriterThread != null) {
+            mWriterThread.cancel();
+            mWriterThread = null;
+        }
         setState(STATE_NONE);
     }
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue command frames for the WriterThread
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see #write(byte[], int, int, long)
      */
     public void write(byte[] out) {
+        write(out, 0, out.length, 0);
+    }
+    /**
+     * Queue command frames for the WriterThread. Never blocks: the frames
+     * are copied, so callers can reuse the buffer for the next batch.
+     * Movement frames for the same channel replace each other until sent.
+     * @param out    The bytes to write, a whole number of frames
+     * @param offset Index of the first byte to write
+     * @param count  Number of bytes to write
+     * @param timestamp SensorEvent.timestamp of the sample behind the frames,
+     *                  0 if they do not come from a sample
+     * @see OutboundQueue#offer(byte[], int, long)
+     */
+    @Override
+    public void write(byte[] out, int offset, int count, long timestamp) {
         // Create temporary object
-        ConnectedThread r;
-        
-        // Synchronize a copy of the ConnectedThread
+        WriterThread r;
+
+        // Synchronize a copy of the WriterThread
         synchronized (this) {
             if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            r = mWriterThread;
+        }
+        if (count % CommandFrame.FRAME_SIZE != 0) {
+            AppLog.e(TAG, "write() count is not a whole number of frames: " + count);
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        // Queue the frames unsynchronized
+        final int end = offset + count - CommandFrame.FRAME_SIZE;
+        for (int i = offset; i <= end; i += CommandFrame.FRAME_SIZE) {
+            r.mmQueue.offer(out, i, timestamp);
+        }
+        mLatency.record(LatencyTracker.STAGE_ENQUEUE, timestamp);
+    }
+
+    //MESSAGE_FRAME carries opcode and arg in arg1, payload and sequence in arg2
+    static int packFrameArg1(int opcode, int arg) {
+        return (opcode << 8) | (arg & 0xFF);
+    }
+    static int packFrameArg2(int payload, int seq) {
+        return (payload << 16) | (seq & CommandFrame.SEQUENCE_MASK);
+    }
+    public static int frameOpcode(int arg1) {return (arg1 >> 8) & 0xFF;}
+    public static int frameArg(int arg1) {return arg1 & 0xFF;}
+    public static int framePayload(int arg2) {return arg2 >> 16;}
+    public static int frameSequence(int arg2) {return arg2 & CommandFrame.SEQUENCE_MASK;}
+
+    /**
+     * Return the number of bytes received on the current connection. */
+    public synchronized long getBytesReceived() {
+        return mConnectedThread == null ? 0 : mConnectedThread.mmBytesRead;
+    }
+    /**
+     * Set the throughput of the link to the robot. Writes are paced to
+     * this rate, or lower if the link turns out to be slower.
+     * @param bytesPerSecond  e.g. baud / 10 for a serial module */
+    public void setLinkRate(int bytesPerSecond) {
+        if (bytesPerSecond < MIN_LINK_RATE) bytesPerSecond = MIN_LINK_RATE;
+        mLinkRate = bytesPerSecond;
+        WriterThread r;
+        synchronized (this) {r = mWriterThread;}
+        if (r != null) r.mmCeiling = bytesPerSecond;
+    }
+    /**
+     * Set what happens to in order frames when the link cannot keep up.
+     * @param policy  OutboundQueue.DROP_NEWEST or OutboundQueue.DROP_OLDEST */
+    public void setDropPolicy(int policy) {
+        WriterThread r;
+        synchronized (this) {
+            mDropPolicy = policy;
+            r = mWriterThread;
+        }
+        if (r != null) r.mmQueue.setDropPolicy(policy);
+    }
+    /**
+     * Return true while commands are produced faster than the link takes
+     * them. Producers should slow down or expect frames to be replaced. */
+    public boolean isCongested() {
+        WriterThread r;
+        synchronized (this) {r = mWriterThread;}
+        return r != null && (r.mmWaiting || r.mmQueue.size() > OutboundQueue.FIFO_FRAMES / 2);
+    }
+    /**
+     * Return the rate writes are currently paced to, in bytes per second. */
+    public synchronized double getPacedRate() {
+        return mWriterThread == null ? mLinkRate : mWriterThread.mmBucket.getRate();
+    }
+    /**
+     * Return how often the writer waited for the pacer on the current connection. */
+    public synchronized long getThrottledCount() {
+        return mWriterThread == null ? 0 : mWriterThread.mmThrottled;
+    }
+    /**
+     * Return the number of in order frames dropped on the current connection. */
+    public synchronized long getDroppedCount() {
+        return mWriterThread == null ? 0 : mWriterThread.mmQueue.getDroppedCount();
+    }
+    /**
+     * Return the number of movement frames replaced by a newer one before
+     * they were sent, on the current connection. */
+    public synchronized long getCoalescedCount() {
+        return mWriterThread == null ? 0 : mWriterThread.mmQueue.getCoalescedCount();
+    }
+    /**
+     * Return the tracker receiving the latency of commands. */
+    public LatencyTracker getLatencyTracker() {
+        return mLatency;
+    }
+    /**
+     * Hand the raw bytes of every read to consumer, null to stop. Reads
+     * only lease a buffer while a consumer is set; when it holds every
+     * buffer the bytes are still decoded but not handed to it. */
+    public void setRawConsumer(RawConsumer consumer) {
+        mRawConsumer = consumer;
+    }
+    /**
+     * Return the pool of buffers handed to the RawConsumer.
+     * Its counters show how often the consumer fell behind. */
+    public ReceiveBufferPool getReceivePool() {
+        return mReceivePool;
+    }
+    /**
+     * Return the number of valid frames received on the current connection. */
+    public synchronized long getFramesReceived() {
+        return mConnectedThread == null ? 0 : mConnectedThread.mmDecoder.getFrameCount();
+    }
+    /**
+     * Return the cpu time spent by the reader on the current connection.
+     * Divide by getBytesReceived() for the cost of an inbound byte. */
+    public synchronized long getReaderCpuNanos() {
+        return mConnectedThread == null ? 0 : mConnectedThread.mmCpuNanos;
+    }
+
+    /**
+     * Connect to one more robot of the fleet, next to the main connection,
+     * at an address of the service's transport. Its state changes are
+     * reported with MESSAGE_FLEET_STATE. A robot that is in the fleet already keeps
+     * its id and is not connected twice.
+     * @return the link id, -1 if the fleet is full
+     */
+    public synchronized int addRobot(String address) {
+        for (int id = 0; id < FleetScheduler.MAX_LINKS; id++) {
+            if (mFleet[id] != null && mFleet[id].getAddress().equals(address)) return id;
+        }
+        int id = 0;
+        while (id < FleetScheduler.MAX_LINKS && mFleet[id] != null) id++;
+        if (id == FleetScheduler.MAX_LINKS) return -1;
+
+        if (mScheduler == null) {
+            mScheduler = new FleetScheduler(mFanout, new FleetScheduler.Listener() {
+                public void onWriteFailed(RobotLink link, IOException e) {
+                    // the link's reader notices the lost connection
+                    AppLog.e(TAG, "Exception during fleet write to " + link.getAddress(), e);
+                }
+            });
+            mScheduler.start();
+        }
+        RobotLink link = new RobotLink(id, address, mLinkRate);
+        mFleet[id] = link;
+        mFleetThreads[id] = new FleetLinkThread(link);
+        mFleetThreads[id].start();
+        setFleetState(link, RobotLink.STATE_CONNECTING);
+        return id;
+    }
+
+    /**
+     * Disconnect a robot of the fleet and free its id.
+     */
+    public synchronized void removeRobot(int id) {
+        if (id < 0 || id >= FleetScheduler.MAX_LINKS || mFleet[id] == null) return;
+        // canceled first, the thread checks under this lock before it attaches
+        mFleetThreads[id].cancel();
+        mFleetThreads[id] = null;
+        mScheduler.detach(id);
+        mFleet[id].detach();
+        mFleet[id] = null;
+    }
+
+    private synchronized void stopFleet() {
+        for (int id = 0; id < FleetScheduler.MAX_LINKS; id++) removeRobot(id);
+        if (mScheduler != null) {
+            mScheduler.cancel();
+            mScheduler = null;
+        }
+    }
+
+    private void setFleetState(RobotLink link, int state) {
+        link.setState(state);
+        mHost.sendMessage(MESSAGE_FLEET_STATE, link.getId(), state, null);
+    }
+
+    /**
+     * Return a robot of the fleet, null if the id is free. */
+    public synchronized RobotLink getRobot(int id) {
+        return mFleet[id];
+    }
+    /**
+     * Return the ids of the connected robots of the fleet, as a bit mask. */
+    public synchronized int getFleetMask() {
+        int mask = 0;
+        for (int id = 0; id < FleetScheduler.MAX_LINKS; id++) {
+            if (mFleet[id] != null && mFleet[id].getState() == RobotLink.STATE_CONNECTED) mask |= 1 << id;
+        }
+        return mask;
+    }
+    /**
+     * Return the time commands take to reach every robot they were sent to. */
+    public FanoutTracker getFanout() {
+        return mFanout;
+    }
+
+    /**
+     * Queue command frames for one robot of the fleet.
+     * @see #multicast(int, byte[], int, int)
+     */
+    public void unicast(int id, byte[] out, int offset, int count) {
+        multicast(1 << id, out, offset, count);
+    }
+    /**
+     * Queue the same command frames for every connected robot of the fleet.
+     * @see #multicast(int, byte[], int, int)
+     */
+    public void broadcast(byte[] out, int offset, int count) {
+        multicast(getFleetMask(), out, offset, count);
+    }
+    /**
+     * Queue the same command frames for the robots in mask. Never blocks,
+     * each robot gets its own copy. The time until the last of them has
+     * written the frames goes to getFanout().
+     * @param mask  bit i selects the robot with link id i
+     * @return the mask of robots the frames were queued for
+     */
+    public int multicast(int mask, byte[] out, int offset, int count) {
+        FleetScheduler scheduler;
+        RobotLink[] links = mFleet;
+        synchronized (this) {scheduler = mScheduler;}
+        if (scheduler == null) return 0;
+
+        final long stamp = System.nanoTime();
+        int queued = 0;
+        for (int id = 0; id < FleetScheduler.MAX_LINKS; id++) {
+            if ((mask & (1 << id)) == 0) continue;
+            RobotLink link;
+            synchronized (this) {link = links[id];}
+            if (link != null && link.offer(out, offset, count, stamp)) queued |= 1 << id;
+        }
+        mFanout.begin(stamp, queued);
+        scheduler.signal();
+        return queued;
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
+    private synchronized void connectionFailed() {
+        // A failed reconnect attempt just waits for the next one
+        if (mReconnecting) {
+            scheduleReconnect();
+            return;
+        }
+        if (mAddress != null) mHistory.recordAttempt(mAddress, false);
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(TOAST, "Unable to connect to device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        sendToast("Unable to connect to device");
 
         setState(STATE_NONE);
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     * Starts reconnecting to the same device if enabled.
      */
-    private void connectionLost() {
+    private synchronized void connectionLost() {
+        if (mAutoReconnect && mAddress != null) {
+            sendToast("Device connection was lost, reconnecting");
+            mReconnecting = true;
+            mLostAt = System.nanoTime();
+            mBackoff.reset();
+            setState(STATE_RECONNECTING);
+            scheduleReconnect();
+            return;
+        }
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        sendToast("Device connection was lost");
         
         setState(STATE_NONE);
     }
 
+    private void sendToast(String text) {
+        mHost.sendMessage(MESSAGE_TOAST, -1, -1, text);
+    }
 
     /**
      * This thread runs while attempting to make an outgoing connection
@@ -203,164 +672,372 @@ public class BluetoothClientService {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final String mmAddress;
+        private final boolean mmSecure;
+        private final boolean mmRace;   // racing the other socket type
         private String mSocketType;
+        private volatile Transport.Connection mmConnection;
+        private volatile boolean mmCanceled;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address, boolean secure, boolean race) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmRace = race;
             mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-            	if(secure){
-                    tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-            	}
-            	else{
-            		tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
-            		
-            	}
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = tmp;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
+            AppLog.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
             setName("ConnectThread" + mSocketType);
-            
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the device
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            Transport.Connection connection = null;
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
+                connection = mTransport.open(mmAddress, mmSecure);
+                mmConnection = connection;
+                if (mmCanceled) throw new IOException("canceled");
+                connection.connect();
             } catch (IOException e) {
-                // Close the socket
-                try {
-                	Log.e(TAG, "Unable to connect to socket", e);
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
-                }
-                connectionFailed();
+                AppLog.e(TAG, "Unable to connect " + mSocketType + " socket", e);
+                close(connection);
+                // only the last attempt standing reports the failure
+                if (attemptFailed(this)) connectionFailed();
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            // Keep the connection only if the other attempt has not won
+            // already. The claim and connected() run under the same lock,
+            // so a stop() in between cannot be missed
             synchronized (BluetoothClientService.this) {
-                mConnectThread = null;
+                if (!mmCanceled && claimConnection(this)) {
+                    // Start the connected thread
+                    connected(connection, mmAddress, mSocketType);
+                    return;
+                }
             }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            close(connection);
         }
 
-        public void cancel() {
+        private void close(Transport.Connection connection) {
+            if (connection == null) return;
             try {
-                mmSocket.close();
+                connection.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                AppLog.e(TAG, "close() of " + mSocketType + " socket failed", e);
             }
         }
+
+        public void cancel() {
+            mmCanceled = true;
+            close(mmConnection);
+        }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions; outgoing ones go through
+     * the WriterThread.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread implements FrameDecoder.Listener {
+        private final Transport.Connection mmConnection;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final FrameDecoder mmDecoder = new FrameDecoder(this);
+        private volatile boolean mmCanceled;
+
+        //statistics, written by this thread only
+        private volatile long mmBytesRead;
+        private volatile long mmCpuNanos;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
+        public ConnectedThread(Transport.Connection connection, String socketType) {
+            AppLog.d(TAG, "create ConnectedThread: " + socketType);
+            mmConnection = connection;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the connection's input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = connection.getInputStream();
+                tmpOut = connection.getOutputStream();
             } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+                AppLog.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
         }
 
+        public OutputStream getOutputStream() {
+            return mmOutStream;
+        }
+
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
+            AppLog.i(TAG, "BEGIN mConnectedThread");
             setName("ConnectedThread");
-            final int BUFFERSIZE = 1024;
-            byte[] buffer = new byte[BUFFERSIZE];
+            //read into here when every pooled buffer is out
+            final byte[] scratch = new byte[RECEIVE_BUFFER_SIZE];
             int bytes;
-            
-            //lost connection
-            boolean connected = mmSocket.isConnected();
-            if(!connected){
-                Log.e(TAG, "peer disconnected from socket");
-                connectionLost();
-            }
+
+            //cpu time is counted from here so it can be divided by bytes read
+            final long cpuStart = mHost.threadCpuTimeNanos();
 
             // Keep listening to the InputStream while connected
             while (true) {
+                // Lease a buffer for the raw bytes if someone wants them,
+                // it is ours until handed off
+                final RawConsumer consumer = mRawConsumer;
+                ReceiveBufferPool.Buffer leased = consumer != null ? mReceivePool.lease() : null;
+                byte[] buffer = leased != null ? leased.data : scratch;
                 try {
-                    connected = mmSocket.isConnected();
-
-                	int available = mmInStream.available();
-                	if(available > 0){
-	                    // Read from the InputStream
-	                    bytes = mmInStream.read(buffer, 0, BUFFERSIZE);
-	                    
-                        //send message read from stream to handler
-	                    Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-	                    Bundle bundle = new Bundle();
-	                    bundle.putByteArray(TOAST, buffer);
-	                    msg.setData(bundle);
-	                    mHandler.sendMessage(msg);
-                	}
+                    // Read from the InputStream
+                    // This is a blocking call, the thread sleeps until data arrives
+                    bytes = mmInStream.read(buffer, 0, buffer.length);
+                    if (bytes < 0) {
+                        if (leased != null) leased.release();
+                        AppLog.e(TAG, "peer disconnected from socket");
+                        if (!mmCanceled) connectionLost();
+                        break;
+                    }
+
+                    // Frames can span reads, the decoder keeps the partial one
+                    mmDecoder.feed(buffer, 0, bytes);
+
+                    mmBytesRead += bytes;
+                    mmCpuNanos = mHost.threadCpuTimeNanos() - cpuStart;
+
+                    // Hand the raw bytes off. The consumer owns the buffer now
+                    // and must release() it
+                    if (leased != null) {
+                        leased.length = bytes;
+                        consumer.onReceive(leased);
+                    }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    if (leased != null) leased.release();
+                    AppLog.e(TAG, "disconnected", e);
+                    if (!mmCanceled) connectionLost();
                     break;
                 }
             }
         }
+
         /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
+         * Called by the decoder for every complete frame.
+         * The frame is packed into the message arguments so nothing
+         * is allocated per frame.
          */
-        public void write(byte[] buffer) {
-        	//check if it is connected
-        	boolean connected = mmSocket.isConnected();
-        	Log.i(TAG, "Attemping to write to socket, " + connected);
+        @Override
+        public void onFrame(int opcode, int arg, int payload, int seq) {
+            mHost.sendMessage(MESSAGE_FRAME, packFrameArg1(opcode, arg),
+                    packFrameArg2(payload, seq), null);
+        }
+
+        public void cancel() {
+            // closing the socket ends the read, which is not a lost connection
+            mmCanceled = true;
             try {
-                mmOutStream.write(buffer);
+                mmConnection.close();
+            } catch (IOException e) {
+                AppLog.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+    /**
+     * Connects one robot of the fleet, then reads from it until the
+     * connection ends. Writes go through the FleetScheduler.
+     * Replies are decoded and counted; nothing consumes them yet.
+     */
+    private class FleetLinkThread extends Thread implements FrameDecoder.Listener {
+        private final RobotLink mmLink;
+        private final FrameDecoder mmDecoder = new FrameDecoder(this);
+        private volatile Transport.Connection mmConnection;
+        private volatile boolean mmCanceled;
+
+        public FleetLinkThread(RobotLink link) {
+            mmLink = link;
+            setName("FleetLinkThread" + link.getId());
+        }
+
+        public void run() {
+            final String address = mmLink.getAddress();
+            AppLog.i(TAG, "BEGIN fleet link " + mmLink.getId() + " to " + address);
+
+            // Use the socket type that won before, no race here.
+            // Serial modules mostly take insecure sockets, so that is the default
+            final boolean secure = mHistory.getSocketType(address) == ConnectHistory.SOCKET_SECURE;
+            InputStream in;
+            OutputStream out;
+            try {
+                mmConnection = mTransport.open(address, secure);
+                if (mmCanceled) throw new IOException("canceled");
+                mmConnection.connect();
+                in = mmConnection.getInputStream();
+                out = mmConnection.getOutputStream();
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                AppLog.e(TAG, "Unable to connect fleet link " + mmLink.getId(), e);
+                close();
+                if (!mmCanceled) linkEnded();
+                return;
+            }
+
+            // removeRobot() may have run meanwhile, a removed link must stay detached
+            synchronized (BluetoothClientService.this) {
+                if (mmCanceled) {
+                    close();
+                    return;
+                }
+                mmLink.attach(out);
+                mScheduler.attach(mmLink);
+            }
+            setFleetState(mmLink, RobotLink.STATE_CONNECTED);
+
+            final byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+            while (true) {
+                try {
+                    int bytes = in.read(buffer, 0, buffer.length);
+                    if (bytes < 0) break;
+                    mmDecoder.feed(buffer, 0, bytes);
+                } catch (IOException e) {
+                    AppLog.e(TAG, "fleet link " + mmLink.getId() + " disconnected", e);
+                    break;
+                }
             }
+            close();
+            if (!mmCanceled) linkEnded();
         }
+
+        // the robot went away or never connected, free its id for the next one
+        private void linkEnded() {
+            final int id = mmLink.getId();
+            synchronized (BluetoothClientService.this) {
+                if (mScheduler != null) mScheduler.detach(id);
+                if (mFleet[id] == mmLink) {
+                    mFleet[id] = null;
+                    mFleetThreads[id] = null;
+                }
+            }
+            mmLink.detach();
+            setFleetState(mmLink, RobotLink.STATE_NONE);
+        }
+
+        @Override
+        public void onFrame(int opcode, int arg, int payload, int seq) {
+        }
+
         public void cancel() {
+            mmCanceled = true;
+            close();
+        }
+
+        private void close() {
+            Transport.Connection connection = mmConnection;
+            if (connection == null) return;
             try {
-                mmSocket.close();
+                connection.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                AppLog.e(TAG, "close() of fleet socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It owns the outbound queue and is the only thread writing to the
+     * socket, so a slow flush never blocks the caller of write().
+     */
+    private class WriterThread extends Thread {
+        private final OutputStream mmOutStream;
+        private final OutboundQueue mmQueue = new OutboundQueue();
+
+        // keeps the link saturated without overrunning the robot
+        private final TokenBucket mmBucket;
+        private volatile int mmCeiling;          // configured link rate
+        private double mmMeasured;               // smoothed rate seen while writes block
+        private long mmLastSlow, mmLastRaise;    // nanoTime of the last rate changes
+        private volatile boolean mmWaiting;      // waiting for tokens
+        private volatile long mmThrottled;
+
+        // sends OP_DRIVE frames as deltas against the last one written
+        private final DriveDeltaEncoder mmDeltas = new DriveDeltaEncoder();
+
+        //frames drained from the queue are written in one call
+        private final byte[] mmBatch = new byte[OutboundQueue.maxDrainSize()];
+        //sensor timestamp of each frame in mmBatch
+        private final long[] mmStamps = new long[OutboundQueue.maxDrainFrames()];
+
+        public WriterThread(OutputStream out, int linkRate) {
+            mmOutStream = out;
+            mmCeiling = linkRate;
+            mmBucket = new TokenBucket(linkRate, LINK_BURST);
+        }
+
+        public void run() {
+            AppLog.i(TAG, "BEGIN mWriterThread");
+            setName("WriterThread");
+
+            while (true) {
+                try {
+                    // wait for room on the link, newer movement frames
+                    // replace the queued ones meanwhile
+                    long wait = mmBucket.nanosUntil(CommandFrame.FRAME_SIZE, System.nanoTime());
+                    if (wait > 0) {
+                        mmThrottled++;
+                        mmWaiting = true;
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        mmWaiting = false;
+                    }
+                    int budget = mmBucket.available(System.nanoTime());
+                    int count = mmQueue.awaitAndDrain(mmBatch, mmStamps, budget);
+                    if (count < 0) break; //queue closed
+
+                    final int frames = count / CommandFrame.FRAME_SIZE;
+                    long start = System.nanoTime();
+                    count = mmDeltas.encode(mmBatch, count, start);
+                    mmBucket.consume(count, start);
+                    mmOutStream.write(mmBatch, 0, count);
+                    adaptRate(count, start, System.nanoTime());
+
+                    for (int i = 0; i < frames; i++) {
+                        mLatency.record(LatencyTracker.STAGE_WRITE, mmStamps[i]);
+                    }
+
+                    // Tell the UI Activity how much was sent
+                    mHost.sendMessage(MESSAGE_WRITE, count, -1, null);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    // the ConnectedThread notices the lost connection
+                    AppLog.e(TAG, "Exception during write", e);
+                    break;
+                }
+            }
+            AppLog.i(TAG, "END mWriterThread, coalesced " + mmQueue.getCoalescedCount()
+                  + " dropped " + mmQueue.getDroppedCount() + " throttled " + mmThrottled
+                  + " drive keyframes " + mmDeltas.getKeyframeCount()
+                  + " deltas " + (mmDeltas.getShortDeltaCount() + mmDeltas.getLongDeltaCount()));
+        }
+
+        // A write that blocks means the link drains slower than the pacer
+        // allows: pace to the measured rate. After a quiet second the rate
+        // creeps back up towards the configured one.
+        private void adaptRate(int count, long start, long end) {
+            final long took = end - start;
+            final double rate = mmBucket.getRate();
+            if (took > 2000000L && count * 1e9 / took < rate) {
+                double measured = count * 1e9 / took;
+                mmMeasured = mmMeasured == 0 ? measured : mmMeasured + 0.25 * (measured - mmMeasured);
+                mmBucket.setRate(Math.max(MIN_LINK_RATE, Math.min(mmCeiling, mmMeasured)), end);
+                mmLastSlow = end;
+            } else if (rate != mmCeiling && end - Math.max(mmLastSlow, mmLastRaise) > 1000000000L) {
+                mmBucket.setRate(rate < mmCeiling ? Math.min(mmCeiling, rate * 1.1) : mmCeiling, end);
+                mmLastRaise = end;
             }
         }
+
+        public void cancel() {
+            mmQueue.close();
+        }
     }
 }
@@ -0,0 +1,89 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Decides which mapped commands are worth sending.
+ *
+ * Holding the phone at a steady tilt maps to the same command on every
+ * accelerometer sample. The emitter remembers the command state it sent
+ * last (the active directions, or throttle and steer in proportional
+ * mode) and only lets a command through when that state changes, or when
+ * the refresh interval has passed so the robot keeps hearing from us.
+ * Everything else is counted as suppressed. Directional frames carry no
+ * magnitude, so the directions are the whole state, and levelling the
+ * device changes them to none and sends the mapper's stop frame.
+ *
+ * Time comes from the sample timestamps, so a replay behaves like the
+ * live app. Has no Android dependencies. Not thread safe.
+ */
+public class CommandEmitter {
+    //resend an unchanged command this often
+    public static final long DEFAULT_REFRESH_NANOS = 250000000L;
+
+    private final DriveCommandMapper mMapper;
+    private long mRefreshNanos = DEFAULT_REFRESH_NANOS;
+
+    //state of the last command sent
+    private boolean mHaveSent;
+    private int mMode, mDirections, mThrottle, mSteer;
+    private long mLastSent;
+
+    //statistics
+    private long mSent;
+    private long mSuppressed;
+    private long mSuppressedBytes;
+
+    public CommandEmitter(DriveCommandMapper mapper){
+        mMapper = mapper;
+    }
+
+    /**
+     * Map the tilt and return the commands to send, if any.
+     * @param x, y filtered acceleration along the device axes
+     * @param timestamp time of the sample in nanoseconds
+     * @param dst buffer for the frames, needs DriveCommandMapper.MAX_COMMAND_SIZE bytes from offset
+     * @return number of bytes to send, 0 if nothing changed
+     */
+    public int emit(float x, float y, long timestamp, byte[] dst, int offset){
+        int len = mMapper.map(x, y, dst, offset);
+        int mode = mMapper.getMode();
+        int dirs = mMapper.getDirections();
+        int throttle = mMapper.getThrottle();
+        int steer = mMapper.getSteer();
+
+        boolean changed = !mHaveSent || mode != mMode || dirs != mDirections
+            || (mode == DriveCommandMapper.MODE_PROPORTIONAL && (throttle != mThrottle || steer != mSteer));
+        boolean refresh = mRefreshNanos > 0 && timestamp - mLastSent >= mRefreshNanos;
+
+        if(!changed && !refresh){
+            if(len > 0){
+                mSuppressed++;
+                mSuppressedBytes += len;
+            }
+            return 0;
+        }
+        mHaveSent = true;
+        mMode = mode;
+        mDirections = dirs;
+        mThrottle = throttle;
+        mSteer = steer;
+        mLastSent = timestamp;
+        if(len > 0) mSent++;
+        return len;
+    }
+
+    /**
+     * Set how often an unchanged command is sent again.
+     * @param nanos refresh interval, 0 to only send on changes
+     */
+    public void setRefreshInterval(long nanos){mRefreshNanos = nanos;}
+    public long getRefreshInterval(){return mRefreshNanos;}
+
+    //send the next command whatever the last one was, e.g. after a reconnect
+    public void reset(){
+        mHaveSent = false;
+    }
+
+    public long getSentCount(){return mSent;}
+    public long getSuppressedCount(){return mSuppressed;}
+    public long getSuppressedBytes(){return mSuppressedBytes;}
+}
@@ -0,0 +1,177 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Fixed size binary frame used for every command sent to the robot
+ * (and every reply the robot sends back).
+ *
+ * Layout, FRAME_SIZE bytes:
+ *   [0]    HEADER   always 'H', used to find the start of a frame
+ *   [1]    opcode   OP_MOVE, OP_DRIVE, OP_IR, OP_SONAR
+ *   [2]    arg      parameter for the opcode (direction, sensor channel,
+ *                   signed throttle for OP_DRIVE)
+ *   [3..4] payload  signed 16 bit value, big endian
+ *   [5..6] sequence unsigned 16 bit counter, big endian
+ *   [7]    checksum xor of bytes 1 through 6
+ *
+ * OP_DRIVE frames can be followed by deltas against the last OP_DRIVE
+ * sent. A delta is not a frame: it has no header, sequence or checksum,
+ * and its first byte has the high bit set, which 'H' never has.
+ *   short delta, 1 byte:  10tttsss          throttle and steer change by
+ *                                           -4..3 each (3 bit signed)
+ *   long delta, 2 bytes:  11tttttt ssssssss throttle changes by -32..31,
+ *                                           steer by -128..127
+ * A full OP_DRIVE frame (keyframe) is sent periodically so a lost delta
+ * does not drift forever, see DriveDeltaEncoder.
+ *
+ * Frames are small enough that a single RFCOMM packet carries several of
+ * them, so callers are encouraged to encode a batch into one buffer and
+ * write it in one call.
+ */
+public final class CommandFrame {
+    //size of every frame in bytes
+    public static final int FRAME_SIZE = 8;
+
+    //every frame must start with this header
+    public static final byte HEADER = 'H';
+
+    //offsets of the fields inside a frame
+    public static final int OFFSET_OPCODE = 1;
+    public static final int OFFSET_ARG = 2;
+    public static final int OFFSET_PAYLOAD = 3;
+    public static final int OFFSET_SEQUENCE = 5;
+    public static final int OFFSET_CHECKSUM = 7;
+
+    //opcodes
+    public static final int OP_MOVE = 'M';
+    public static final int OP_DRIVE = 'D';  //arg = throttle, payload = steer
+    public static final int OP_IR = 'I';
+    public static final int OP_SONAR = 'S';
+
+    //arguments for OP_MOVE
+    public static final int MOVE_FORWARD = 'F';
+    public static final int MOVE_BACKWARD = 'B';
+    public static final int MOVE_LEFT = 'L';
+    public static final int MOVE_RIGHT = 'R';
+    public static final int MOVE_STOP = 'S';
+
+    //range of throttle and steer in OP_DRIVE, positive is forward and right
+    public static final int DRIVE_MAX = 100;
+
+    //first byte of a delta, the two high bits select the kind
+    public static final int DELTA_MASK = 0xC0;
+    public static final int DELTA_SHORT = 0x80;
+    public static final int DELTA_LONG = 0xC0;
+    public static final int SHORT_DELTA_MIN = -4;
+    public static final int SHORT_DELTA_MAX = 3;
+    public static final int LONG_THROTTLE_MIN = -32;
+    public static final int LONG_THROTTLE_MAX = 31;
+    public static final int LONG_STEER_MIN = -128;
+    public static final int LONG_STEER_MAX = 127;
+
+    //range of the signed payload
+    public static final int PAYLOAD_MIN = Short.MIN_VALUE;
+    public static final int PAYLOAD_MAX = Short.MAX_VALUE;
+
+    //sequence numbers wrap at this value
+    public static final int SEQUENCE_MASK = 0xFFFF;
+
+    private CommandFrame(){}
+
+    /**
+     * Encode a frame into a preallocated buffer. Nothing is allocated.
+     * @param dst     buffer to write the frame into
+     * @param offset  index in dst of the first byte of the frame
+     * @param opcode  command opcode
+     * @param arg     parameter for the opcode
+     * @param payload signed value, clamped to the 16 bit range
+     * @param seq     sequence number, only the low 16 bits are sent
+     * @return number of bytes written (always FRAME_SIZE)
+     */
+    public static int encode(byte[] dst, int offset, int opcode, int arg, int payload, int seq){
+        if(payload > PAYLOAD_MAX) payload = PAYLOAD_MAX;
+        else if(payload < PAYLOAD_MIN) payload = PAYLOAD_MIN;
+
+        dst[offset] = HEADER;
+        dst[offset + OFFSET_OPCODE] = (byte) opcode;
+        dst[offset + OFFSET_ARG] = (byte) arg;
+        dst[offset + OFFSET_PAYLOAD] = (byte) (payload >> 8);
+        dst[offset + OFFSET_PAYLOAD + 1] = (byte) payload;
+        dst[offset + OFFSET_SEQUENCE] = (byte) (seq >> 8);
+        dst[offset + OFFSET_SEQUENCE + 1] = (byte) seq;
+        dst[offset + OFFSET_CHECKSUM] = checksum(dst, offset);
+        return FRAME_SIZE;
+    }
+
+    /**
+     * Compute the checksum of the frame starting at offset.
+     * The header and the checksum byte itself are not included.
+     */
+    public static byte checksum(byte[] src, int offset){
+        int sum = 0;
+        for(int i = OFFSET_OPCODE; i < OFFSET_CHECKSUM; i++){
+            sum ^= src[offset + i];
+        }
+        return (byte) sum;
+    }
+
+    //true if the frame starting at offset has a header and a matching checksum
+    public static boolean isValid(byte[] src, int offset){
+        return src[offset] == HEADER
+            && src[offset + OFFSET_CHECKSUM] == checksum(src, offset);
+    }
+
+    /**
+     * Encode an OP_DRIVE frame.
+     * @param throttle -DRIVE_MAX..DRIVE_MAX, positive is forward
+     * @param steer -DRIVE_MAX..DRIVE_MAX, positive is right
+     * @return number of bytes written (always FRAME_SIZE)
+     */
+    public static int encodeDrive(byte[] dst, int offset, int throttle, int steer, int seq){
+        return encode(dst, offset, OP_DRIVE, clampDrive(throttle), clampDrive(steer), seq);
+    }
+    private static int clampDrive(int value){
+        if(value > DRIVE_MAX) return DRIVE_MAX;
+        if(value < -DRIVE_MAX) return -DRIVE_MAX;
+        return value;
+    }
+    //throttle of an OP_DRIVE frame, the arg sign extended
+    public static int driveThrottle(byte[] src, int offset){
+        return src[offset + OFFSET_ARG];
+    }
+
+    //true if b is the first byte of a delta rather than of a frame
+    public static boolean isDelta(byte b){
+        return (b & DELTA_SHORT) != 0;
+    }
+    //number of bytes of the delta starting with b
+    public static int deltaSize(byte b){
+        return (b & DELTA_MASK) == DELTA_LONG ? 2 : 1;
+    }
+    //throttle and steer change of a short delta
+    public static int shortDeltaThrottle(byte b){
+        return (b << 26) >> 29; //bits 5..3, sign extended
+    }
+    public static int shortDeltaSteer(byte b){
+        return (b << 29) >> 29; //bits 2..0, sign extended
+    }
+    //throttle change of a long delta, the steer change is the second byte
+    public static int longDeltaThrottle(byte b){
+        return (b << 26) >> 26; //bits 5..0, sign extended
+    }
+
+    public static int opcode(byte[] src, int offset){
+        return src[offset + OFFSET_OPCODE] & 0xFF;
+    }
+    public static int arg(byte[] src, int offset){
+        return src[offset + OFFSET_ARG] & 0xFF;
+    }
+    //payload is sign extended
+    public static int payload(byte[] src, int offset){
+        return (short) (((src[offset + OFFSET_PAYLOAD] & 0xFF) << 8)
+                        | (src[offset + OFFSET_PAYLOAD + 1] & 0xFF));
+    }
+    public static int sequence(byte[] src, int offset){
+        return ((src[offset + OFFSET_SEQUENCE] & 0xFF) << 8)
+               | (src[offset + OFFSET_SEQUENCE + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,16 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Destination for encoded command frames.
+ * Implementations must copy what they need before returning,
+ * callers reuse the buffer for the next batch.
+ */
+public interface CommandSink {
+    /**
+     * @param out    buffer holding a whole number of frames
+     * @param offset index of the first byte
+     * @param count  number of bytes
+     * @param timestamp SensorEvent.timestamp of the sample behind the frames, 0 if none
+     */
+    void write(byte[] out, int offset, int count, long timestamp);
+}
@@ -0,0 +1,24 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * What BluetoothClientService remembers about the devices it connects
+ * to. DeviceIndex keeps it across runs on the phone; off the phone an
+ * in memory one will do.
+ */
+public interface ConnectHistory {
+    //socket types
+    int SOCKET_UNKNOWN = 0;  //race secure against insecure
+    int SOCKET_SECURE = 1;
+    int SOCKET_INSECURE = 2;
+
+    //socket type that connected to address last time, SOCKET_UNKNOWN if never
+    int getSocketType(String address);
+    void putSocketType(String address, int type);
+    //forget a socket type that stopped working, the next connect races again
+    void forgetSocketType(String address);
+
+    //a connection asked for by the user worked or not
+    void recordAttempt(String address, boolean success);
+    //device of the last successful connection
+    void setLastAddress(String address);
+}
@@ -0,0 +1,212 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers what we learned about robots we connected to, across runs.
+ *
+ * Kept in SharedPreferences, one key per fact and device:
+ *   last_address        device of the last successful connection
+ *   channel_<address>   RFCOMM channel the serial service was found on,
+ *                       so a reconnect can skip the SDP lookup
+ *   socket_<address>    socket type that won the last connection race
+ *   seen_<address>      wall clock time the device was last discovered or
+ *                       connected, in ms; every known device has one
+ *   name_<address>, rssi_<address>
+ *                       name and signal strength from the last discovery
+ *   attempts_<address>, successes_<address>
+ *                       connections asked for by the user and how many worked
+ *
+ * getRanked() lists the known devices best first, so the device list can
+ * show them before a discovery finishes. At most MAX_DEVICES are kept,
+ * the one seen longest ago is forgotten first.
+ *
+ * Writes use apply() and never block the caller on disk. The socket
+ * types are those of ConnectHistory.
+ */
+public class DeviceIndex implements ConnectHistory {
+    private static final String PREFS_NAME = "device_index";
+    private static final String KEY_LAST_ADDRESS = "last_address";
+    private static final String KEY_CHANNEL = "channel_";
+    private static final String KEY_SOCKET = "socket_";
+    private static final String KEY_SEEN = "seen_";
+    private static final String KEY_NAME = "name_";
+    private static final String KEY_RSSI = "rssi_";
+    private static final String KEY_ATTEMPTS = "attempts_";
+    private static final String KEY_SUCCESSES = "successes_";
+    private static final String[] DEVICE_KEYS =
+        {KEY_CHANNEL, KEY_SOCKET, KEY_SEEN, KEY_NAME, KEY_RSSI, KEY_ATTEMPTS, KEY_SUCCESSES};
+
+    //devices remembered at most
+    public static final int MAX_DEVICES = 32;
+
+    //rssi of a device that was never discovered
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    //how fast "seen recently" fades in the ranking
+    private static final long RECENT_HALF_LIFE_MS = 24 * 60 * 60 * 1000L;
+
+    //no channel cached for a device
+    public static final int NO_CHANNEL = -1;
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * What is known about one device. A snapshot, changing it does not
+     * change the index.
+     */
+    public static class Entry {
+        public String address;
+        public String name;
+        public int rssi;       //dBm, NO_RSSI if never discovered
+        public long lastSeen;  //wall clock ms
+        public int attempts;
+        public int successes;
+        public boolean last;   //device of the last successful connection
+        float score;
+
+        //successes over attempts, 0.5 for a device never tried
+        public float getSuccessRate(){
+            return (successes + 1f) / (attempts + 2f);
+        }
+    }
+
+    public DeviceIndex(Context context){
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    //address of the last device connected to, null if none
+    public String getLastAddress(){
+        return mPrefs.getString(KEY_LAST_ADDRESS, null);
+    }
+    @Override
+    public void setLastAddress(String address){
+        mPrefs.edit().putString(KEY_LAST_ADDRESS, address)
+                     .putLong(KEY_SEEN + address, System.currentTimeMillis())
+                     .apply();
+    }
+
+    /**
+     * Remember that discovery found a device.
+     * @param name may be null, a known name is kept then
+     * @param rssi signal strength in dBm, NO_RSSI if unknown
+     */
+    public void recordSeen(String address, String name, int rssi){
+        boolean known = mPrefs.contains(KEY_SEEN + address);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putLong(KEY_SEEN + address, System.currentTimeMillis());
+        if(name != null) editor.putString(KEY_NAME + address, name);
+        if(rssi != NO_RSSI) editor.putInt(KEY_RSSI + address, rssi);
+        editor.apply();
+        if(!known) prune();
+    }
+
+    /**
+     * Count a connection asked for by the user, for the success rate.
+     */
+    @Override
+    public void recordAttempt(String address, boolean success){
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putInt(KEY_ATTEMPTS + address, mPrefs.getInt(KEY_ATTEMPTS + address, 0) + 1);
+        if(success){
+            editor.putInt(KEY_SUCCESSES + address, mPrefs.getInt(KEY_SUCCESSES + address, 0) + 1);
+            editor.putLong(KEY_SEEN + address, System.currentTimeMillis());
+        }
+        editor.apply();
+    }
+
+    //every known device, in no particular order
+    public List<Entry> getEntries(){
+        String lastAddress = getLastAddress();
+        List<Entry> entries = new ArrayList<Entry>();
+        for(Map.Entry<String, ?> e : mPrefs.getAll().entrySet()){
+            if(!e.getKey().startsWith(KEY_SEEN)) continue;
+            Entry entry = new Entry();
+            entry.address = e.getKey().substring(KEY_SEEN.length());
+            entry.lastSeen = (Long) e.getValue();
+            entry.name = mPrefs.getString(KEY_NAME + entry.address, null);
+            entry.rssi = mPrefs.getInt(KEY_RSSI + entry.address, NO_RSSI);
+            entry.attempts = mPrefs.getInt(KEY_ATTEMPTS + entry.address, 0);
+            entry.successes = mPrefs.getInt(KEY_SUCCESSES + entry.address, 0);
+            entry.last = entry.address.equals(lastAddress);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Every known device, most likely to be picked first: the last one
+     * connected to, then by success rate, how recently it was seen and
+     * signal strength.
+     */
+    public List<Entry> getRanked(){
+        final long now = System.currentTimeMillis();
+        List<Entry> entries = getEntries();
+        for(Entry entry : entries){
+            float recent = (float) Math.pow(0.5, Math.max(0, now - entry.lastSeen) / (double) RECENT_HALF_LIFE_MS);
+            //-100 dBm is barely reachable, -40 dBm is next to the phone
+            float signal = entry.rssi == NO_RSSI ? 0.5f
+                : Math.max(0f, Math.min(1f, (entry.rssi + 100) / 60f));
+            entry.score = (entry.last ? 1f : 0f) + 0.5f * entry.getSuccessRate()
+                          + 0.3f * recent + 0.2f * signal;
+        }
+        Collections.sort(entries, new Comparator<Entry>(){
+            @Override
+            public int compare(Entry a, Entry b){
+                return Float.compare(b.score, a.score);
+            }
+        });
+        return entries;
+    }
+
+    //forget the devices seen longest ago beyond MAX_DEVICES
+    private void prune(){
+        List<Entry> entries = getEntries();
+        if(entries.size() <= MAX_DEVICES) return;
+        Collections.sort(entries, new Comparator<Entry>(){
+            @Override
+            public int compare(Entry a, Entry b){
+                return a.lastSeen < b.lastSeen ? -1 : (a.lastSeen == b.lastSeen ? 0 : 1);
+            }
+        });
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for(int i = 0; i < entries.size() - MAX_DEVICES; i++){
+            for(String key : DEVICE_KEYS) editor.remove(key + entries.get(i).address);
+        }
+        editor.apply();
+    }
+
+    //cached RFCOMM channel of the serial service on address, NO_CHANNEL if unknown
+    public int getChannel(String address){
+        return mPrefs.getInt(KEY_CHANNEL + address, NO_CHANNEL);
+    }
+    public void putChannel(String address, int channel){
+        mPrefs.edit().putInt(KEY_CHANNEL + address, channel).apply();
+    }
+    //forget a channel that did not work, the next connect does a full lookup
+    public void forgetChannel(String address){
+        mPrefs.edit().remove(KEY_CHANNEL + address).apply();
+    }
+
+    //socket type that connected to address last time, SOCKET_UNKNOWN if never
+    @Override
+    public int getSocketType(String address){
+        return mPrefs.getInt(KEY_SOCKET + address, SOCKET_UNKNOWN);
+    }
+    @Override
+    public void putSocketType(String address, int type){
+        mPrefs.edit().putInt(KEY_SOCKET + address, type).apply();
+    }
+    //forget a socket type that stopped working, the next connect races again
+    @Override
+    public void forgetSocketType(String address){
+        mPrefs.edit().remove(KEY_SOCKET + address).apply();
+    }
+}
@@ -16,6 +16,8 @@
 
 package edu.esu.spacesys.btrobotremote;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import edu.esu.spacesys.btrobotremote.R;
@@ -40,8 +42,11 @@ import android.widget.TextView;
 import android.widget.AdapterView.OnItemClickListener;
 
 /**
- * This Activity appears as a dialog. It lists any paired devices and
- * devices detected in the area after discovery. When a device is chosen
+ * This Activity appears as a dialog. It lists the robots connected to
+ * before, ranked by the DeviceIndex, then any paired devices and devices
+ * detected in the area after discovery. The recent list is shown right
+ * away; a discovery runs in the background and updates name and signal
+ * strength of the recent entries as they are found. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
  */
@@ -57,6 +62,11 @@ public class DeviceListActivity extends Activity {
     private BluetoothAdapter mBtAdapter;
     private ArrayAdapter<String> mPairedDevicesArrayAdapter;
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private ArrayAdapter<String> mRecentDevicesArrayAdapter;
+
+    // Remembered devices, and the address of each row of the recent list
+    private DeviceIndex mDeviceIndex;
+    private final List<String> mRecentAddresses = new ArrayList<String>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -82,6 +92,12 @@ public class DeviceListActivity extends Activity {
         // one for newly discovered devices
         mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
         mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        mRecentDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+
+        // Find and set up the ListView for devices we connected to before
+        ListView recentListView = (ListView) findViewById(R.id.recent_devices);
+        recentListView.setAdapter(mRecentDevicesArrayAdapter);
+        recentListView.setOnItemClickListener(mDeviceClickListener);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
@@ -117,6 +133,51 @@ public class DeviceListActivity extends Activity {
             String noDevices = getResources().getText(R.string.none_paired).toString();
             mPairedDevicesArrayAdapter.add(noDevices);
         }
+
+        // Show the remembered robots best first, no scan needed to pick one
+        mDeviceIndex = new DeviceIndex(this);
+        for (DeviceIndex.Entry entry : mDeviceIndex.getRanked()) {
+            mRecentAddresses.add(entry.address);
+            mRecentDevicesArrayAdapter.add(describe(entry));
+        }
+        if (!mRecentAddresses.isEmpty()) {
+            findViewById(R.id.title_recent_devices).setVisibility(View.VISIBLE);
+
+            // Refresh them in the background, the list stays usable meanwhile
+            doDiscovery();
+        }
+    }
+
+    /**
+     * Text of a recent device row. The address must stay the last 17
+     * characters, the click listener reads it from there.
+     */
+    private static String describe(DeviceIndex.Entry entry) {
+        StringBuilder text = new StringBuilder();
+        text.append(entry.name != null ? entry.name : entry.address);
+        text.append(" (");
+        if (entry.rssi != DeviceIndex.NO_RSSI) text.append(entry.rssi).append(" dBm, ");
+        long minutes = Math.max(0, System.currentTimeMillis() - entry.lastSeen) / 60000L;
+        if (minutes < 60) text.append("seen ").append(minutes).append(" min ago");
+        else if (minutes < 48 * 60) text.append("seen ").append(minutes / 60).append(" h ago");
+        else text.append("seen ").append(minutes / (24 * 60)).append(" days ago");
+        if (entry.attempts > 0) {
+            text.append(", ").append(entry.successes * 100 / entry.attempts).append("% connected");
+        }
+        text.append(")\n").append(entry.address);
+        return text.toString();
+    }
+
+    // Update the row of a recent device after discovery found it again
+    private void refreshRecent(String address) {
+        int position = mRecentAddresses.indexOf(address);
+        if (position < 0) return;
+        for (DeviceIndex.Entry entry : mDeviceIndex.getEntries()) {
+            if (!entry.address.equals(address)) continue;
+            mRecentDevicesArrayAdapter.remove(mRecentDevicesArrayAdapter.getItem(position));
+            mRecentDevicesArrayAdapter.insert(describe(entry), position);
+            return;
+        }
     }
 
     @Override
@@ -165,6 +226,12 @@ public class DeviceListActivity extends Activity {
             // Get the device MAC address, which is the last 17 chars in the View
             String info = ((TextView) v).getText().toString();
             String address = info.substring(info.length() - 17);
+            // "none found" and similar rows carry no address
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) return;
+
+            // Remember the device so it is listed first next time
+            BluetoothDevice device = mBtAdapter.getRemoteDevice(address);
+            mDeviceIndex.recordSeen(address, device.getName(), DeviceIndex.NO_RSSI);
 
             // Create the result Intent and include the MAC address
             Intent intent = new Intent();
@@ -187,8 +254,16 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceIndex.NO_RSSI);
+
+                // Only robots we connected to are remembered, not everything in range
+                String address = device.getAddress();
+                if (mRecentAddresses.contains(address)) {
+                    mDeviceIndex.recordSeen(address, device.getName(), rssi);
+                    refreshRecent(address);
+                }
+                // If it's already paired or recent, skip it, because it's been listed already
+                else if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
                     mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
                 }
             // When discovery is finished, change the Activity title
@@ -0,0 +1,136 @@
+package edu.esu.spacesys.btrobotremote;
+
+//Maps the tilt of the device to movement commands
+//MODE_DIRECTIONAL: the filtered acceleration is classified into up to four
+//directions and a move frame is encoded for every active one, or a stop
+//frame when the device is level
+//MODE_PROPORTIONAL: the tilt is quantized into a signed throttle and steer
+//sent in a single OP_DRIVE frame
+//Has no Android dependencies, so it runs the same in the app and in a replay
+public class DriveCommandMapper{
+    //directions, combined as a bit mask
+    public static final int DIR_FORWARD = 1;
+    public static final int DIR_BACKWARD = 2;
+    public static final int DIR_LEFT = 4;
+    public static final int DIR_RIGHT = 8;
+
+    //mapping modes
+    public static final int MODE_DIRECTIONAL = 0;
+    public static final int MODE_PROPORTIONAL = 1;
+
+    //use this as the threshold for detecting direction
+    public static final float THRESHOLD = 0.10f;
+
+    //tilt that gives full throttle or steer in MODE_PROPORTIONAL
+    private static final float FULL_TILT = 2.0f;
+
+    //largest number of bytes map() writes, one frame per direction
+    public static final int MAX_COMMAND_SIZE = 4 * CommandFrame.FRAME_SIZE;
+
+    //sequence number of the last command frame
+    private int mSequence = 0;
+
+    //directions found by the last call to map()
+    private int mDirections = 0;
+
+    //set from the UI thread, read once per map() on the thread mapping
+    private volatile int mMode = MODE_DIRECTIONAL;
+
+    //throttle and steer of the last call to map() in MODE_PROPORTIONAL
+    private int mThrottle, mSteer;
+
+    //MODE_DIRECTIONAL or MODE_PROPORTIONAL
+    public void setMode(int mode){mMode = mode;}
+    public int getMode(){return mMode;}
+
+    /**
+     *encodes the tilt as commands, according to the mode
+     *@param x, y = filtered acceleration along the device axes
+     *@param dst = buffer for the frames, needs MAX_COMMAND_SIZE bytes from offset
+     *@param offset = index in dst of the first frame
+     *@return number of bytes written
+     */
+    public int map(float x, float y, byte [] dst, int offset){
+        if(mMode == MODE_PROPORTIONAL){return mapProportional(x, y, dst, offset);}
+        return mapDirectional(x, y, dst, offset);
+    }
+
+    //classifies the tilt and encodes a move frame for every active direction,
+    //a level device encodes a stop so the robot does not keep the last move
+    private int mapDirectional(float x, float y, byte [] dst, int offset){
+        int dirs = 0;
+        int len = 0;
+
+        //forward
+        if(y <= -(THRESHOLD)){
+            dirs |= DIR_FORWARD;
+            len += encodeMove(dst, offset + len, CommandFrame.MOVE_FORWARD);
+        }
+        //backward
+        if(y >= THRESHOLD){
+            dirs |= DIR_BACKWARD;
+            len += encodeMove(dst, offset + len, CommandFrame.MOVE_BACKWARD);
+        }
+        //left
+        if(x >= THRESHOLD){
+            dirs |= DIR_LEFT;
+            len += encodeMove(dst, offset + len, CommandFrame.MOVE_LEFT);
+        }
+        //right
+        if(x <= -(THRESHOLD)){
+            dirs |= DIR_RIGHT;
+            len += encodeMove(dst, offset + len, CommandFrame.MOVE_RIGHT);
+        }
+        if(dirs == 0){
+            len = encodeMove(dst, offset, CommandFrame.MOVE_STOP);
+        }
+        mDirections = dirs;
+        return len;
+    }
+
+    //quantizes the tilt into one drive frame, always sent so a level device stops the robot
+    private int mapProportional(float x, float y, byte [] dst, int offset){
+        mThrottle = quantize(-y);
+        mSteer = quantize(-x);
+
+        int dirs = 0;
+        if(mThrottle > 0) dirs |= DIR_FORWARD;
+        if(mThrottle < 0) dirs |= DIR_BACKWARD;
+        if(mSteer < 0) dirs |= DIR_LEFT;
+        if(mSteer > 0) dirs |= DIR_RIGHT;
+        mDirections = dirs;
+
+        mSequence = (mSequence + 1) & CommandFrame.SEQUENCE_MASK;
+        return CommandFrame.encodeDrive(dst, offset, mThrottle, mSteer, mSequence);
+    }
+
+    //tilt to -DRIVE_MAX..DRIVE_MAX, 0 inside the THRESHOLD dead zone
+    private static int quantize(float tilt){
+        if(tilt > -THRESHOLD && tilt < THRESHOLD) return 0;
+        int value = Math.round(tilt / FULL_TILT * CommandFrame.DRIVE_MAX);
+        if(value > CommandFrame.DRIVE_MAX) return CommandFrame.DRIVE_MAX;
+        if(value < -CommandFrame.DRIVE_MAX) return -CommandFrame.DRIVE_MAX;
+        return value;
+    }
+
+    //directions found by the last call to map()
+    public int getDirections(){return mDirections;}
+    //throttle and steer of the last call to map() in MODE_PROPORTIONAL
+    public int getThrottle(){return mThrottle;}
+    public int getSteer(){return mSteer;}
+
+    //start the sequence over and forget the last tilt, the mode is kept
+    public void reset(){
+        mSequence = 0;
+        mDirections = 0;
+        mThrottle = 0;
+        mSteer = 0;
+    }
+
+    //encodes a move command into dst at offset
+    //carries no magnitude, the emitter only resends moves when the directions change
+    private int encodeMove(byte [] dst, int offset, int direction){
+        mSequence = (mSequence + 1) & CommandFrame.SEQUENCE_MASK;
+        return CommandFrame.encode(dst, offset, CommandFrame.OP_MOVE, direction, 0, mSequence);
+    }
+}
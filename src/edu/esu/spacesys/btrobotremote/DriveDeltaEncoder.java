@@ -0,0 +1,97 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Rewrites OP_DRIVE frames as deltas against the last one sent.
+ *
+ * Steady driving changes throttle and steer by a few steps per update,
+ * which fits a one byte short delta instead of an eight byte frame. A
+ * full frame (keyframe) is still sent when the change is too large, on
+ * the first command, and every KEYFRAME_INTERVAL deltas or KEYFRAME_NANOS,
+ * so the robot recovers from a lost byte quickly. Every other frame is
+ * passed through unchanged.
+ *
+ * Runs on the writer thread on what was actually drained from the queue,
+ * so the deltas are against what the robot really received.
+ * Not thread safe.
+ */
+public class DriveDeltaEncoder {
+    //deltas sent between keyframes at most
+    public static final int KEYFRAME_INTERVAL = 16;
+    //longest time between keyframes
+    public static final long KEYFRAME_NANOS = 500000000L;
+
+    private boolean mHaveBase;
+    private int mThrottle, mSteer;   //what the robot has after the last command sent
+    private int mSinceKeyframe;
+    private long mKeyframeTime;
+
+    //statistics
+    private long mKeyframes;
+    private long mShortDeltas;
+    private long mLongDeltas;
+
+    /**
+     * Encode the frames in buf[0..len) in place.
+     * @param len a whole number of frames
+     * @param now System.nanoTime(), paces the keyframes
+     * @return number of bytes left in buf, never more than len
+     */
+    public int encode(byte[] buf, int len, long now){
+        int out = 0;
+        for(int in = 0; in + CommandFrame.FRAME_SIZE <= len; in += CommandFrame.FRAME_SIZE){
+            if(CommandFrame.opcode(buf, in) != CommandFrame.OP_DRIVE){
+                System.arraycopy(buf, in, buf, out, CommandFrame.FRAME_SIZE);
+                out += CommandFrame.FRAME_SIZE;
+                continue;
+            }
+            int throttle = CommandFrame.driveThrottle(buf, in);
+            int steer = CommandFrame.payload(buf, in);
+            int dt = throttle - mThrottle;
+            int ds = steer - mSteer;
+            boolean keyframe = !mHaveBase
+                || mSinceKeyframe >= KEYFRAME_INTERVAL
+                || now - mKeyframeTime >= KEYFRAME_NANOS;
+
+            if(!keyframe && fits(dt, CommandFrame.SHORT_DELTA_MIN, CommandFrame.SHORT_DELTA_MAX)
+                         && fits(ds, CommandFrame.SHORT_DELTA_MIN, CommandFrame.SHORT_DELTA_MAX)){
+                buf[out++] = (byte) (CommandFrame.DELTA_SHORT | (dt & 7) << 3 | (ds & 7));
+                mShortDeltas++;
+                mSinceKeyframe++;
+            }
+            else if(!keyframe && fits(dt, CommandFrame.LONG_THROTTLE_MIN, CommandFrame.LONG_THROTTLE_MAX)
+                              && fits(ds, CommandFrame.LONG_STEER_MIN, CommandFrame.LONG_STEER_MAX)){
+                buf[out++] = (byte) (CommandFrame.DELTA_LONG | (dt & 0x3F));
+                buf[out++] = (byte) ds;
+                mLongDeltas++;
+                mSinceKeyframe++;
+            }
+            else{
+                System.arraycopy(buf, in, buf, out, CommandFrame.FRAME_SIZE);
+                out += CommandFrame.FRAME_SIZE;
+                mHaveBase = true;
+                mSinceKeyframe = 0;
+                mKeyframeTime = now;
+                mKeyframes++;
+            }
+            mThrottle = throttle;
+            mSteer = steer;
+        }
+        return out;
+    }
+
+    private static boolean fits(int value, int min, int max){
+        return value >= min && value <= max;
+    }
+
+    //start over with a keyframe, e.g. on a new connection
+    public void reset(){
+        mHaveBase = false;
+        mThrottle = 0;
+        mSteer = 0;
+        mSinceKeyframe = 0;
+    }
+
+    public long getKeyframeCount(){return mKeyframes;}
+    public long getShortDeltaCount(){return mShortDeltas;}
+    public long getLongDeltaCount(){return mLongDeltas;}
+}
@@ -0,0 +1,71 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Measures how long a command sent to several robots takes to reach all
+ * of them.
+ *
+ * begin() is called when a frame is queued for a set of links, written()
+ * every time a link puts a frame on the wire. When the last link of the
+ * set has written the frame (or a newer one, movement frames replace each
+ * other in the queue) the time since begin() goes into the fan-out
+ * histogram, and the time between the first and the last link into the
+ * spread histogram. Both are in microseconds.
+ *
+ * In-flight fan-outs are kept in a small ring; one that is still
+ * incomplete when its slot is reused is counted and dropped.
+ */
+public class FanoutTracker {
+    private static final int SLOTS = 32;
+
+    private final long[] mStamps = new long[SLOTS];
+    private final int[] mPending = new int[SLOTS];  //links that have not written yet
+    private final long[] mFirstWrite = new long[SLOTS];
+    private int mNext;
+
+    private final LatencyHistogram mFanout = new LatencyHistogram();
+    private final LatencyHistogram mSpread = new LatencyHistogram();
+    private long mIncomplete;
+
+    /**
+     * A frame stamped with stamp was queued for the links in mask.
+     * @param stamp System.nanoTime() when the frame was queued
+     */
+    public synchronized void begin(long stamp, int mask){
+        if(mask == 0) return;
+        int slot = mNext;
+        mNext = (mNext + 1) % SLOTS;
+        if(mPending[slot] != 0) mIncomplete++;
+        mStamps[slot] = stamp;
+        mPending[slot] = mask;
+        mFirstWrite[slot] = 0;
+    }
+
+    /**
+     * Link wrote the frame stamped with stamp at time now. Fan-outs
+     * started before it are complete for this link too.
+     */
+    public synchronized void written(int link, long stamp, long now){
+        final int bit = 1 << link;
+        for(int slot = 0; slot < SLOTS; slot++){
+            if((mPending[slot] & bit) == 0 || mStamps[slot] > stamp) continue;
+            if(mFirstWrite[slot] == 0) mFirstWrite[slot] = now;
+            mPending[slot] &= ~bit;
+            if(mPending[slot] == 0){
+                mFanout.record((now - mStamps[slot]) / 1000L);
+                mSpread.record((now - mFirstWrite[slot]) / 1000L);
+            }
+        }
+    }
+
+    //link went away, stop waiting for it
+    public synchronized void forget(int link){
+        final int bit = 1 << link;
+        for(int slot = 0; slot < SLOTS; slot++) mPending[slot] &= ~bit;
+    }
+
+    //time from queueing to the last robot
+    public LatencyHistogram getFanout(){return mFanout;}
+    //time from the first robot to the last robot
+    public LatencyHistogram getSpread(){return mSpread;}
+    public synchronized long getIncompleteCount(){return mIncomplete;}
+}
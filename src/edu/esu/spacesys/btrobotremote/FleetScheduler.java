@@ -0,0 +1,132 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Single writer thread shared by every link of a fleet.
+ *
+ * Links are visited round robin. A link is served when it has frames
+ * queued and its pacer has room, so a slow robot is never written faster
+ * than it takes and cannot hold up the others for long; pacing keeps the
+ * socket buffers from filling, which is what would make a write block.
+ * When nothing can be written the thread sleeps until a link is signaled
+ * or the earliest pacer has room again.
+ *
+ * Has no Android dependencies.
+ */
+public class FleetScheduler extends Thread {
+    //a Bluetooth piconet has at most 7 active slaves
+    public static final int MAX_LINKS = 7;
+
+    /**
+     * Told about links whose stream failed. Called on the scheduler thread.
+     */
+    public interface Listener {
+        void onWriteFailed(RobotLink link, IOException e);
+    }
+
+    private final RobotLink[] mLinks = new RobotLink[MAX_LINKS];
+    private final FanoutTracker mFanout;
+    private final Listener mListener;
+
+    private final byte[] mBatch = new byte[OutboundQueue.maxDrainSize()];
+    private final long[] mStamps = new long[OutboundQueue.maxDrainFrames()];
+    private int mNext; //link served first on the next pass
+
+    private boolean mSignaled;
+    private volatile boolean mCanceled;
+
+    public FleetScheduler(FanoutTracker fanout, Listener listener){
+        mFanout = fanout;
+        mListener = listener;
+        setName("FleetScheduler");
+    }
+
+    //serve link from now on, replaces a previous link with the same id
+    public synchronized void attach(RobotLink link){
+        mLinks[link.getId()] = link;
+        notify();
+    }
+    public synchronized void detach(int id){
+        mLinks[id] = null;
+        mFanout.forget(id);
+    }
+
+    //frames were queued on some link
+    public synchronized void signal(){
+        mSignaled = true;
+        notify();
+    }
+
+    public void cancel(){
+        mCanceled = true;
+        signal();
+    }
+
+    @Override
+    public void run(){
+        while(!mCanceled){
+            synchronized(this){mSignaled = false;}
+
+            long wait = Long.MAX_VALUE;
+            boolean wrote = false;
+            for(int k = 0; k < MAX_LINKS; k++){
+                int id = (mNext + k) % MAX_LINKS;
+                RobotLink link;
+                synchronized(this){link = mLinks[id];}
+                if(link == null) continue;
+
+                long w = serve(link);
+                if(w == 0) wrote = true;
+                else if(w > 0 && w < wait) wait = w;
+            }
+            mNext = (mNext + 1) % MAX_LINKS;
+            if(wrote) continue;
+
+            try{
+                synchronized(this){
+                    if(mSignaled || mCanceled) continue;
+                    if(wait == Long.MAX_VALUE) wait();
+                    else wait(wait / 1000000L, (int) (wait % 1000000L));
+                }
+            }
+            catch(InterruptedException e){
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write what link's pacer allows.
+     * @return 0 if something was written, the nanoseconds until the pacer
+     *         has room if frames are waiting, -1 if there is nothing to do
+     */
+    private long serve(RobotLink link){
+        OutputStream out = link.getStream();
+        if(out == null || link.mQueue.size() == 0) return -1;
+
+        long now = System.nanoTime();
+        long wait = link.mBucket.nanosUntil(CommandFrame.FRAME_SIZE, now);
+        if(wait > 0) return wait;
+
+        int count = link.mQueue.drainTo(mBatch, mStamps, link.mBucket.available(now));
+        if(count == 0) return -1;
+        final int frames = count / CommandFrame.FRAME_SIZE;
+        count = link.mDeltas.encode(mBatch, count, now);
+        link.mBucket.consume(count, now);
+        try{
+            out.write(mBatch, 0, count);
+        }
+        catch(IOException e){
+            link.writeFailed();
+            mListener.onWriteFailed(link, e);
+            return -1;
+        }
+
+        long done = System.nanoTime();
+        link.wrote(count, frames, mStamps, done);
+        for(int i = 0; i < frames; i++) mFanout.written(link.getId(), mStamps[i], done);
+        return 0;
+    }
+}
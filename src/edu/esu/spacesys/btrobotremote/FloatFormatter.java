@@ -0,0 +1,147 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Builds short texts with fixed precision numbers into a reusable char
+ * buffer, for the stats views that change with every sensor sample.
+ *
+ * String.format() creates a Formatter, boxes its arguments and returns a
+ * new String on every call. Here the digits are written straight into
+ * the buffer, which goes to TextView.setText(char[], int, int) as is.
+ * Nothing is allocated once the buffer is large enough. Numbers always
+ * use '.' whatever the locale.
+ *
+ *   fmt.clear().append("x: ").append(x, 4);
+ *   view.setText(fmt.buffer(), 0, fmt.length());
+ *
+ * TextView keeps using the array it was given, so use one formatter per
+ * view and only change it right before setting it again.
+ *
+ * Values are rounded half away from zero. Values too large for a long
+ * once scaled fall back to Float.toString(), which allocates.
+ * Has no Android dependencies. Not thread safe.
+ */
+public class FloatFormatter implements CharSequence {
+    public static final int MAX_DECIMALS = 9;
+
+    private static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    private char[] mBuffer;
+    private int mLength;
+
+    public FloatFormatter(int capacity){
+        mBuffer = new char[capacity];
+    }
+
+    public FloatFormatter clear(){
+        mLength = 0;
+        return this;
+    }
+
+    //append value with exactly decimals digits after the point, like %.<decimals>f
+    public FloatFormatter append(float value, int decimals){
+        ensure(mLength + 24 + decimals);
+        mLength = format(value, decimals, mBuffer, mLength);
+        return this;
+    }
+    public FloatFormatter append(long value){
+        ensure(mLength + 20);
+        mLength = format(value, mBuffer, mLength);
+        return this;
+    }
+    public FloatFormatter append(char c){
+        ensure(mLength + 1);
+        mBuffer[mLength++] = c;
+        return this;
+    }
+    public FloatFormatter append(String s){
+        final int n = s.length();
+        ensure(mLength + n);
+        s.getChars(0, n, mBuffer, mLength);
+        mLength += n;
+        return this;
+    }
+
+    //grows only when a text is longer than any before
+    private void ensure(int capacity){
+        if(capacity <= mBuffer.length) return;
+        char[] bigger = new char[Math.max(capacity, mBuffer.length * 2)];
+        System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+        mBuffer = bigger;
+    }
+
+    //the text is buffer()[0..length()), the array can change when it grows
+    public char[] buffer(){return mBuffer;}
+    @Override
+    public int length(){return mLength;}
+    @Override
+    public char charAt(int index){
+        if(index >= mLength) throw new IndexOutOfBoundsException("index " + index + " of " + mLength);
+        return mBuffer[index];
+    }
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return new String(mBuffer, start, end - start);
+    }
+    @Override
+    public String toString(){
+        return new String(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Write value with exactly decimals digits after the point into dst.
+     * dst needs room for 21 + decimals chars from offset.
+     * @param decimals 0..MAX_DECIMALS
+     * @return offset after the last char written
+     */
+    public static int format(float value, int decimals, char[] dst, int offset){
+        if(decimals < 0 || decimals > MAX_DECIMALS){
+            throw new IllegalArgumentException("decimals out of range: " + decimals);
+        }
+        if(value != value) return copy("NaN", dst, offset);
+        //-0.0 and small negatives print a sign, like String.format
+        boolean negative = value < 0 || (value == 0 && 1f / value < 0);
+        double magnitude = Math.abs((double) value) * POW10[decimals];
+        if(magnitude >= Long.MAX_VALUE / 10){
+            if(Float.isInfinite(value)) return copy(negative ? "-Infinity" : "Infinity", dst, offset);
+            return copy(Float.toString(value), dst, offset);
+        }
+        long scaled = (long) (magnitude + 0.5);
+
+        if(negative) dst[offset++] = '-';
+        long whole = scaled / POW10[decimals];
+        offset = format(whole, dst, offset);
+        if(decimals == 0) return offset;
+        dst[offset++] = '.';
+        long fraction = scaled - whole * POW10[decimals];
+        for(int i = decimals - 1; i >= 0; i--){
+            dst[offset + i] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return offset + decimals;
+    }
+
+    /**
+     * Write value in decimal into dst, which needs room for 20 chars.
+     * @return offset after the last char written
+     */
+    public static int format(long value, char[] dst, int offset){
+        if(value == Long.MIN_VALUE) return copy("-9223372036854775808", dst, offset);
+        if(value < 0){
+            dst[offset++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for(long v = value; v >= 10; v /= 10) digits++;
+        for(int i = digits - 1; i >= 0; i--){
+            dst[offset + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private static int copy(String s, char[] dst, int offset){
+        s.getChars(0, s.length(), dst, offset);
+        return offset + s.length();
+    }
+}
@@ -0,0 +1,128 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Streaming decoder for CommandFrame.
+ * Bytes can be fed in chunks of any size; a frame split across two reads
+ * is reassembled in a small internal buffer. Complete frames with a valid
+ * checksum are handed to the Listener, anything else is skipped until the
+ * next header is found.
+ *
+ * Deltas following an OP_DRIVE frame are applied to it and delivered as
+ * OP_DRIVE with the resulting throttle and steer and the sequence of the
+ * last full frame. Deltas are ignored until a valid OP_DRIVE frame has
+ * been seen, and again after a corrupt frame, until the next one.
+ *
+ * A decoder is not thread safe, it is meant to be owned by one reader.
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives decoded frames. Called on the thread that calls feed().
+     * arg is unsigned; for OP_DRIVE (byte) arg is the signed throttle.
+     */
+    public interface Listener {
+        void onFrame(int opcode, int arg, int payload, int seq);
+    }
+
+    private final Listener mListener;
+
+    //bytes of the frame currently being assembled
+    private final byte[] mFrame = new byte[CommandFrame.FRAME_SIZE];
+    private int mFill;
+
+    //last OP_DRIVE state, deltas apply to it
+    private boolean mDriveValid;
+    private int mThrottle, mSteer, mDriveSeq;
+    private int mLongDelta = -1; //first byte of a long delta waiting for its second
+
+    //statistics
+    private volatile long mFrames; //frames delivered, read by other threads
+    private long mBadChecksums;  //frames dropped because of their checksum
+    private long mSkippedBytes;  //bytes discarded while looking for a header
+    private long mDeltas;        //deltas applied
+
+    public FrameDecoder(Listener listener){
+        mListener = listener;
+        mFill = 0;
+    }
+
+    /**
+     * Decode len bytes of src starting at offset.
+     * Nothing is allocated.
+     */
+    public void feed(byte[] src, int offset, int len){
+        final int end = offset + len;
+        for(int i = offset; i < end; i++){
+            byte b = src[i];
+
+            //second byte of a long delta
+            if(mLongDelta >= 0){
+                applyDelta(CommandFrame.longDeltaThrottle((byte) mLongDelta), b);
+                mLongDelta = -1;
+                continue;
+            }
+            //a delta between frames
+            if(mFill == 0 && mDriveValid && CommandFrame.isDelta(b)){
+                if(CommandFrame.deltaSize(b) == 2) mLongDelta = b & 0xFF;
+                else applyDelta(CommandFrame.shortDeltaThrottle(b), CommandFrame.shortDeltaSteer(b));
+                continue;
+            }
+            //waiting for the start of a frame
+            if(mFill == 0 && b != CommandFrame.HEADER){
+                mSkippedBytes++;
+                continue;
+            }
+            mFrame[mFill++] = b;
+            if(mFill < CommandFrame.FRAME_SIZE) continue;
+
+            if(CommandFrame.isValid(mFrame, 0)){
+                mFrames++;
+                mFill = 0;
+                if(CommandFrame.opcode(mFrame, 0) == CommandFrame.OP_DRIVE){
+                    mDriveValid = true;
+                    mThrottle = CommandFrame.driveThrottle(mFrame, 0);
+                    mSteer = CommandFrame.payload(mFrame, 0);
+                    mDriveSeq = CommandFrame.sequence(mFrame, 0);
+                }
+                mListener.onFrame(CommandFrame.opcode(mFrame, 0),
+                                  CommandFrame.arg(mFrame, 0),
+                                  CommandFrame.payload(mFrame, 0),
+                                  CommandFrame.sequence(mFrame, 0));
+            }
+            else{
+                mBadChecksums++;
+                //deltas after a lost frame would apply to the wrong base
+                mDriveValid = false;
+                resync();
+            }
+        }
+    }
+
+    private void applyDelta(int throttle, int steer){
+        mThrottle += throttle;
+        mSteer += steer;
+        mDeltas++;
+        mListener.onFrame(CommandFrame.OP_DRIVE, mThrottle & 0xFF, mSteer, mDriveSeq);
+    }
+
+    //drop the current header and shift down to the next header, if any
+    private void resync(){
+        int next = 1;
+        while(next < mFill && mFrame[next] != CommandFrame.HEADER) next++;
+        mSkippedBytes += next;
+        System.arraycopy(mFrame, next, mFrame, 0, mFill - next);
+        mFill -= next;
+    }
+
+    //forget any partially received frame, e.g. after a reconnect
+    public void reset(){
+        mFill = 0;
+        mDriveValid = false;
+        mLongDelta = -1;
+    }
+
+    public long getFrameCount(){return mFrames;}
+    public long getBadChecksumCount(){return mBadChecksums;}
+    public long getSkippedByteCount(){return mSkippedBytes;}
+    public long getDeltaCount(){return mDeltas;}
+}
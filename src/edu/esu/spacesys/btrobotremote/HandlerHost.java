@@ -0,0 +1,33 @@
+package edu.esu.spacesys.btrobotremote;
+
+import android.os.Debug;
+import android.os.Handler;
+
+/**
+ * Runs a BluetoothClientService on the phone: its messages go to the UI
+ * Activity's Handler and delayed tasks run on the Handler's thread.
+ */
+public class HandlerHost implements BluetoothClientService.Host {
+    private final Handler mHandler;
+
+    public HandlerHost(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void sendMessage(int what, int arg1, int arg2, Object obj) {
+        mHandler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+    }
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+    @Override
+    public long threadCpuTimeNanos() {
+        return Debug.threadCpuTimeNanos();
+    }
+}
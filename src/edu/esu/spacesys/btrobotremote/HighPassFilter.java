@@ -0,0 +1,193 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * High pass filter for multi axis sensor data whose coefficients follow
+ * the rate the samples actually arrive at.
+ *
+ * The cutoff is given in Hz. The time between samples is measured from
+ * their timestamps and smoothed, and the coefficients are recomputed when
+ * it drifts by more than RETUNE_FRACTION, so the cutoff stays put when the
+ * sensor rate changes.
+ *
+ * Order 1 is the classic RC filter: the input minus a low pass with
+ * alpha = RC / (RC + dt). Even orders cascade order / 2 biquad sections
+ * tuned as a Butterworth high pass. All state lives in primitive arrays
+ * allocated by the constructor; filter() allocates nothing.
+ *
+ * Not thread safe: feed it from a single thread.
+ */
+public class HighPassFilter {
+    public static final int MAX_ORDER = 8;
+
+    //used until two samples have been seen
+    private static final float NOMINAL_DT = 0.06f; //SENSOR_DELAY_UI
+    //weight of a new measurement in the smoothed dt
+    private static final float DT_SMOOTHING = 0.2f;
+    //longer gaps are not a sample interval (e.g. the monitor was stopped)
+    private static final float MAX_DT = 0.5f;
+    //relative change of dt that makes the coefficients worth recomputing
+    private static final float RETUNE_FRACTION = 0.05f;
+    //the biquads keep the cutoff below this fraction of the sample rate (Nyquist is 0.5)
+    private static final float MAX_CUTOFF_FRACTION = 0.45f;
+
+    private final int mChannels;
+    private final int mOrder;
+    private final int mSections; //biquad sections, 0 for order 1
+    private float mCutoff;
+
+    //sample interval in seconds: smoothed measurement and the one the coefficients use
+    private float mDt = NOMINAL_DT;
+    private float mTunedDt;
+    private long mLastTimestamp;
+    private boolean mPrimed; //state has been seeded from a first sample
+
+    //order 1: low pass coefficient and per channel low pass state
+    private float mAlpha;
+    private final float[] mLow;
+
+    //biquads: normalized coefficients per section, state [section][channel]
+    private final float[] mB0, mB1, mB2, mA1, mA2;
+    private final float[] mZ1, mZ2;
+
+    /**
+     * @param channels number of values per sample, e.g. 3 for x, y, z
+     * @param cutoffHz frequencies below this are removed
+     * @param order 1, or an even number up to MAX_ORDER
+     */
+    public HighPassFilter(int channels, float cutoffHz, int order){
+        if(channels < 1) throw new IllegalArgumentException("channels < 1");
+        if(order != 1 && (order < 2 || order > MAX_ORDER || order % 2 != 0)){
+            throw new IllegalArgumentException("order must be 1 or even up to " + MAX_ORDER + ": " + order);
+        }
+        if(!(cutoffHz > 0)) throw new IllegalArgumentException("cutoff must be positive: " + cutoffHz);
+        mChannels = channels;
+        mOrder = order;
+        mSections = order == 1 ? 0 : order / 2;
+        mCutoff = cutoffHz;
+
+        mLow = new float[channels];
+        mB0 = new float[mSections];
+        mB1 = new float[mSections];
+        mB2 = new float[mSections];
+        mA1 = new float[mSections];
+        mA2 = new float[mSections];
+        mZ1 = new float[mSections * channels];
+        mZ2 = new float[mSections * channels];
+        tune(mDt);
+    }
+
+    /**
+     * Filter one sample.
+     * @param in raw values, mChannels of them
+     * @param timestamp time of the sample in nanoseconds
+     * @param out receives the filtered values, may be the same array as in
+     */
+    public void filter(final float[] in, long timestamp, float[] out){
+        measure(timestamp);
+        if(!mPrimed){
+            prime(in);
+            mPrimed = true;
+        }
+        if(mSections == 0){
+            final float alpha = mAlpha;
+            for(int c = 0; c < mChannels; c++){
+                float x = in[c];
+                mLow[c] = alpha * mLow[c] + (1 - alpha) * x;
+                out[c] = x - mLow[c];
+            }
+            return;
+        }
+        for(int c = 0; c < mChannels; c++){
+            float v = in[c];
+            for(int s = 0; s < mSections; s++){
+                //transposed direct form II
+                int z = s * mChannels + c;
+                float y = mB0[s] * v + mZ1[z];
+                mZ1[z] = mB1[s] * v - mA1[s] * y + mZ2[z];
+                mZ2[z] = mB2[s] * v - mA2[s] * y;
+                v = y;
+            }
+            out[c] = v;
+        }
+    }
+
+    //update the smoothed sample interval and retune if it moved enough
+    private void measure(long timestamp){
+        if(mLastTimestamp != 0){
+            float dt = (timestamp - mLastTimestamp) * 1e-9f;
+            if(dt > 0 && dt <= MAX_DT){
+                mDt += DT_SMOOTHING * (dt - mDt);
+                if(Math.abs(mDt - mTunedDt) > RETUNE_FRACTION * mTunedDt) tune(mDt);
+            }
+        }
+        mLastTimestamp = timestamp;
+    }
+
+    //start as if in had been constant forever, so the first outputs are 0
+    private void prime(final float[] in){
+        for(int c = 0; c < mChannels; c++){
+            mLow[c] = in[c];
+            float x = in[c];
+            for(int s = 0; s < mSections; s++){
+                int z = s * mChannels + c;
+                mZ2[z] = mB2[s] * x;
+                mZ1[z] = mB1[s] * x + mZ2[z];
+                //a high pass section outputs 0 for a constant input
+                x = 0;
+            }
+        }
+    }
+
+    //compute the coefficients for sample interval dt
+    private void tune(float dt){
+        mTunedDt = dt;
+        mAlpha = alpha(mCutoff, dt);
+
+        //past Nyquist the bilinear sections fold back, the RC form needs no limit
+        float cutoff = Math.min(mCutoff, MAX_CUTOFF_FRACTION / dt);
+        double w0 = 2 * Math.PI * cutoff * dt;
+        double cos = Math.cos(w0);
+        double sin = Math.sin(w0);
+        for(int s = 0; s < mSections; s++){
+            //Butterworth pole pair s of an order mOrder filter
+            double q = 1 / (2 * Math.cos((2 * s + 1) * Math.PI / (2 * mOrder)));
+            double a = sin / (2 * q);
+            double a0 = 1 + a;
+            mB0[s] = (float) ((1 + cos) / 2 / a0);
+            mB1[s] = (float) (-(1 + cos) / a0);
+            mB2[s] = mB0[s];
+            mA1[s] = (float) (-2 * cos / a0);
+            mA2[s] = (float) ((1 - a) / a0);
+        }
+    }
+
+    //low pass coefficient of the order 1 filter, in (0, 1) for any cutoff and dt
+    static float alpha(float cutoffHz, float dt){
+        float rc = 1f / (2f * (float) Math.PI * cutoffHz);
+        return rc / (rc + dt);
+    }
+
+    //change the cutoff, keeps the filter state
+    public void setCutoff(float cutoffHz){
+        if(!(cutoffHz > 0)) throw new IllegalArgumentException("cutoff must be positive: " + cutoffHz);
+        mCutoff = cutoffHz;
+        tune(mDt);
+    }
+    public float getCutoff(){return mCutoff;}
+    public int getOrder(){return mOrder;}
+    //smoothed time between samples in seconds
+    public float getSampleInterval(){return mDt;}
+
+    //forget the filter state and the measured sample interval
+    public void reset(){
+        for(int c = 0; c < mChannels; c++) mLow[c] = 0;
+        for(int i = 0; i < mZ1.length; i++){
+            mZ1[i] = 0;
+            mZ2[i] = 0;
+        }
+        mLastTimestamp = 0;
+        mPrimed = false;
+        mDt = NOMINAL_DT;
+        tune(mDt);
+    }
+}
@@ -0,0 +1,95 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket histogram of latencies in microseconds.
+ *
+ * Buckets are log-linear: values below 8 us get a bucket each, above that
+ * every power of two is split into 8 buckets, so any value is reported
+ * within 12.5%. The bucket table is allocated once; record() only
+ * increments a counter and can be called from several threads.
+ */
+public class LatencyHistogram {
+    //sub buckets per power of two, as a number of bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    //enough buckets for values up to 2^31 us (about 35 minutes)
+    public static final int BUCKETS = (31 - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Count one latency.
+     * @param micros latency in microseconds, negative values count as 0
+     */
+    public void record(long micros){
+        if(micros < 0) micros = 0;
+        mCounts.incrementAndGet(bucketOf(micros));
+        mTotal.incrementAndGet();
+
+        long max = mMax.get();
+        while(micros > max && !mMax.compareAndSet(max, micros)){
+            max = mMax.get();
+        }
+    }
+
+    //index of the bucket holding value
+    static int bucketOf(long value){
+        if(value < SUB_COUNT) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int index = (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+        return index < BUCKETS ? index : BUCKETS - 1;
+    }
+
+    //smallest value that falls into bucket
+    static long bucketLow(int bucket){
+        if(bucket < SUB_COUNT) return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+    }
+
+    //largest value that falls into bucket
+    static long bucketHigh(int bucket){
+        if(bucket < SUB_COUNT) return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        return bucketLow(bucket) + (1L << shift) - 1;
+    }
+
+    public long getCount(){return mTotal.get();}
+    public long getMax(){return mMax.get();}
+
+    /**
+     * Return the latency below which the given fraction of values fall,
+     * as the upper bound of the bucket that holds it.
+     * @param fraction between 0 and 1, e.g. 0.99 for p99
+     * @return latency in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction){
+        long total = mTotal.get();
+        if(total == 0) return 0;
+        long target = (long) Math.ceil(fraction * total);
+        if(target < 1) target = 1;
+
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += mCounts.get(i);
+            if(seen >= target) return Math.min(bucketHigh(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    //number of values in bucket, for dumping the full distribution
+    public long getBucketCount(int bucket){return mCounts.get(bucket);}
+
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++) mCounts.set(i, 0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+}
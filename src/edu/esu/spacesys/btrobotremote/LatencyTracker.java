@@ -0,0 +1,92 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Measures how long a sensor sample takes to turn into bytes on the wire.
+ *
+ * Every stage records the time elapsed since the SensorEvent.timestamp of
+ * the sample that triggered it, into its own LatencyHistogram:
+ *   STAGE_FILTER   sample has been filtered
+ *   STAGE_CLASSIFY tilt has been mapped to command frames
+ *   STAGE_ENQUEUE  frames are in the outbound queue
+ *   STAGE_WRITE    frames have been written to the socket
+ *
+ * Sensor timestamps do not use the same clock base on every device.
+ * The first timestamp seen is compared to System.nanoTime() and, if they
+ * are more than a second apart, the difference is used as an offset from
+ * then on.
+ */
+public class LatencyTracker {
+    public static final int STAGE_FILTER = 0;
+    public static final int STAGE_CLASSIFY = 1;
+    public static final int STAGE_ENQUEUE = 2;
+    public static final int STAGE_WRITE = 3;
+    public static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {"filter", "classify", "enqueue", "write"};
+
+    //clocks closer than this are assumed to share a base
+    private static final long SAME_CLOCK_NANOS = 1000000000L;
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+
+    //added to sensor timestamps to bring them onto System.nanoTime()
+    private volatile long mOffset;
+    private volatile boolean mCalibrated;
+
+    public LatencyTracker(){
+        for(int i = 0; i < STAGE_COUNT; i++) mStages[i] = new LatencyHistogram();
+    }
+
+    public static String stageName(int stage){return STAGE_NAMES[stage];}
+
+    public LatencyHistogram getStage(int stage){return mStages[stage];}
+
+    /**
+     * Record that stage was reached now for the sample taken at timestamp.
+     * @param timestamp SensorEvent.timestamp of the sample, 0 means untracked
+     */
+    public void record(int stage, long timestamp){
+        if(timestamp == 0) return;
+        long now = System.nanoTime();
+        if(!mCalibrated) calibrate(timestamp, now);
+        mStages[stage].record((now - (timestamp + mOffset)) / 1000L);
+    }
+
+    private synchronized void calibrate(long timestamp, long now){
+        if(mCalibrated) return;
+        long delta = now - timestamp;
+        mOffset = Math.abs(delta) > SAME_CLOCK_NANOS ? delta : 0;
+        mCalibrated = true;
+    }
+
+    public void reset(){
+        for(int i = 0; i < STAGE_COUNT; i++) mStages[i].reset();
+    }
+
+    /**
+     * Write a summary line per stage followed by the non empty buckets.
+     * All values are in microseconds.
+     */
+    public void dump(Writer out) throws IOException {
+        out.write("stage count p50 p99 max\n");
+        for(int i = 0; i < STAGE_COUNT; i++){
+            LatencyHistogram h = mStages[i];
+            out.write(STAGE_NAMES[i] + " " + h.getCount() + " " + h.getPercentile(0.50)
+                      + " " + h.getPercentile(0.99) + " " + h.getMax() + "\n");
+        }
+        for(int i = 0; i < STAGE_COUNT; i++){
+            LatencyHistogram h = mStages[i];
+            out.write("\n" + STAGE_NAMES[i] + " buckets (low high count)\n");
+            for(int b = 0; b < LatencyHistogram.BUCKETS; b++){
+                long count = h.getBucketCount(b);
+                if(count == 0) continue;
+                out.write(LatencyHistogram.bucketLow(b) + " " + LatencyHistogram.bucketHigh(b)
+                          + " " + count + "\n");
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,456 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak test of BluetoothClientService against SimulatedRobots, with no
+ * radio hardware involved.
+ *
+ * Runs the service the app runs, with a Host that stands in for the UI
+ * Activity's Handler: one thread receives its messages and runs its
+ * delayed reconnects. Robot 0 is the main connection, the others are
+ * added to the fleet. Drive commands at a fixed rate go to all of them
+ * through write() and broadcast(), over LoopbackTransport (default) or
+ * TcpTransport. Every so often a sonar reading is requested to measure
+ * the round trip of the main connection. When a robot drops the link
+ * (--drop) the service reconnects the main robot by itself; fleet robots
+ * are added again when they report STATE_NONE, like the user would.
+ *
+ * At the end every robot must hold the last drive state sent and must not
+ * have seen a corrupt frame; otherwise the exit status is 1, so the run
+ * can gate a CI job. Run on any JVM:
+ *   java edu.esu.spacesys.btrobotremote.LinkSoakTest [--tcp] [--robots n] [--seconds s]
+ *        [--rate hz] [--telemetry hz] [--drop ms] [--link-rate bytes/s] [--verbose]
+ */
+public class LinkSoakTest {
+    //every REQUEST_EVERY drive commands a sonar reading is requested
+    private static final int REQUEST_EVERY = 10;
+    //readings requested by the test use this channel, pushed ones use 0
+    private static final int REQUEST_CHANNEL = 1;
+    //how long the robots get to agree on the final drive state
+    private static final long SETTLE_MILLIS = 10000;
+
+    private final String[] mAddresses;
+    private final SimulatedRobot[] mRobots;
+    private final SoakHost mHost = new SoakHost();
+    private final BluetoothClientService mService;
+
+    //fleet robots, touched on the host thread only. Link ids are handed
+    //out again, so each robot keeps the RobotLink it was last added with
+    private final RobotLink[] mLinks;
+    private final Backoff[] mReAdd;
+    private final long[] mLostAt;
+    private volatile boolean mStopping;
+
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram mReconnect = new LatencyHistogram();
+    private final LatencyHistogram mFleetReconnect = new LatencyHistogram();
+    //send time of the outstanding requests, by sequence
+    private final long[] mRequested = new long[256];
+    private volatile long mReadings;
+    private volatile long mReplies;
+    private int mReconnectsSeen;
+    private String mMainStats = "";
+
+    private final byte[] mFrame = new byte[CommandFrame.FRAME_SIZE];
+    private int mSeq;
+
+    /**
+     * @param tcp talk to the robots over TCP on localhost instead of in
+     *            process pipes
+     */
+    public LinkSoakTest(boolean tcp, int robots, int telemetryHz, long dropMillis, int linkRate)
+            throws IOException {
+        mAddresses = new String[robots];
+        mRobots = new SimulatedRobot[robots];
+        mLinks = new RobotLink[robots];
+        mReAdd = new Backoff[robots];
+        mLostAt = new long[robots];
+        LoopbackTransport loopback = tcp ? null : new LoopbackTransport();
+        for(int i = 0; i < robots; i++){
+            mRobots[i] = new SimulatedRobot(telemetryHz);
+            mRobots[i].setDropInterval(dropMillis);
+            if(tcp){
+                mAddresses[i] = "127.0.0.1:" + mRobots[i].listen(0);
+            }
+            else{
+                mAddresses[i] = "robot" + i;
+                loopback.bind(mAddresses[i], mRobots[i]);
+            }
+            mReAdd[i] = new Backoff(50, 2000);
+        }
+        mService = new BluetoothClientService(mHost, new LatencyTracker(),
+                tcp ? new TcpTransport() : loopback, new MemoryHistory());
+        mService.setLinkRate(linkRate);
+    }
+
+    /**
+     * Send drive commands at rateHz for the given time, then make sure
+     * the last one reached every robot.
+     * @return true if every robot ended in the last drive state sent
+     */
+    public boolean run(long millis, int rateHz) throws InterruptedException {
+        mService.connect(mAddresses[0]);
+        mHost.post(new Runnable(){
+            public void run(){
+                for(int i = 1; i < mRobots.length; i++) addRobot(i);
+            }
+        });
+
+        final long period = 1000000000L / rateHz;
+        final long start = System.nanoTime();
+        final long end = start + millis * 1000000L;
+        int throttle = 0, steer = 0;
+        long next = start;
+        for(int n = 0; next < end; n++){
+            //sweep throttle and steer so deltas of every size show up
+            double t = (next - start) / 1e9;
+            throttle = (int) Math.round(CommandFrame.DRIVE_MAX * Math.sin(t * 0.7));
+            steer = (int) Math.round(CommandFrame.DRIVE_MAX * Math.sin(t * 2.3));
+            sendDrive(throttle, steer);
+            if(n % REQUEST_EVERY == 0) requestSonar();
+
+            next += period;
+            long sleep = next - System.nanoTime();
+            if(sleep > 0) Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+        }
+
+        //stop dropping, new connections stay up, and repeat the last
+        //command like the app's refresh until every robot has it
+        for(SimulatedRobot robot : mRobots) robot.setDropInterval(0);
+        final long settleEnd = System.currentTimeMillis() + SETTLE_MILLIS;
+        boolean agreed = false;
+        while(!agreed && System.currentTimeMillis() < settleEnd){
+            sendDrive(throttle, steer);
+            Thread.sleep(250);
+            agreed = true;
+            for(SimulatedRobot robot : mRobots){
+                agreed &= robot.getThrottle() == throttle && robot.getSteer() == steer;
+            }
+        }
+
+        //counters of the main connection are gone once it is stopped
+        mMainStats = "dropped " + mService.getDroppedCount() + " coalesced "
+                     + mService.getCoalescedCount() + " throttled " + mService.getThrottledCount()
+                     + " received " + mService.getFramesReceived() + " frames";
+        mStopping = true;
+        mService.stop();
+        mHost.quit();
+        for(SimulatedRobot robot : mRobots) robot.close();
+        return agreed;
+    }
+
+    //same frame to the main robot and the fleet
+    private void send(){
+        mService.write(mFrame, 0, CommandFrame.FRAME_SIZE, 0);
+        mService.broadcast(mFrame, 0, CommandFrame.FRAME_SIZE);
+    }
+
+    private void sendDrive(int throttle, int steer){
+        CommandFrame.encodeDrive(mFrame, 0, throttle, steer, mSeq++);
+        send();
+    }
+
+    private void requestSonar(){
+        final int seq = mSeq++;
+        CommandFrame.encode(mFrame, 0, CommandFrame.OP_SONAR, REQUEST_CHANNEL, 0, seq);
+        synchronized(mRequested){
+            mRequested[seq & 0xFF] = System.nanoTime();
+        }
+        send();
+    }
+
+    //host thread only
+    private void addRobot(final int robot){
+        if(mStopping) return;
+        int id = mService.addRobot(mAddresses[robot]);
+        mLinks[robot] = id < 0 ? null : mService.getRobot(id);
+        if(mLinks[robot] == null){
+            //fleet full, or the link ended already and its report is not
+            //ours to match any more: try again later
+            mHost.postDelayed(new Runnable(){
+                public void run(){addRobot(robot);}
+            }, mReAdd[robot].nextDelay());
+        }
+    }
+
+    //host thread only. The robot whose link reported state, -1 if none
+    private int fleetRobot(int id, int state){
+        for(int i = 1; i < mLinks.length; i++){
+            RobotLink link = mLinks[i];
+            if(link != null && link.getId() == id && link.getState() == state) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the service's messages, like the UI Activity's Handler.
+     */
+    private void handleMessage(int what, int arg1, int arg2, Object obj){
+        switch(what){
+        case BluetoothClientService.MESSAGE_STATE_CHANGE:{
+            if(arg1 != BluetoothClientService.STATE_CONNECTED) break;
+            int reconnects = mService.getReconnectCount();
+            if(reconnects != mReconnectsSeen){
+                mReconnectsSeen = reconnects;
+                mReconnect.record(mService.getLastReconnectMillis() * 1000L);
+            }
+            break;
+        }
+        case BluetoothClientService.MESSAGE_FRAME:{
+            onFrame(BluetoothClientService.frameOpcode(arg1), BluetoothClientService.frameArg(arg1),
+                    BluetoothClientService.frameSequence(arg2));
+            break;
+        }
+        case BluetoothClientService.MESSAGE_FLEET_STATE:{
+            if(arg2 == RobotLink.STATE_CONNECTED){
+                int robot = fleetRobot(arg1, arg2);
+                if(robot < 0) break;
+                if(mLostAt[robot] != 0) mFleetReconnect.record((System.nanoTime() - mLostAt[robot]) / 1000L);
+                mLostAt[robot] = 0;
+                mReAdd[robot].reset();
+            }
+            else if(arg2 == RobotLink.STATE_NONE){
+                final int robot = fleetRobot(arg1, arg2);
+                if(robot < 0) break;
+                mLinks[robot] = null;
+                if(mLostAt[robot] == 0) mLostAt[robot] = System.nanoTime();
+                mHost.postDelayed(new Runnable(){
+                    public void run(){addRobot(robot);}
+                }, mReAdd[robot].nextDelay());
+            }
+            break;
+        }
+        default:
+        }
+    }
+
+    private void onFrame(int opcode, int arg, int seq){
+        if(opcode != CommandFrame.OP_IR && opcode != CommandFrame.OP_SONAR) return;
+        if(arg != REQUEST_CHANNEL){
+            mReadings++;
+            return;
+        }
+        final long now = System.nanoTime();
+        synchronized(mRequested){
+            long sent = mRequested[seq & 0xFF];
+            if(sent == 0) return;
+            mRequested[seq & 0xFF] = 0;
+            mRoundTrip.record((now - sent) / 1000L);
+        }
+        mReplies++;
+    }
+
+    /**
+     * One thread that runs the service's messages and delayed tasks in
+     * order, the way a Handler does on the phone.
+     */
+    private class SoakHost implements BluetoothClientService.Host {
+        private final ScheduledExecutorService mLooper =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "SoakHost");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+        //pending postDelayed() tasks, so they can be removed again
+        private final Map<Runnable, List<ScheduledFuture<?>>> mPending =
+            new HashMap<Runnable, List<ScheduledFuture<?>>>();
+
+        @Override
+        public void sendMessage(final int what, final int arg1, final int arg2, final Object obj){
+            post(new Runnable(){
+                public void run(){handleMessage(what, arg1, arg2, obj);}
+            });
+        }
+
+        //false once the host has quit, like Handler.post()
+        boolean post(Runnable task){
+            try{
+                mLooper.execute(task);
+                return true;
+            }
+            catch(RejectedExecutionException e){
+                return false;
+            }
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis){
+            synchronized(mPending){
+                List<ScheduledFuture<?>> futures = mPending.get(task);
+                if(futures == null){
+                    futures = new ArrayList<ScheduledFuture<?>>();
+                    mPending.put(task, futures);
+                }
+                for(Iterator<ScheduledFuture<?>> it = futures.iterator(); it.hasNext(); ){
+                    if(it.next().isDone()) it.remove();
+                }
+                try{
+                    futures.add(mLooper.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+                }
+                catch(RejectedExecutionException e){
+                    //quit already
+                }
+            }
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task){
+            List<ScheduledFuture<?>> futures;
+            synchronized(mPending){
+                futures = mPending.remove(task);
+            }
+            if(futures == null) return;
+            for(ScheduledFuture<?> future : futures) future.cancel(false);
+        }
+
+        @Override
+        public long threadCpuTimeNanos(){
+            return mThreads.getCurrentThreadCpuTime();
+        }
+
+        //drop what is still queued and stop the thread
+        void quit() throws InterruptedException {
+            mLooper.shutdownNow();
+            mLooper.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * ConnectHistory that lasts for the run, the phone's DeviceIndex
+     * keeps it in SharedPreferences.
+     */
+    private static class MemoryHistory implements ConnectHistory {
+        private final Map<String, Integer> mSocketTypes = new HashMap<String, Integer>();
+
+        @Override
+        public synchronized int getSocketType(String address){
+            Integer type = mSocketTypes.get(address);
+            return type == null ? SOCKET_UNKNOWN : type;
+        }
+        @Override
+        public synchronized void putSocketType(String address, int type){
+            mSocketTypes.put(address, type);
+        }
+        @Override
+        public synchronized void forgetSocketType(String address){
+            mSocketTypes.remove(address);
+        }
+        @Override
+        public void recordAttempt(String address, boolean success){
+        }
+        @Override
+        public void setLastAddress(String address){
+        }
+    }
+
+    /**
+     * Counts the lines the service logs and prints them only if asked to,
+     * a dropped robot is expected and logged every time.
+     */
+    private static class CountingSink implements AppLog.Sink {
+        private final boolean mVerbose;
+        private volatile long mWarnings;
+        private volatile long mErrors;
+
+        CountingSink(boolean verbose){mVerbose = verbose;}
+
+        @Override
+        public synchronized void log(int level, String tag, String msg, Throwable tr){
+            if(level == AppLog.WARN) mWarnings++;
+            if(level == AppLog.ERROR) mErrors++;
+            if(!mVerbose) return;
+            System.err.println(tag + ": " + msg);
+            if(tr != null) System.err.println("  " + tr);
+        }
+    }
+
+    private static String summary(LatencyHistogram h){
+        return h.getCount() + " p50 " + h.getPercentile(0.50) + " p99 " + h.getPercentile(0.99)
+               + " max " + h.getMax();
+    }
+
+    public void report(){
+        System.out.println("frames sent:   " + mSeq + " to each of " + mRobots.length + " robots");
+        System.out.println("robot  frames  deltas  sessions  readings  replies");
+        for(int i = 0; i < mRobots.length; i++){
+            SimulatedRobot robot = mRobots[i];
+            System.out.println(i + "  " + robot.getFrameCount() + "  " + robot.getDeltaCount()
+                               + "  " + robot.getSessionCount() + "  " + robot.getReadingCount()
+                               + "  " + robot.getReplyCount());
+        }
+        System.out.println("main link:     " + mMainStats);
+        System.out.println("main readings: " + mReadings + " pushed, " + mReplies + " replies");
+        System.out.println("fan-out us:    " + summary(mService.getFanout().getFanout()));
+        System.out.println("spread us:     " + summary(mService.getFanout().getSpread()));
+        System.out.println("round trip us: " + summary(mRoundTrip));
+        System.out.println("reconnect us:  " + summary(mReconnect));
+        System.out.println("re-add us:     " + summary(mFleetReconnect));
+    }
+
+    //true if a robot received a frame with a bad checksum
+    public boolean sawCorruption(){
+        for(SimulatedRobot robot : mRobots){
+            if(robot.getBadChecksumCount() != 0) return true;
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean tcp = false;
+        boolean verbose = false;
+        int robots = 3;
+        long seconds = 30;
+        int rateHz = 50;
+        int telemetryHz = 10;
+        long dropMillis = 0;
+        int linkRate = 960;
+        for(int i = 0; i < args.length; i++){
+            if("--tcp".equals(args[i])) tcp = true;
+            else if("--verbose".equals(args[i])) verbose = true;
+            else if(i + 1 >= args.length){
+                System.err.println("usage: LinkSoakTest [--tcp] [--robots n] [--seconds s] [--rate hz]"
+                                   + " [--telemetry hz] [--drop ms] [--link-rate bytes/s] [--verbose]");
+                System.exit(2);
+            }
+            else if("--robots".equals(args[i])) robots = Integer.parseInt(args[++i]);
+            else if("--seconds".equals(args[i])) seconds = Long.parseLong(args[++i]);
+            else if("--rate".equals(args[i])) rateHz = Integer.parseInt(args[++i]);
+            else if("--telemetry".equals(args[i])) telemetryHz = Integer.parseInt(args[++i]);
+            else if("--drop".equals(args[i])) dropMillis = Long.parseLong(args[++i]);
+            else if("--link-rate".equals(args[i])) linkRate = Integer.parseInt(args[++i]);
+        }
+        //the main connection plus a full fleet
+        robots = Math.max(1, Math.min(robots, FleetScheduler.MAX_LINKS + 1));
+
+        CountingSink log = new CountingSink(verbose);
+        AppLog.setSink(log);
+        LinkSoakTest test = new LinkSoakTest(tcp, robots, telemetryHz, dropMillis, linkRate);
+        System.out.println((tcp ? "tcp" : "loopback") + ", " + robots + " robots, " + seconds + " s, "
+                           + rateHz + " commands/s, " + linkRate + " bytes/s per link"
+                           + (dropMillis > 0 ? ", dropped every " + dropMillis + " ms" : ""));
+        boolean agreed = test.run(seconds * 1000L, rateHz);
+        test.report();
+        System.out.println("logged:        " + log.mWarnings + " warnings, " + log.mErrors + " errors");
+        boolean corrupt = test.sawCorruption();
+        System.out.println("result:        " + (agreed && !corrupt ? "OK"
+                           : !agreed ? "FAIL, final drive state not received" : "FAIL, corrupt frames"));
+        System.exit(agreed && !corrupt ? 0 : 1);
+    }
+}
@@ -0,0 +1,187 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transport to endpoints in the same process, for tests and soak runs
+ * that should not depend on the network stack.
+ *
+ * An Endpoint is bound to an address; every connect() to it starts a
+ * thread running Endpoint.serve() with the other ends of two pipes. The
+ * pipes hold PIPE_SIZE bytes and block the writer when full, like socket
+ * buffers do, so pacing and backpressure behave as on a real link.
+ * Closing either side ends the connection for both.
+ *
+ * Has no Android dependencies.
+ */
+public class LoopbackTransport implements Transport {
+    //bytes buffered in each direction, about what an RFCOMM socket holds
+    public static final int PIPE_SIZE = 4096;
+
+    /**
+     * Serves one connection, on its own thread. The streams are closed
+     * when serve() returns.
+     */
+    public interface Endpoint {
+        void serve(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private final Map<String, Endpoint> mEndpoints = new HashMap<String, Endpoint>();
+
+    //connections to address go to endpoint from now on
+    public synchronized void bind(String address, Endpoint endpoint){
+        mEndpoints.put(address, endpoint);
+    }
+    //connections to address fail from now on, open ones stay open
+    public synchronized void unbind(String address){
+        mEndpoints.remove(address);
+    }
+    private synchronized Endpoint lookup(String address){
+        return mEndpoints.get(address);
+    }
+
+    @Override
+    public Connection open(String address, boolean secure){
+        return new LoopbackConnection(address);
+    }
+
+    private class LoopbackConnection implements Connection {
+        private final String mAddress;
+        private final Pipe mToEndpoint = new Pipe(PIPE_SIZE);
+        private final Pipe mFromEndpoint = new Pipe(PIPE_SIZE);
+
+        LoopbackConnection(String address){
+            mAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            final Endpoint endpoint = lookup(mAddress);
+            if(endpoint == null) throw new IOException("nothing bound at " + mAddress);
+            if(mToEndpoint.isClosed()) throw new IOException("closed");
+            Thread t = new Thread("Loopback " + mAddress){
+                @Override
+                public void run(){
+                    try{
+                        endpoint.serve(mToEndpoint.in, mFromEndpoint.out);
+                    }
+                    catch(IOException e){
+                        //the client went away, nothing to report
+                    }
+                    finally{
+                        closePipes();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        @Override
+        public InputStream getInputStream(){return mFromEndpoint.in;}
+        @Override
+        public OutputStream getOutputStream(){return mToEndpoint.out;}
+        @Override
+        public void close(){closePipes();}
+
+        private void closePipes(){
+            mToEndpoint.close();
+            mFromEndpoint.close();
+        }
+    }
+
+    /**
+     * Bounded byte pipe. Unlike PipedInputStream it does not care which
+     * threads read and write, writers and readers come and go here.
+     */
+    static class Pipe {
+        private final byte[] mBuffer;
+        private int mHead;  //next byte to read
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream in = new InputStream(){
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+            @Override
+            public int read(byte[] dst, int offset, int len) throws IOException {
+                return Pipe.this.read(dst, offset, len);
+            }
+            @Override
+            public int available(){
+                synchronized(Pipe.this){return mCount;}
+            }
+            @Override
+            public void close(){Pipe.this.close();}
+        };
+        final OutputStream out = new OutputStream(){
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] src, int offset, int len) throws IOException {
+                Pipe.this.write(src, offset, len);
+            }
+            @Override
+            public void close(){Pipe.this.close();}
+        };
+
+        Pipe(int size){
+            mBuffer = new byte[size];
+        }
+
+        synchronized boolean isClosed(){return mClosed;}
+
+        synchronized void close(){
+            mClosed = true;
+            notifyAll();
+        }
+
+        //blocks until something can be read, -1 once closed and empty
+        private synchronized int read(byte[] dst, int offset, int len) throws IOException {
+            if(len == 0) return 0;
+            try{
+                while(mCount == 0 && !mClosed) wait();
+            }
+            catch(InterruptedException e){
+                throw new IOException("interrupted");
+            }
+            if(mCount == 0) return -1;
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, dst, offset, first);
+            System.arraycopy(mBuffer, 0, dst, offset + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        //blocks while full, throws once closed
+        private synchronized void write(byte[] src, int offset, int len) throws IOException {
+            while(len > 0){
+                try{
+                    while(mCount == mBuffer.length && !mClosed) wait();
+                }
+                catch(InterruptedException e){
+                    throw new IOException("interrupted");
+                }
+                if(mClosed) throw new IOException("pipe closed");
+                int tail = (mHead + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                System.arraycopy(src, offset, mBuffer, tail, n);
+                mCount += n;
+                offset += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring of raw sensor samples that several consumers read independently,
+ * e.g. the motion pipeline on the main thread and the trace recorder.
+ *
+ * The sensor thread copies each sample into a preallocated slot once;
+ * every Subscription has its own read position and copies samples out
+ * into a Sample it owns. Nobody holds on to the slots or to
+ * the sensor's arrays, and nothing is allocated per sample however many
+ * consumers there are.
+ *
+ * The producer never waits. A subscriber that falls a whole ring behind
+ * has its oldest unread sample overwritten and counted as dropped, the
+ * other subscribers are not affected. Both ends advance a subscriber's
+ * position with compareAndSet: the producer to drop the oldest sample,
+ * the subscriber to commit a read. A read that loses the race was copying
+ * a slot that is being overwritten and simply retries. Every sample gets
+ * a sequence number, its position in the stream, so a subscriber can see
+ * gaps directly.
+ *
+ * Subscriptions are preallocated too; subscribe() and close() may be
+ * called from any thread while samples are being published.
+ */
+public class MotionEventBus {
+    public static final int MAX_SUBSCRIBERS = 4;
+
+    //sample types
+    public static final int TYPE_ACCEL = 0;
+    public static final int TYPE_GYRO = 1;
+
+    /**
+     * Holder a subscriber copies a sample into.
+     * Allocate one and reuse it for every poll().
+     */
+    public static final class Sample {
+        public int type;
+        public long timestamp;  //nanoseconds, as in SensorEvent.timestamp
+        public long sequence;   //position of the sample in the stream
+        public final float[] values = new float[3];
+    }
+
+    /**
+     * One consumer's view of the bus. poll() must only be called from
+     * one thread at a time.
+     */
+    public final class Subscription {
+        //next position to read, advanced by the consumer and by the producer when full
+        private final AtomicLong mCursor = new AtomicLong();
+        private volatile boolean mActive;
+        //written by the producer only
+        private volatile long mDropped;
+
+        /**
+         * Copy the oldest sample not read yet into out.
+         * @return false if there is nothing new, or the subscription is closed
+         */
+        public boolean poll(Sample out){
+            while(mActive){
+                final long cursor = mCursor.get();
+                if(cursor >= mHead.get()) return false;
+
+                final int i = (int) cursor & mMask;
+                out.type = mType[i];
+                out.timestamp = mTimestamp[i];
+                out.values[0] = mValues[i * 3];
+                out.values[1] = mValues[i * 3 + 1];
+                out.values[2] = mValues[i * 3 + 2];
+                out.sequence = cursor;
+
+                //the copy is only valid if the producer did not take the slot meanwhile
+                if(mCursor.compareAndSet(cursor, cursor + 1)) return true;
+            }
+            return false;
+        }
+
+        //number of samples waiting to be read
+        public int size(){
+            long n = mHead.get() - mCursor.get();
+            return n < 0 ? 0 : (int) n;
+        }
+
+        //number of samples overwritten before this subscriber read them
+        public long getDroppedCount(){return mDropped;}
+
+        //stop reading, the subscription can be handed out again
+        public void close(){
+            synchronized(MotionEventBus.this){
+                mActive = false;
+            }
+        }
+    }
+
+    private final int mMask;
+    private final int[] mType;
+    private final long[] mTimestamp;
+    private final float[] mValues;
+
+    //next position to write, only advanced by the producer
+    private final AtomicLong mHead = new AtomicLong();
+
+    private final Subscription[] mSubscriptions = new Subscription[MAX_SUBSCRIBERS];
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two.
+     *        The slowest subscriber can be this many samples behind.
+     */
+    public MotionEventBus(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mType = new int[size];
+        mTimestamp = new long[size];
+        mValues = new float[size * 3];
+        for(int i = 0; i < MAX_SUBSCRIBERS; i++) mSubscriptions[i] = new Subscription();
+    }
+
+    public int getCapacity(){return mMask + 1;}
+
+    /**
+     * Start reading with the next sample published.
+     * @throws IllegalStateException if MAX_SUBSCRIBERS are subscribed already
+     */
+    public synchronized Subscription subscribe(){
+        for(Subscription s : mSubscriptions){
+            if(s.mActive) continue;
+            s.mCursor.set(mHead.get());
+            s.mDropped = 0;
+            s.mActive = true;
+            return s;
+        }
+        throw new IllegalStateException("too many subscribers");
+    }
+
+    /**
+     * Publish a sample to every subscriber. Producer thread only, never blocks.
+     */
+    public void publish(int type, long timestamp, float x, float y, float z){
+        final long head = mHead.get();
+        for(Subscription s : mSubscriptions){
+            if(!s.mActive) continue;
+            final long cursor = s.mCursor.get();
+            if(head - cursor > mMask){
+                //full for this subscriber, drop its oldest sample. If it got
+                //there first the slot is free anyway
+                if(s.mCursor.compareAndSet(cursor, cursor + 1)) s.mDropped++;
+            }
+        }
+        final int i = (int) head & mMask;
+        mType[i] = type;
+        mTimestamp[i] = timestamp;
+        mValues[i * 3] = x;
+        mValues[i * 3 + 1] = y;
+        mValues[i * 3 + 2] = z;
+        mHead.lazySet(head + 1);
+    }
+
+    //number of samples published so far
+    public long getPublishedCount(){return mHead.get();}
+}
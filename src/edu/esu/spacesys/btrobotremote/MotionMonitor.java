@@ -9,10 +9,10 @@ import android.hardware.SensorManager;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
-import android.os.Bundle;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 //Monitors the motion of an android device
 //uses the accelerometer and gyroscope to 
@@ -24,51 +24,64 @@ public class MotionMonitor{
     //Motion Monitor States
     //STATE_MONITORING = MotionMonitor is listening to sensors via Monitor thread
     //STATE_IDLE = MotionMonitor is not doing anything, and is not listening to sensors
-    //TODO = perhaps a STATE_LOGGING for logging data to a file or database?
-    private static final int STATE_MONITORING = 1;
-    private static final int STATE_IDLE = 0;
+    //STATE_LOGGING = MotionMonitor is monitoring and also recording raw samples to a trace file
+    public static final int STATE_LOGGING = 2;
+    public static final int STATE_MONITORING = 1;
+    public static final int STATE_IDLE = 0;
     private int mState;
 
-    //vectors for readings
-    private float accel[]; //most recent acceleration values read from device
-    private float prevAccel[]; //previous acceleration values  read from device
-    private float quaterRotation[];//needed to get rotation matrix
-    private float rotation[];  //current rotation of device
+    //filters the raw samples on the pipeline thread
+    private final MotionPipeline mPipeline;
 
-    private final int EPSILON = 5; //margin of error;
-    private float gyroTimeStamp; //most recent time of rotation readings
-    private final float NANO_2_SEC = 1.0f / 1000000000.0f;
-
-    //use this handler to communicate with thread that is using this class
-    private final Handler mHandler;
+    //receives the pipeline's results, on the pipeline thread
+    private final MotionPipeline.Listener mListener;
 
     //thread for listening to sensors
     private SensorMonitorThread mMonitorThread;
 
+    //runs the pipeline, so filtering never waits for the UI thread
+    private volatile PipelineThread mPipelineThread;
+
     //tells what activity to get sensor service from
     private final Context mContext;
-        
-    //keys for accessing data into bundle
-    public static final String KEY_ACCEL  = "key_accel_vector"; //acceleration vector
-    public static final String KEY_ROTATE = "key_rotate_vector";//rotation vector
 
-    public static  final int MESSAGE_MOTION = 0xFE;
+    //raw samples from the sensor thread, read by the pipeline thread and by the recorder
+    //sized for the recorder, which writes out every 50 ms
+    private static final int BUS_CAPACITY = 1024;
+    private final MotionEventBus mBus;
+    private final MotionEventBus.Subscription mSubscription; //read by the pipeline thread
 
-    //arguments with message
-    public static final int ARG_ACCEL = 0;
-    public static final int ARG_GYRO = 1;
+    //true while the pipeline thread has been woken and not drained yet,
+    //so the sensor thread unparks it once per batch
+    private final AtomicBoolean mWakePending;
 
+    //records raw samples from the bus while logging, null otherwise
+    private SensorTraceRecorder mRecorder;
+
+    //chooses the sampling rate from how much the device moves
+    private final AdaptiveRateController mRateController;
+
+    //start recording as soon as monitoring starts
     boolean keepLog = false;
 
 
 
+    /**
+    *Constructor for Motion Monitor, does not record
+    *@param context = activity to get sensors from
+    *@param listener = receives filtered acceleration and rotation, on the pipeline thread
+    */
+    public MotionMonitor(Context context, MotionPipeline.Listener listener){
+        this(context, listener, false);
+    }
     /**
     *Constructor for Motion Monitor
     *@param context = activity to get sensors from
-    *@param handler = handler used to send sensor data to
+    *@param listener = receives filtered acceleration and rotation, on the pipeline thread
+    *@param log = record a trace file as soon as monitoring starts
     */
-    public MotionMonitor(Context context, Handler handler, boolean log){
-        mHandler = handler;
+    public MotionMonitor(Context context, MotionPipeline.Listener listener, boolean log){
+        mListener = listener;
         mContext = context;
         keepLog = log;
 
@@ -77,113 +90,143 @@ public class MotionMonitor{
         //default state is idle;
         mState = STATE_IDLE;
         
-        //initialize vectors and time stamps
-        accel = new float[3];
-        prevAccel=new float[3];
-        rotation = new float[3];
-        quaterRotation = new float [4];
-        gyroTimeStamp = 0;
+        mPipeline = new MotionPipeline();
+
+        mBus = new MotionEventBus(BUS_CAPACITY);
+        mSubscription = mBus.subscribe();
+        mWakePending = new AtomicBoolean(false);
+        mRateController = new AdaptiveRateController();
     }
     public synchronized void start(){
         //cancel any previously running threads 
-        if( mState == STATE_MONITORING){
+        if( mState != STATE_IDLE){
             if(mMonitorThread != null)stop();
         }
-        //start monitoring
+        //start monitoring, the pipeline thread first so the sensor thread can wake it
+        mPipelineThread = new PipelineThread();
+        mPipelineThread.start();
         mMonitorThread = new SensorMonitorThread(mContext);
         mMonitorThread.start();
         mState=STATE_MONITORING;
+        if(keepLog) startRecording();
     }
     public synchronized  void stop(){
         Log.i(TAG, "Stopping Motion Monitor..");
         if(mMonitorThread == null){return;}
         mMonitorThread.cancel();
+        stopRecording();
 
         //we need to use join method to interupt thread from whatever it is doing
         try{
             mMonitorThread.join();
+            //no more samples, the listener is not called once this returns
+            mPipelineThread.cancel();
+            mPipelineThread.join();
         }
         catch(InterruptedException e){
             Log.e(TAG, "Interupted monitor process from waiting");
         }
         mState = STATE_IDLE;
         mMonitorThread = null;
+        mPipelineThread = null;
+        Log.i(TAG, "Dropped samples: " + mSubscription.getDroppedCount());
+        for(int rate = 0; rate < AdaptiveRateController.RATE_COUNT; rate++){
+            Log.i(TAG, "Time at " + AdaptiveRateController.rateName(rate) + " rate: "
+                  + mRateController.getTimeAtRate(rate) / 1000000L + " ms");
+        }
     }
     //gets the current state of sensor monitor
     public synchronized int getState(){return mState;}
+
     /**
-     *performs a high pass filter on given values. 
-     *This ignores values with low reading, and keeps values with higher readings
-     *See: http://en.wikipedia.org/wiki/High-pass_filter#Algorithmic_implementation
-     *Useful for the accelerometer
-     *@param values = values to perform high pass filter on
-     */
-    private synchronized void high_pass_filter(final float  [] values ){
-          //alpha determines the memory of the filter
-          //if alpha = 0, the filter will do nothing and the values will remain unchanged (short memory)
-          //if alpha = 1, the filter will output the previously read valued (long memory);
-          //TODO can I generate alpha dynamically?
-          final float alpha = 0.2f;
-
-          //loss pass filter
-          prevAccel[0] = alpha * prevAccel[0] + (1 - alpha) * values[0];
-          prevAccel[1] = alpha * prevAccel[1] + (1 - alpha) * values[1];
-          prevAccel[2] = alpha * prevAccel[2] + (1 - alpha) * values[2];
-
-        //subtract low pass filter results  from read values to apply high pass filter
-          accel[0] = values[0] - prevAccel[0];
-          accel[1] = values[1] - prevAccel[1];
-          accel[2] = values[2] - prevAccel[2];
+    *starts recording raw sensor samples to a new trace file
+    *only valid while monitoring
+    *@return the trace file, or null if it could not be created
+    */
+    public synchronized File startRecording(){
+        if(mState != STATE_MONITORING){return null;}
+
+        //prefer external storage so traces can be pulled off the phone
+        File dir = mContext.getExternalFilesDir(null);
+        if(dir == null){dir = mContext.getFilesDir();}
+        File file = new File(dir, "sensor-" + System.currentTimeMillis() + ".trace");
+        try{
+            mRecorder = new SensorTraceRecorder(file, mBus);
+        }
+        catch(IOException e){
+            Log.e(TAG, "Unable to create trace file " + file, e);
+            return null;
+        }
+        Log.i(TAG, "Recording sensor trace to " + file);
+        mState = STATE_LOGGING;
+        return file;
+    }
+    //stops recording, the monitor keeps running
+    public synchronized void stopRecording(){
+        SensorTraceRecorder recorder = mRecorder;
+        if(recorder == null){return;}
+        mRecorder = null;
+        recorder.close();
+        Log.i(TAG, "Recorded " + recorder.getRecordCount() + " samples to " + recorder.getFile()
+              + ", dropped " + recorder.getDroppedCount());
+        if(mState == STATE_LOGGING){mState = STATE_MONITORING;}
+    }
+
+    //number of samples the sensor thread overwrote before the pipeline thread got to them
+    public long getDroppedSamples(){return mSubscription.getDroppedCount();}
+
+    //raw samples as they arrive, subscribe to read them on another thread
+    public MotionEventBus getBus(){return mBus;}
+
+    //current sampling rate and time spent at each rate
+    public AdaptiveRateController getRateController(){return mRateController;}
+
+    //SensorManager delay used for an AdaptiveRateController rate
+    private static int sensorDelay(int rate){
+        switch(rate){
+            case AdaptiveRateController.RATE_IDLE:    return SensorManager.SENSOR_DELAY_NORMAL;
+            case AdaptiveRateController.RATE_GAME:    return SensorManager.SENSOR_DELAY_GAME;
+            case AdaptiveRateController.RATE_FASTEST: return SensorManager.SENSOR_DELAY_FASTEST;
+            default:                                  return SensorManager.SENSOR_DELAY_UI;
+        }
     }
+
     /**
-    *update the rotation vector based on values read from the gyroscope
-    *the values vector is converted into a quaternion to retrieve the current rotation matrix
-    *To update the rotation, the curent rotation vector is multiplied by the rotation matrix
+     * Runs every sample on the bus through the pipeline as it arrives and
+     * hands the results to the listener. Sleeps while the bus is empty;
+     * the sensor thread unparks it.
+     */
+    private class PipelineThread extends Thread {
+        private final MotionEventBus.Sample mmSample = new MotionEventBus.Sample();
+        private volatile boolean mmRunning = true;
 
-    *@param values = valued read from gyrometer (x, y, z axis)
-    */
-    private synchronized void update_rotation_vector(float [] values, float timestamp){
-    
-        if(gyroTimeStamp !=0){
-            final float dT = (timestamp - gyroTimeStamp) * NANO_2_SEC;
-
-            // Axis of the rotation sample, not normalized yet.
-            float axisX = values[0];
-            float axisY = values[1];
-            float axisZ = values[2];
-
-            // Calculate the angular speed of the sample
-            float omegaMagnitude = (float) Math.sqrt(axisX*axisX + axisY*axisY + axisZ*axisZ);
-
-            // Normalize the rotation vector if it's big enough to get the axis
-            // (that is, EPSILON should represent your maximum allowable margin of error)
-            if (omegaMagnitude > EPSILON) {
-              axisX /= omegaMagnitude;
-              axisY /= omegaMagnitude;
-              axisZ /= omegaMagnitude;
+        PipelineThread(){
+            setName("MotionPipelineThread");
+        }
+
+        @Override
+        public void run(){
+            while(mmRunning){
+                //clear first, a sample published after this point wakes us again
+                mWakePending.set(false);
+                while(mSubscription.poll(mmSample)){
+                    mPipeline.process(mmSample.type, mmSample.timestamp, mmSample.values, mListener);
+                }
+                //an unpark that came in meanwhile makes this return at once
+                if(!mWakePending.get()) LockSupport.park(this);
             }
+        }
 
-            // Integrate around this axis with the angular speed by the timestep
-            // in order to get a delta rotation from this sample over the timestep
-            // We will convert this axis-angle representation of the delta rotation
-            // into a quaternion before turning it into the rotation matrix.
-            float thetaOverTwo = omegaMagnitude * dT / 2.0f;
-            float sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
-            float cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
-            quaterRotation[0] = sinThetaOverTwo * axisX;
-            quaterRotation[1] = sinThetaOverTwo * axisY;
-            quaterRotation[2] = sinThetaOverTwo * axisZ;
-            quaterRotation[3] = cosThetaOverTwo;
-      }
-      gyroTimeStamp = timestamp;
-
-      //get the rotation matrix from quaternion vecter
-      float[] deltaRotationMatrix = new float[9];
-      SensorManager.getRotationMatrixFromVector(deltaRotationMatrix, quaterRotation);
-
-      //get the orientation of the device based on the rotation matrix
-      SensorManager.getOrientation(deltaRotationMatrix, rotation);
+        void wake(){
+            if(mWakePending.compareAndSet(false, true)) LockSupport.unpark(this);
+        }
+
+        void cancel(){
+            mmRunning = false;
+            LockSupport.unpark(this);
+        }
     }
+
     private class SensorMonitorThread extends Thread implements SensorEventListener{
         private SensorManager mManager;
 
@@ -193,20 +236,26 @@ public class MotionMonitor{
 
         private volatile Looper mLoop;
         private volatile boolean keepMonitoring = false;
+
+        //sensor callbacks are delivered on this thread through this handler
+        private Handler mMonitorHandler;
+
+        //re-registers the listeners at the controller's current rate
+        //posted rather than run from inside onSensorChanged
+        private final Runnable mApplyRate = new Runnable(){
+            @Override
+            public void run(){
+                registerSensors(mRateController.getRate());
+            }
+        };
         
         //we aren't monitoring magnometer
         //but we need it for the getRotationMatrix
         private Sensor magSensor;
-        
-        //used for logging sensor stats
-         OutputStreamWriter gyroLog;
-         OutputStreamWriter accelLog;
+
         public SensorMonitorThread(Context context){
             mManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
             this.setName("SensorMonitorThread");
-            if(keepLog){
-                out = new OutputStreamWriter(openFileOutput("gyroLog.csv",0));
-            }
         }
         @Override
         public void run(){
@@ -225,47 +274,54 @@ public class MotionMonitor{
             mLoop = Looper.myLooper(); 
 
             //get handler for this thread
-            Handler monitorHandler = new Handler();
+            mMonitorHandler = new Handler();
 
-            //register sensor listeners for this thread 
-            //note: have to pass handler to this thread, or else it will listen on main UI thread
-            mManager.registerListener(this, mAccelSensor, SensorManager.SENSOR_DELAY_UI, monitorHandler);
-            mManager.registerListener(this, mGyroSensor, SensorManager.SENSOR_DELAY_UI, monitorHandler);
+            //start at the UI rate, the controller adjusts it from there
+            mRateController.reset(AdaptiveRateController.RATE_UI);
+            registerSensors(AdaptiveRateController.RATE_UI);
 
             Looper.loop(); //thread stays alive through this message loop
             
             Log.i(TAG, "Sensor Monitor thread successfully shutdown");
         }
+        //(re)registers both sensors at rate, the thread keeps running
+        private void registerSensors(int rate){
+            int delay = sensorDelay(rate);
+            mManager.unregisterListener(this);
+            //note: have to pass handler to this thread, or else it will listen on main UI thread
+            mManager.registerListener(this, mAccelSensor, delay, mMonitorHandler);
+            mManager.registerListener(this, mGyroSensor, delay, mMonitorHandler);
+            Log.i(TAG, "Sampling at " + AdaptiveRateController.rateName(rate) + " rate");
+        }
        @Override
         //sensor events occur here
         public void onSensorChanged(SensorEvent event){
             if(event == null){Log.e(TAG, "Sensor event is null");}
-            //calculate acceleration through high pass filters
+            //filtering is left to the subscribers, just publish the raw sample
+            int type;
             if(event.sensor.getType() == Sensor.TYPE_ACCELEROMETER){
-                high_pass_filter(event.values);
-                
-                //send result back to handler
-                  Bundle bundle = new Bundle(); 
-                  bundle.putFloatArray(KEY_ACCEL, accel);
-                  Message msg = mHandler.obtainMessage(MESSAGE_MOTION, ARG_ACCEL, -1,  bundle); 
-                  mHandler.sendMessageDelayed(msg, 800);
+                type = MotionEventBus.TYPE_ACCEL;
             }
-            //calculate rotation using the gyroscope
             else if(event.sensor.getType() == Sensor.TYPE_GYROSCOPE){
-                update_rotation_vector(event.values, event.timestamp);
-                
-                  //send result back to handler
-                 Bundle bundle = new Bundle(); 
-                 bundle.putFloatArray(KEY_ROTATE, rotation);
-                 String result = String.format("%3f %3f %3f", rotation[0],rotation[1], rotation[2]);
-                 gyroLog.write(result);
-                 gyroLog.write.newLine();
-                  Message msg = mHandler.obtainMessage(MESSAGE_MOTION, ARG_GYRO, -1, bundle); 
-                  mHandler.sendMessageDelayed(msg, 200);
+                type = MotionEventBus.TYPE_GYRO;
             }
             else{
                 //don't care
+                return;
+            }
+            //copied once, the recorder reads the same slot on its own thread
+            final float [] v = event.values;
+            mBus.publish(type, event.timestamp, v[0], v[1], v[2]);
+
+            //speed up or slow down the sensors with the amount of motion
+            if(mRateController.update(type, event.timestamp, v[0], v[1], v[2])){
+                mMonitorHandler.removeCallbacks(mApplyRate);
+                mMonitorHandler.post(mApplyRate);
             }
+
+            //wake the pipeline unless a wake up is already on its way
+            PipelineThread pipeline = mPipelineThread;
+            if(pipeline != null) pipeline.wake();
         }
         public void cancel(){
             Log.i(TAG, "attempting to cancel thread");
@@ -0,0 +1,116 @@
+package edu.esu.spacesys.btrobotremote;
+
+//Turns raw accelerometer and gyroscope samples into filtered
+//acceleration and orientation.
+//Has no Android dependencies so the same processing can be driven by
+//live sensors (MotionMonitor) or by a recorded trace (TraceReplayer)
+//Not thread safe: feed it from a single thread
+public class MotionPipeline{
+
+    /**
+     * Receives processed motion data. Called on the thread that calls process().
+     * The arrays belong to the pipeline and are only valid during the call.
+     */
+    public interface Listener {
+        //high pass filtered acceleration
+        void onAcceleration(float [] accel, long timestamp);
+        //orientation as (azimuth, pitch, roll) in radians
+        void onRotation(float [] rotation, long timestamp);
+    }
+
+    //cutoff of the accelerometer high pass, in Hz
+    //gives the old fixed alpha = 0.2 at the 60 ms SENSOR_DELAY_UI period, so
+    //DriveCommandMapper.THRESHOLD keeps its meaning (about 10.6 Hz)
+    public static final float DEFAULT_CUTOFF_HZ = (float) ((1 - 0.2) / (2 * Math.PI * 0.2 * 0.06));
+
+    //vectors for readings
+    private final float accel[]; //most recent high pass filtered acceleration
+    private final float rotation[];  //current rotation of device (azimuth, pitch, roll)
+
+    //removes gravity and slow drift from the accelerometer, follows the sensor rate
+    private final HighPassFilter mHighPass;
+
+    //fuses gyroscope and accelerometer into a persistent orientation
+    private final OrientationFilter mFusion;
+
+    public MotionPipeline(){
+        this(DEFAULT_CUTOFF_HZ, 1);
+    }
+    /**
+     *@param cutoffHz = accelerometer frequencies below this are filtered out
+     *@param order = order of the accelerometer high pass, 1 or even
+     */
+    public MotionPipeline(float cutoffHz, int order){
+        accel = new float[3];
+        rotation = new float[3];
+        mFusion = new OrientationFilter();
+        mHighPass = new HighPassFilter(3, cutoffHz, order);
+    }
+
+    /**
+     *processes one raw sample and hands the result to listener
+     *@param type = MotionEventBus.TYPE_ACCEL or MotionEventBus.TYPE_GYRO
+     *@param timestamp = time of the reading in nanoseconds
+     *@param values = raw reading (x, y, z axis)
+     *@param listener = receives filtered acceleration or rotation
+     */
+    public void process(int type, long timestamp, final float [] values, Listener listener){
+        if(type == MotionEventBus.TYPE_ACCEL){
+            high_pass_filter(values, timestamp);
+            update_gravity(values);
+            listener.onAcceleration(accel, timestamp);
+        }
+        else if(type == MotionEventBus.TYPE_GYRO){
+            update_rotation_vector(values, timestamp);
+            listener.onRotation(rotation, timestamp);
+        }
+    }
+
+    //forget all filter state, e.g. before replaying another trace
+    public void reset(){
+        for(int i = 0; i < 3; i++){
+            accel[i] = 0;
+            rotation[i] = 0;
+        }
+        mHighPass.reset();
+        mFusion.reset();
+    }
+
+    /**
+     *performs a high pass filter on given values.
+     *This ignores values with low reading, and keeps values with higher readings
+     *See: http://en.wikipedia.org/wiki/High-pass_filter#Algorithmic_implementation
+     *Useful for the accelerometer
+     *alpha is computed from the cutoff and the measured time between samples,
+     *so the response does not change when the sensor rate does
+     *@param values = values to perform high pass filter on
+     *@param timestamp = time of the reading in nanoseconds
+     */
+    private void high_pass_filter(final float  [] values, long timestamp){
+          mHighPass.filter(values, timestamp, accel);
+    }
+    //accelerometer high pass, e.g. to change its cutoff
+    public HighPassFilter getHighPassFilter(){return mHighPass;}
+    /**
+    *hands the raw accelerometer reading (gravity included) to the fusion filter
+    *@param values = values read from accelerometer (x, y, z axis)
+    */
+    private void update_gravity(final float [] values){
+        mFusion.updateAccel(values[0], values[1], values[2]);
+    }
+    /**
+    *update the rotation vector based on values read from the gyroscope
+    *the gyroscope is integrated into the orientation quaternion kept by the
+    *fusion filter, which is corrected by the latest accelerometer reading
+    *nothing is allocated, so this can run at the fastest sensor rate
+
+    *@param values = valued read from gyrometer (x, y, z axis)
+    *@param timestamp = time of the reading in nanoseconds
+    */
+    private void update_rotation_vector(float [] values, long timestamp){
+        mFusion.updateGyro(values[0], values[1], values[2], timestamp);
+
+        //get the orientation of the device from the fused quaternion
+        mFusion.getOrientation(rotation);
+    }
+}
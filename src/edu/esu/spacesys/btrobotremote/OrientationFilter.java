@@ -0,0 +1,184 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Fuses gyroscope and accelerometer readings into a persistent
+ * orientation quaternion using Madgwick's gradient descent filter
+ * (IMU variant, no magnetometer).
+ * See: http://www.x-io.co.uk/open-source-imu-and-ahrs-algorithms/
+ *
+ * The gyroscope is integrated every sample and the accelerometer pulls the
+ * estimate back towards gravity, which removes the drift of pure gyro
+ * integration. All state is kept in primitive fields so an update does not
+ * allocate, which makes it safe to run at SENSOR_DELAY_FASTEST.
+ *
+ * Not thread safe: feed it from a single thread.
+ */
+public class OrientationFilter {
+    private static final float NANO_2_SEC = 1.0f / 1000000000.0f;
+
+    //gyro samples further apart than this are treated as a restart
+    private static final float MAX_DT = 0.5f;
+
+    //default filter gain, higher trusts the accelerometer more
+    public static final float DEFAULT_BETA = 0.1f;
+
+    private float mBeta;
+
+    //orientation quaternion, q0 is the scalar part
+    private float q0 = 1.0f, q1 = 0.0f, q2 = 0.0f, q3 = 0.0f;
+
+    //most recent accelerometer reading
+    private float mAx, mAy, mAz;
+    private boolean mHaveAccel;
+
+    //quaternion is seeded from gravity on the first accelerometer reading
+    private boolean mSeeded;
+
+    private long mGyroTimestamp; //nanoseconds, 0 = no previous sample
+
+    public OrientationFilter(){
+        this(DEFAULT_BETA);
+    }
+    public OrientationFilter(float beta){
+        mBeta = beta;
+    }
+
+    public void setBeta(float beta){mBeta = beta;}
+    public float getBeta(){return mBeta;}
+
+    //forget the current orientation
+    public void reset(){
+        q0 = 1.0f; q1 = 0.0f; q2 = 0.0f; q3 = 0.0f;
+        mHaveAccel = false;
+        mSeeded = false;
+        mGyroTimestamp = 0;
+    }
+
+    /**
+     *store the latest accelerometer reading, it is fused on the next gyro sample
+     *@param x, y, z = raw acceleration (gravity included), any unit
+     */
+    public void updateAccel(float x, float y, float z){
+        mAx = x; mAy = y; mAz = z;
+        mHaveAccel = (x != 0.0f || y != 0.0f || z != 0.0f);
+        if(!mSeeded && mHaveAccel){
+            seedFromGravity();
+            mSeeded = true;
+        }
+    }
+
+    /**
+     *integrate a gyroscope reading and correct it with the latest accelerometer reading
+     *@param gx, gy, gz = angular speed in rad/s
+     *@param timestamp = sample time in nanoseconds
+     */
+    public void updateGyro(float gx, float gy, float gz, long timestamp){
+        if(mGyroTimestamp == 0){
+            mGyroTimestamp = timestamp;
+            return;
+        }
+        final float dt = (timestamp - mGyroTimestamp) * NANO_2_SEC;
+        mGyroTimestamp = timestamp;
+        if(dt <= 0.0f || dt > MAX_DT) return;
+
+        //rate of change of quaternion from gyroscope
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if(mHaveAccel){
+            //normalise accelerometer measurement
+            float recipNorm = invSqrt(mAx * mAx + mAy * mAy + mAz * mAz);
+            final float ax = mAx * recipNorm;
+            final float ay = mAy * recipNorm;
+            final float az = mAz * recipNorm;
+
+            //auxiliary variables to avoid repeated arithmetic
+            final float _2q0 = 2.0f * q0;
+            final float _2q1 = 2.0f * q1;
+            final float _2q2 = 2.0f * q2;
+            final float _2q3 = 2.0f * q3;
+            final float _4q0 = 4.0f * q0;
+            final float _4q1 = 4.0f * q1;
+            final float _4q2 = 4.0f * q2;
+            final float _8q1 = 8.0f * q1;
+            final float _8q2 = 8.0f * q2;
+            final float q0q0 = q0 * q0;
+            final float q1q1 = q1 * q1;
+            final float q2q2 = q2 * q2;
+            final float q3q3 = q3 * q3;
+
+            //gradient descent corrective step
+            float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            float s1 = _4q1 * q3q3 - _2q3 * ax + 4.0f * q0q0 * q1 - _2q0 * ay - _4q1
+                       + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+            float s2 = 4.0f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2
+                       + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+            float s3 = 4.0f * q1q1 * q3 - _2q1 * ax + 4.0f * q2q2 * q3 - _2q2 * ay;
+
+            float sNorm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if(sNorm > 0.0f){
+                recipNorm = invSqrt(sNorm);
+                qDot0 -= mBeta * s0 * recipNorm;
+                qDot1 -= mBeta * s1 * recipNorm;
+                qDot2 -= mBeta * s2 * recipNorm;
+                qDot3 -= mBeta * s3 * recipNorm;
+            }
+        }
+
+        //integrate rate of change of quaternion
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+        normalize();
+    }
+
+    /**
+     *copy the orientation quaternion into out
+     *@param out = array of at least 4 elements, receives (w, x, y, z)
+     */
+    public void getQuaternion(float [] out){
+        out[0] = q0; out[1] = q1; out[2] = q2; out[3] = q3;
+    }
+
+    /**
+     *computes the orientation as angles in radians, in the same order
+     *as SensorManager.getOrientation()
+     *@param out = array of at least 3 elements, receives (azimuth, pitch, roll)
+     */
+    public void getOrientation(float [] out){
+        out[0] = (float) Math.atan2(2.0f * (q0 * q3 + q1 * q2), 1.0f - 2.0f * (q2 * q2 + q3 * q3));
+        float sinPitch = 2.0f * (q0 * q2 - q3 * q1);
+        if(sinPitch > 1.0f) sinPitch = 1.0f;
+        else if(sinPitch < -1.0f) sinPitch = -1.0f;
+        out[1] = (float) Math.asin(sinPitch);
+        out[2] = (float) Math.atan2(2.0f * (q0 * q1 + q2 * q3), 1.0f - 2.0f * (q1 * q1 + q2 * q2));
+    }
+
+    //start from the attitude given by gravity so the filter does not need to converge
+    private void seedFromGravity(){
+        final float roll = (float) Math.atan2(mAy, mAz);
+        final float pitch = (float) Math.atan2(-mAx, Math.sqrt(mAy * mAy + mAz * mAz));
+        final float cr = (float) Math.cos(roll * 0.5f), sr = (float) Math.sin(roll * 0.5f);
+        final float cp = (float) Math.cos(pitch * 0.5f), sp = (float) Math.sin(pitch * 0.5f);
+        //yaw is unobservable without a magnetometer, start at 0
+        q0 = cr * cp;
+        q1 = sr * cp;
+        q2 = cr * sp;
+        q3 = -sr * sp;
+    }
+
+    private void normalize(){
+        float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= recipNorm;
+        q1 *= recipNorm;
+        q2 *= recipNorm;
+        q3 *= recipNorm;
+    }
+
+    private static float invSqrt(float x){
+        return (float) (1.0 / Math.sqrt(x));
+    }
+}
@@ -0,0 +1,234 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Queue of command frames waiting to be written to the robot.
+ *
+ * Movement frames are kept in one slot per channel and a newer frame
+ * replaces an unsent older one (latest wins), so the robot always acts on
+ * the current pose instead of a backlog. Every other frame goes through a
+ * bounded FIFO and is sent in order.
+ *
+ * Producers never block: offer() copies the frame and returns right away.
+ * The single consumer (the writer thread) blocks in awaitAndDrain().
+ * All storage is allocated up front.
+ *
+ * When the FIFO is full the drop policy decides whether the new frame
+ * (DROP_NEWEST) or the oldest waiting one (DROP_OLDEST) is discarded.
+ *
+ * Each frame carries the sensor timestamp of the sample that produced it
+ * (0 if none), so the consumer can measure latency up to the socket.
+ */
+public class OutboundQueue {
+    //latest wins channels
+    public static final int CHANNEL_NONE = -1;
+    public static final int CHANNEL_THROTTLE = 0; //forward / backward
+    public static final int CHANNEL_STEER = 1;    //left / right
+    public static final int CHANNEL_DRIVE = 2;    //proportional throttle and steer
+    private static final int NUM_CHANNELS = 3;
+
+    //frames that can wait in the FIFO
+    public static final int FIFO_FRAMES = 64;
+
+    //what to discard when the FIFO is full
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+
+    private static final int FRAME = CommandFrame.FRAME_SIZE;
+
+    //one pending frame per channel
+    private final byte[] mSlots = new byte[NUM_CHANNELS * FRAME];
+    private final boolean[] mSlotPending = new boolean[NUM_CHANNELS];
+    private final long[] mSlotStamp = new long[NUM_CHANNELS];
+
+    //ring of in order frames
+    private final byte[] mFifo = new byte[FIFO_FRAMES * FRAME];
+    private final long[] mFifoStamp = new long[FIFO_FRAMES];
+    private int mFifoHead; //next frame to send
+    private int mFifoCount;
+
+    private boolean mClosed;
+    private int mDropPolicy = DROP_NEWEST;
+
+    //statistics
+    private long mCoalesced; //unsent frames replaced by a newer one
+    private long mDropped;   //frames discarded because the FIFO was full
+
+    /**
+     * Return the latest wins channel of a frame, or CHANNEL_NONE
+     * if the frame has to be sent in order.
+     */
+    public static int channelOf(int opcode, int arg){
+        if(opcode == CommandFrame.OP_DRIVE) return CHANNEL_DRIVE;
+        if(opcode != CommandFrame.OP_MOVE) return CHANNEL_NONE;
+        switch(arg){
+            case CommandFrame.MOVE_FORWARD:
+            case CommandFrame.MOVE_BACKWARD:
+            case CommandFrame.MOVE_STOP:
+                return CHANNEL_THROTTLE;
+            case CommandFrame.MOVE_LEFT:
+            case CommandFrame.MOVE_RIGHT:
+                return CHANNEL_STEER;
+            default:
+                return CHANNEL_NONE;
+        }
+    }
+
+    //largest number of frames a single drain can return
+    public static int maxDrainFrames(){
+        return NUM_CHANNELS + FIFO_FRAMES;
+    }
+    //largest number of bytes a single drain can return
+    public static int maxDrainSize(){
+        return maxDrainFrames() * FRAME;
+    }
+
+    /**
+     * Copy the frame starting at src[offset] into the queue.
+     * Never blocks.
+     * @return false if the frame was dropped
+     */
+    public boolean offer(byte[] src, int offset){
+        return offer(src, offset, 0);
+    }
+    /**
+     * Copy the frame starting at src[offset] into the queue.
+     * Never blocks.
+     * @param timestamp sensor timestamp of the sample behind the frame, 0 if none
+     * @return false if the frame was dropped, with DROP_OLDEST the frame is
+     *         always queued and an older one is dropped instead
+     */
+    public synchronized boolean offer(byte[] src, int offset, long timestamp){
+        if(mClosed) return false;
+
+        int channel = channelOf(CommandFrame.opcode(src, offset), CommandFrame.arg(src, offset));
+        if(channel != CHANNEL_NONE){
+            if(mSlotPending[channel]) mCoalesced++;
+            System.arraycopy(src, offset, mSlots, channel * FRAME, FRAME);
+            mSlotStamp[channel] = timestamp;
+            mSlotPending[channel] = true;
+            //a stop also replaces an unsent turn, a later turn drains after it
+            if(channel == CHANNEL_THROTTLE && CommandFrame.arg(src, offset) == CommandFrame.MOVE_STOP
+               && mSlotPending[CHANNEL_STEER]){
+                mCoalesced++;
+                mSlotPending[CHANNEL_STEER] = false;
+            }
+        }
+        else{
+            if(mFifoCount == FIFO_FRAMES){
+                mDropped++;
+                if(mDropPolicy == DROP_NEWEST) return false;
+                mFifoHead = (mFifoHead + 1) % FIFO_FRAMES;
+                mFifoCount--;
+            }
+            int tail = (mFifoHead + mFifoCount) % FIFO_FRAMES;
+            System.arraycopy(src, offset, mFifo, tail * FRAME, FRAME);
+            mFifoStamp[tail] = timestamp;
+            mFifoCount++;
+        }
+        notify();
+        return true;
+    }
+
+    /**
+     * Wait until at least one frame is pending, then move as many pending
+     * frames as fit into dst.
+     * @param stamps receives the timestamp of each frame copied, may be null
+     * @return number of bytes copied, or -1 once the queue is closed
+     */
+    public int awaitAndDrain(byte[] dst, long[] stamps) throws InterruptedException {
+        return awaitAndDrain(dst, stamps, dst.length);
+    }
+    /**
+     * Wait until at least one frame is pending, then move as many pending
+     * frames as fit into maxBytes of dst. At least one frame is moved even
+     * if maxBytes is smaller than a frame.
+     * @param stamps receives the timestamp of each frame copied, may be null
+     * @return number of bytes copied, or -1 once the queue is closed
+     */
+    public synchronized int awaitAndDrain(byte[] dst, long[] stamps, int maxBytes) throws InterruptedException {
+        while(!mClosed && !hasPending()) wait();
+        if(mClosed) return -1;
+        return drainTo(dst, stamps, Math.max(maxBytes, FRAME));
+    }
+
+    /**
+     * Move as many pending frames as fit into dst without waiting.
+     * @return number of bytes copied
+     */
+    public int drainTo(byte[] dst){
+        return drainTo(dst, null);
+    }
+    /**
+     * Move as many pending frames as fit into dst without waiting.
+     * @param stamps receives the timestamp of each frame copied, may be null
+     * @return number of bytes copied
+     */
+    public int drainTo(byte[] dst, long[] stamps){
+        return drainTo(dst, stamps, dst.length);
+    }
+    /**
+     * Move as many pending frames as fit into maxBytes of dst without waiting.
+     * @param stamps receives the timestamp of each frame copied, may be null
+     * @return number of bytes copied
+     */
+    public synchronized int drainTo(byte[] dst, long[] stamps, int maxBytes){
+        final int limit = Math.min(maxBytes, dst.length);
+        int len = 0;
+        for(int c = 0; c < NUM_CHANNELS && len + FRAME <= limit; c++){
+            if(!mSlotPending[c]) continue;
+            System.arraycopy(mSlots, c * FRAME, dst, len, FRAME);
+            if(stamps != null) stamps[len / FRAME] = mSlotStamp[c];
+            mSlotPending[c] = false;
+            len += FRAME;
+        }
+        while(mFifoCount > 0 && len + FRAME <= limit){
+            System.arraycopy(mFifo, mFifoHead * FRAME, dst, len, FRAME);
+            if(stamps != null) stamps[len / FRAME] = mFifoStamp[mFifoHead];
+            mFifoHead = (mFifoHead + 1) % FIFO_FRAMES;
+            mFifoCount--;
+            len += FRAME;
+        }
+        return len;
+    }
+
+    //frames waiting to be drained
+    public synchronized int size(){
+        int size = mFifoCount;
+        for(int c = 0; c < NUM_CHANNELS; c++){
+            if(mSlotPending[c]) size++;
+        }
+        return size;
+    }
+
+    //DROP_NEWEST or DROP_OLDEST
+    public synchronized void setDropPolicy(int policy){
+        if(policy != DROP_NEWEST && policy != DROP_OLDEST){
+            throw new IllegalArgumentException("Unknown drop policy " + policy);
+        }
+        mDropPolicy = policy;
+    }
+
+    private boolean hasPending(){
+        if(mFifoCount > 0) return true;
+        for(int c = 0; c < NUM_CHANNELS; c++){
+            if(mSlotPending[c]) return true;
+        }
+        return false;
+    }
+
+    //drop everything that has not been sent yet
+    public synchronized void clear(){
+        for(int c = 0; c < NUM_CHANNELS; c++) mSlotPending[c] = false;
+        mFifoHead = 0;
+        mFifoCount = 0;
+    }
+
+    //wake the consumer and reject further frames
+    public synchronized void close(){
+        mClosed = true;
+        notifyAll();
+    }
+
+    public synchronized long getCoalescedCount(){return mCoalesced;}
+    public synchronized long getDroppedCount(){return mDropped;}
+}
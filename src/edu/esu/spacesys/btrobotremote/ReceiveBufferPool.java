@@ -0,0 +1,91 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Fixed pool of receive buffers shared by a reader and its consumer.
+ *
+ * Ownership is handed off explicitly: the reader lease()s a buffer,
+ * fills it and passes it on; from then on only the consumer may touch it,
+ * and it gives the buffer back with Buffer.release(). A buffer is never
+ * written while someone else holds it, and steady state traffic does not
+ * allocate.
+ *
+ * When every buffer is out, lease() returns null instead of allocating
+ * and the exhaustion is counted.
+ */
+public class ReceiveBufferPool {
+
+    /**
+     * A buffer leased from the pool.
+     * data is only valid up to length.
+     */
+    public static final class Buffer {
+        public final byte[] data;
+        public int length;
+
+        private final ReceiveBufferPool mPool;
+        private boolean mLeased;
+
+        private Buffer(ReceiveBufferPool pool, int size){
+            mPool = pool;
+            data = new byte[size];
+        }
+
+        //give the buffer back to its pool, it must not be used afterwards
+        public void release(){
+            mPool.giveBack(this);
+        }
+    }
+
+    private final Buffer[] mFree;
+    private int mFreeCount;
+
+    //statistics
+    private long mLeases;       //successful leases
+    private long mExhausted;    //leases refused because the pool was empty
+    private int mLowWater;      //fewest free buffers ever seen
+
+    /**
+     * @param count      number of buffers in the pool
+     * @param bufferSize size of each buffer in bytes
+     */
+    public ReceiveBufferPool(int count, int bufferSize){
+        mFree = new Buffer[count];
+        for(int i = 0; i < count; i++){
+            mFree[i] = new Buffer(this, bufferSize);
+        }
+        mFreeCount = count;
+        mLowWater = count;
+    }
+
+    /**
+     * Take a buffer out of the pool.
+     * @return a buffer owned by the caller, or null if none is free
+     */
+    public synchronized Buffer lease(){
+        if(mFreeCount == 0){
+            mExhausted++;
+            return null;
+        }
+        Buffer b = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        if(mFreeCount < mLowWater) mLowWater = mFreeCount;
+        b.mLeased = true;
+        b.length = 0;
+        mLeases++;
+        return b;
+    }
+
+    private synchronized void giveBack(Buffer b){
+        if(!b.mLeased){
+            throw new IllegalStateException("buffer released twice");
+        }
+        b.mLeased = false;
+        mFree[mFreeCount++] = b;
+    }
+
+    public int getCapacity(){return mFree.length;}
+    public synchronized int getOutstanding(){return mFree.length - mFreeCount;}
+    public synchronized long getLeaseCount(){return mLeases;}
+    public synchronized long getExhaustedCount(){return mExhausted;}
+    public synchronized int getLowWaterMark(){return mLowWater;}
+}
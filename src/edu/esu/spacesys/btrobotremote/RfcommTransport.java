@@ -0,0 +1,159 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * Transport over Bluetooth RFCOMM to the serial port profile, addresses
+ * are Bluetooth MAC addresses.
+ *
+ * connect() first tries the channel the DeviceIndex remembers for the
+ * device, which skips the SDP lookup, and falls back to the lookup if
+ * there is none or it fails. The channel the lookup finds is remembered
+ * for next time.
+ */
+public class RfcommTransport implements Transport {
+    private static final String TAG = "RfcommTransport";
+
+    // Unique UUID for serial applications
+    private static final UUID MY_UUID =
+        UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter mAdapter;
+    private final DeviceIndex mDeviceIndex;
+
+    public RfcommTransport(BluetoothAdapter adapter, DeviceIndex deviceIndex) {
+        mAdapter = adapter;
+        mDeviceIndex = deviceIndex;
+    }
+
+    @Override
+    public Connection open(String address, boolean secure) throws IOException {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            throw new IOException("not a Bluetooth address: " + address);
+        }
+        return new RfcommConnection(mAdapter.getRemoteDevice(address), secure);
+    }
+
+    private class RfcommConnection implements Connection {
+        private final BluetoothDevice mmDevice;
+        private final boolean mmSecure;
+        private final String mmSocketType;
+        private volatile BluetoothSocket mmSocket; // socket of the current attempt
+        private volatile boolean mmClosed;
+
+        RfcommConnection(BluetoothDevice device, boolean secure) {
+            mmDevice = device;
+            mmSecure = secure;
+            mmSocketType = secure ? "Secure" : "Insecure";
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+
+            final String address = mmDevice.getAddress();
+
+            // Fast path: the channel found last time, no SDP lookup
+            int channel = mDeviceIndex.getChannel(address);
+            if (channel != DeviceIndex.NO_CHANNEL) {
+                try {
+                    connectSocket(createSocketOnChannel(mmDevice, channel, mmSecure));
+                    return;
+                } catch (IOException e) {
+                    if (mmClosed) throw e;
+                    Log.w(TAG, "Cached channel " + channel + " failed, looking up the service", e);
+                    mDeviceIndex.forgetChannel(address);
+                }
+            }
+
+            // Get a BluetoothSocket for a connection with the
+            // given BluetoothDevice
+            BluetoothSocket socket = mmSecure
+                    ? mmDevice.createRfcommSocketToServiceRecord(MY_UUID)
+                    : mmDevice.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+            connectSocket(socket);
+            channel = channelOf(socket);
+            if (channel != DeviceIndex.NO_CHANNEL) mDeviceIndex.putChannel(address, channel);
+        }
+
+        /**
+         * Connect socket, closing it if that fails.
+         * This is a blocking call and will only return on a
+         * successful connection or an exception
+         */
+        private void connectSocket(BluetoothSocket socket) throws IOException {
+            mmSocket = socket;
+            if (mmClosed) throw new IOException("canceled");
+            try {
+                socket.connect();
+            } catch (IOException e) {
+                // Close the socket
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "unable to close() " + mmSocketType +
+                            " socket during connection failure", e2);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmClosed = true;
+            BluetoothSocket socket = mmSocket;
+            if (socket != null) socket.close();
+        }
+    }
+
+    /**
+     * Create a socket on a known RFCOMM channel, which skips the SDP lookup
+     * of createRfcommSocketToServiceRecord. The methods are hidden in the
+     * SDK, so they are reached by reflection.
+     */
+    private static BluetoothSocket createSocketOnChannel(BluetoothDevice device, int channel,
+            boolean secure) throws IOException {
+        try {
+            Method m = device.getClass().getMethod(
+                    secure ? "createRfcommSocket" : "createInsecureRfcommSocket", int.class);
+            return (BluetoothSocket) m.invoke(device, channel);
+        } catch (Exception e) {
+            throw new IOException("No socket on channel " + channel + ": " + e);
+        }
+    }
+
+    /**
+     * Return the RFCOMM channel a connected socket ended up on, or
+     * DeviceIndex.NO_CHANNEL if it cannot be read on this platform.
+     */
+    private static int channelOf(BluetoothSocket socket) {
+        try {
+            Field f = BluetoothSocket.class.getDeclaredField("mPort");
+            f.setAccessible(true);
+            int channel = f.getInt(socket);
+            return channel > 0 ? channel : DeviceIndex.NO_CHANNEL;
+        } catch (Exception e) {
+            return DeviceIndex.NO_CHANNEL;
+        }
+    }
+}
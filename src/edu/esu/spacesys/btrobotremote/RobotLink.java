@@ -0,0 +1,92 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.OutputStream;
+
+/**
+ * One robot of a fleet, as seen by the FleetScheduler.
+ *
+ * Holds everything that is per link on the write path: the outbound
+ * queue, the pacer matched to the link's rate, the delta encoder state
+ * and the write statistics. The stream is attached once the link is
+ * connected and detached when it goes away. Has no Android dependencies.
+ */
+public class RobotLink {
+    //link states, same values as BluetoothClientService
+    public static final int STATE_NONE = 0;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+
+    private static final int BURST = 64; //receive buffer of the robot's UART
+
+    private final int mId;
+    private final String mAddress;
+    private volatile int mState = STATE_NONE;
+    private volatile OutputStream mOut;
+
+    final OutboundQueue mQueue = new OutboundQueue();
+    final TokenBucket mBucket;
+    final DriveDeltaEncoder mDeltas = new DriveDeltaEncoder();
+
+    //statistics, written by the scheduler thread
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private volatile long mBytesWritten;
+    private volatile long mWriteErrors;
+
+    /**
+     * @param id index of the link in the fleet, bit id of multicast masks
+     * @param address MAC address (or any name) of the robot
+     * @param linkRate bytes per second the robot's link takes
+     */
+    public RobotLink(int id, String address, int linkRate){
+        mId = id;
+        mAddress = address;
+        mBucket = new TokenBucket(linkRate, BURST);
+    }
+
+    public int getId(){return mId;}
+    public String getAddress(){return mAddress;}
+    public int getState(){return mState;}
+    public void setState(int state){mState = state;}
+
+    //start writing to out, e.g. the socket's stream once connected
+    public void attach(OutputStream out){
+        mDeltas.reset();
+        mOut = out;
+        mState = STATE_CONNECTED;
+    }
+    //stop writing, frames still queued are dropped
+    public void detach(){
+        mOut = null;
+        mQueue.clear();
+        mState = STATE_NONE;
+    }
+    OutputStream getStream(){return mOut;}
+
+    /**
+     * Queue count bytes of frames for this robot. Never blocks.
+     * @param stamp System.nanoTime() when the command was issued
+     * @return false if a frame was dropped or the link is not connected
+     */
+    public boolean offer(byte[] src, int offset, int count, long stamp){
+        if(mOut == null) return false;
+        boolean queued = true;
+        final int end = offset + count - CommandFrame.FRAME_SIZE;
+        for(int i = offset; i <= end; i += CommandFrame.FRAME_SIZE){
+            queued &= mQueue.offer(src, i, stamp);
+        }
+        return queued;
+    }
+
+    void wrote(int bytes, int frames, long[] stamps, long now){
+        mBytesWritten += bytes;
+        for(int i = 0; i < frames; i++) mWriteLatency.record((now - stamps[i]) / 1000L);
+    }
+    void writeFailed(){mWriteErrors++;}
+
+    //time from offer() to the frame being written, in microseconds
+    public LatencyHistogram getWriteLatency(){return mWriteLatency;}
+    public long getBytesWritten(){return mBytesWritten;}
+    public long getWriteErrors(){return mWriteErrors;}
+    public long getDroppedCount(){return mQueue.getDroppedCount();}
+    public long getCoalescedCount(){return mQueue.getCoalescedCount();}
+}
@@ -0,0 +1,76 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a trace written by SensorTraceRecorder.
+ * The file is mapped read only and samples are copied into a caller
+ * supplied MotionEventBus.Sample, so reading does not allocate.
+ */
+public class SensorTraceReader {
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+    private final long mRecords;
+    private long mIndex;
+
+    /**
+     * @param file trace file
+     * @throws IOException if the file can not be read or is not a trace
+     */
+    public SensorTraceReader(File file) throws IOException {
+        mRaf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = mRaf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(mBuffer.remaining() < SensorTraceRecorder.HEADER_SIZE
+               || mBuffer.getInt() != SensorTraceRecorder.MAGIC){
+                throw new IOException("not a sensor trace: " + file);
+            }
+            int version = mBuffer.getInt();
+            int recordSize = mBuffer.getInt();
+            if(version != SensorTraceRecorder.VERSION || recordSize != SensorTraceRecorder.RECORD_SIZE){
+                throw new IOException("unsupported trace version " + version + " in " + file);
+            }
+            //the count is written on every flush. A recording that was not
+            //closed cleanly has zero padding after the last flushed record
+            long flushed = mBuffer.getInt() & 0xFFFFFFFFL;
+            mRecords = Math.min(flushed, mBuffer.remaining() / SensorTraceRecorder.RECORD_SIZE);
+        }
+        catch(IOException e){
+            mRaf.close();
+            throw e;
+        }
+    }
+
+    //total number of records in the file
+    public long getRecordCount(){return mRecords;}
+
+    /**
+     * Copy the next record into out.
+     * @return false at the end of the trace
+     */
+    public boolean next(MotionEventBus.Sample out){
+        if(mIndex >= mRecords) return false;
+        out.type = mBuffer.getInt();
+        out.timestamp = mBuffer.getLong();
+        out.values[0] = mBuffer.getFloat();
+        out.values[1] = mBuffer.getFloat();
+        out.values[2] = mBuffer.getFloat();
+        out.sequence = mIndex++;
+        return true;
+    }
+
+    //start again from the first record
+    public void rewind(){
+        mBuffer.position(SensorTraceRecorder.HEADER_SIZE);
+        mIndex = 0;
+    }
+
+    public void close() throws IOException {
+        mRaf.close();
+    }
+}
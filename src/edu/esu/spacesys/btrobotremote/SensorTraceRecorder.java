@@ -0,0 +1,190 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw sensor samples to an append-only binary trace file.
+ *
+ * The recorder subscribes to the MotionEventBus the sensor thread
+ * publishes to. A background thread reads its subscription into a memory
+ * mapped region of the file and forces it to disk once a second, so the
+ * sensor callback never does I/O and its timing is not disturbed.
+ *
+ * File layout (big endian):
+ *   header, HEADER_SIZE bytes:
+ *     int  MAGIC
+ *     int  VERSION
+ *     int  RECORD_SIZE
+ *     int  number of records, updated on every flush
+ *   records, RECORD_SIZE bytes each:
+ *     int   type (MotionEventBus.TYPE_ACCEL or TYPE_GYRO)
+ *     long  timestamp in nanoseconds
+ *     float x, y, z
+ */
+public class SensorTraceRecorder {
+    private static final String TAG = "SensorTraceRecorder";
+
+    public static final int MAGIC = 0x42545254; //"BTRT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 24;
+    public static final int OFFSET_RECORD_COUNT = 12;
+
+    //file is mapped this many records at a time
+    private static final int REGION_RECORDS = 65536;
+    private static final long REGION_SIZE = (long) REGION_RECORDS * RECORD_SIZE;
+
+    //how often the flush thread wakes up, and how often it forces to disk
+    private static final long DRAIN_INTERVAL_MS = 50;
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private final File mFile;
+    private final MotionEventBus.Subscription mSubscription;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;    //file offset of mRegion
+
+    private volatile long mRecords; //records written to the file
+    private volatile boolean mRunning;
+    private final FlushThread mFlushThread;
+
+    /**
+     * Create the trace file and start the flush thread.
+     * @param file file to record into, it is truncated
+     * @param bus samples published from now on are recorded
+     */
+    public SensorTraceRecorder(File file, MotionEventBus bus) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        boolean opened = false;
+        try{
+            mRaf.setLength(0);
+            mChannel = mRaf.getChannel();
+
+            mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            mHeader.putInt(MAGIC);
+            mHeader.putInt(VERSION);
+            mHeader.putInt(RECORD_SIZE);
+            mHeader.putInt(0);
+
+            mRegionStart = HEADER_SIZE;
+            mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mRegionStart, REGION_SIZE);
+
+            mSubscription = bus.subscribe();
+            opened = true;
+        }
+        finally{
+            //the flush thread owns the file once it runs, until then it is ours to close
+            if(!opened){
+                try{
+                    mRaf.close();
+                }
+                catch(IOException e){
+                    AppLog.e(TAG, "Unable to close " + file, e);
+                }
+            }
+        }
+        mRunning = true;
+        mFlushThread = new FlushThread();
+        mFlushThread.start();
+    }
+
+    public File getFile(){return mFile;}
+
+    //records written to the file so far
+    public long getRecordCount(){return mRecords;}
+
+    //samples lost because the flush thread fell behind
+    public long getDroppedCount(){return mSubscription.getDroppedCount();}
+
+    /**
+     * Write out what is left, trim the file to its records and close it.
+     * Blocks until the flush thread is done.
+     */
+    public void close(){
+        mRunning = false;
+        mFlushThread.interrupt();
+        try{
+            mFlushThread.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class FlushThread extends Thread {
+        private final MotionEventBus.Sample mmSample = new MotionEventBus.Sample();
+
+        FlushThread(){
+            setName("SensorTraceFlush");
+        }
+
+        @Override
+        public void run(){
+            long lastForce = System.currentTimeMillis();
+            try{
+                while(mRunning){
+                    drain();
+                    long now = System.currentTimeMillis();
+                    if(now - lastForce >= FORCE_INTERVAL_MS){
+                        force();
+                        lastForce = now;
+                    }
+                    try{
+                        Thread.sleep(DRAIN_INTERVAL_MS);
+                    }
+                    catch(InterruptedException e){
+                        //close() wakes us up, loop condition decides
+                    }
+                }
+                drain();
+                mSubscription.close();
+                force();
+                mChannel.truncate(HEADER_SIZE + mRecords * RECORD_SIZE);
+            }
+            catch(IOException e){
+                //e.g. the disk is full, the samples so far stay in the file
+                AppLog.e(TAG, "Recording to " + mFile + " stopped after " + mRecords + " samples", e);
+                mRunning = false;
+                mSubscription.close();
+            }
+            finally{
+                try{
+                    mRaf.close();
+                }
+                catch(IOException e){
+                    AppLog.e(TAG, "Unable to close " + mFile, e);
+                }
+            }
+        }
+
+        //move every sample published since the last drain into the mapped file
+        private void drain() throws IOException {
+            while(mSubscription.poll(mmSample)){
+                if(mRegion.remaining() < RECORD_SIZE){
+                    mRegion.force();
+                    mRegionStart += mRegion.position();
+                    mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mRegionStart, REGION_SIZE);
+                }
+                mRegion.putInt(mmSample.type);
+                mRegion.putLong(mmSample.timestamp);
+                mRegion.putFloat(mmSample.values[0]);
+                mRegion.putFloat(mmSample.values[1]);
+                mRegion.putFloat(mmSample.values[2]);
+                mRecords++;
+            }
+        }
+
+        private void force(){
+            mRegion.force();
+            mHeader.putInt(OFFSET_RECORD_COUNT, (int) mRecords);
+            mHeader.force();
+        }
+    }
+}
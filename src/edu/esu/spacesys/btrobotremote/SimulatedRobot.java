@@ -0,0 +1,322 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the robot's firmware, to exercise the app's connection,
+ * write and read paths without radio hardware.
+ *
+ * Consumes command frames (deltas included) and keeps the last drive
+ * state. OP_IR and OP_SONAR frames are requests: each one is answered
+ * with a reading carrying the same arg and sequence. On top of that
+ * readings are pushed unasked at the telemetry rate. Readings follow a
+ * made up world where the robot drives towards a wall and bounces back.
+ *
+ * setDropInterval() ends every connection after a while, like a robot
+ * driving out of range, so reconnects can be soak tested.
+ *
+ * Serves any number of connections, through LoopbackTransport or TCP.
+ * Has no Android dependencies, run main() to listen on a port:
+ *   java edu.esu.spacesys.btrobotremote.SimulatedRobot [port] [--telemetry hz] [--drop ms]
+ */
+public class SimulatedRobot implements LoopbackTransport.Endpoint {
+    public static final int DEFAULT_PORT = 7001;
+
+    //the made up world, in cm
+    private static final int WALL_DISTANCE = 300;
+    private static final int SONAR_MIN = 3;
+
+    private volatile int mTelemetryHz;
+    private volatile long mDropMillis;
+
+    //drive state, the last command received on any connection
+    private volatile int mThrottle, mSteer;
+    private volatile long mLastCommandNanos;
+    private double mPosition;  //cm driven towards the wall, guarded by this
+    private long mMovedAt;
+
+    //statistics
+    private volatile long mSessions;
+    private volatile long mFrames;
+    private volatile long mDeltas;
+    private volatile long mBadChecksums;
+    private volatile long mReadings;
+    private volatile long mReplies;
+
+    private final List<Closeable> mOpen = new ArrayList<Closeable>();
+    private ServerSocket mServer;
+
+    /**
+     * @param telemetryHz readings pushed per second and sensor, 0 for
+     *                    none; requested readings are answered regardless
+     */
+    public SimulatedRobot(int telemetryHz){
+        mTelemetryHz = telemetryHz;
+    }
+
+    public void setTelemetryRate(int hz){mTelemetryHz = hz;}
+    //end each connection after millis, 0 keeps them open
+    public void setDropInterval(long millis){mDropMillis = millis;}
+
+    /**
+     * Serve one connection until the client closes it, or the drop
+     * interval passes. Commands are handled on the calling thread,
+     * readings are pushed from a second one.
+     */
+    @Override
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        mSessions++;
+        final long dropAt = mDropMillis > 0 ? System.nanoTime() + mDropMillis * 1000000L : 0;
+        final Session session = new Session(in, out, dropAt);
+        synchronized(this){mOpen.add(in); mOpen.add(out);}
+        session.start();
+        final FrameDecoder decoder = new FrameDecoder(session);
+        final byte[] buffer = new byte[256];
+        try{
+            while(true){
+                int n = in.read(buffer, 0, buffer.length);
+                if(n < 0) break;
+                long frames = decoder.getFrameCount();
+                long deltas = decoder.getDeltaCount();
+                decoder.feed(buffer, 0, n);
+                mFrames += decoder.getFrameCount() - frames;
+                mDeltas += decoder.getDeltaCount() - deltas;
+                if(session.mFailed) break;
+            }
+        }
+        catch(IOException e){
+            //dropped, or the client went away
+        }
+        finally{
+            mBadChecksums += decoder.getBadChecksumCount();
+            session.finish();
+            synchronized(this){mOpen.remove(in); mOpen.remove(out);}
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Accept TCP connections on port, 0 for any free one, each served on
+     * its own thread.
+     * @return the port listened on
+     */
+    public synchronized int listen(int port) throws IOException {
+        mServer = new ServerSocket(port);
+        final ServerSocket server = mServer;
+        Thread t = new Thread("SimulatedRobot:" + server.getLocalPort()){
+            @Override
+            public void run(){
+                while(true){
+                    final Socket socket;
+                    try{
+                        socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                    }
+                    catch(IOException e){
+                        return; //closed
+                    }
+                    Thread session = new Thread("SimulatedRobot " + socket.getRemoteSocketAddress()){
+                        @Override
+                        public void run(){
+                            try{
+                                serve(socket.getInputStream(), socket.getOutputStream());
+                            }
+                            catch(IOException e){
+                                //the client went away
+                            }
+                            finally{
+                                try{socket.close();}
+                                catch(IOException e){}
+                            }
+                        }
+                    };
+                    session.setDaemon(true);
+                    session.start();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return server.getLocalPort();
+    }
+
+    //stop listening and end every open connection
+    public void close(){
+        List<Closeable> open;
+        synchronized(this){
+            if(mServer != null){
+                try{mServer.close();}
+                catch(IOException e){}
+                mServer = null;
+            }
+            open = new ArrayList<Closeable>(mOpen);
+        }
+        for(Closeable c : open){
+            try{c.close();}
+            catch(IOException e){}
+        }
+    }
+
+    //advance the made up world to now and return the distance to the wall
+    private synchronized int sonarDistance(long now){
+        if(mMovedAt != 0){
+            //full throttle is 50 cm/s
+            mPosition += mThrottle * 0.5 * (now - mMovedAt) / 1e9;
+            if(mPosition < 0) mPosition = 0;
+            if(mPosition > WALL_DISTANCE - SONAR_MIN) mPosition = 0; //bumped, backed off
+        }
+        mMovedAt = now;
+        return WALL_DISTANCE - (int) mPosition;
+    }
+    //IR reflectance, 0..1023, rises as the wall gets close
+    private int irLevel(long now){
+        return Math.min(1023, 30000 / Math.max(1, sonarDistance(now)));
+    }
+
+    public int getThrottle(){return mThrottle;}
+    public int getSteer(){return mSteer;}
+    //System.nanoTime() of the last command frame, 0 if none yet
+    public long getLastCommandNanos(){return mLastCommandNanos;}
+    public long getSessionCount(){return mSessions;}
+    public long getFrameCount(){return mFrames;}
+    public long getDeltaCount(){return mDeltas;}
+    public long getBadChecksumCount(){return mBadChecksums;}
+    //readings pushed without a request
+    public long getReadingCount(){return mReadings;}
+    //readings sent in reply to a request
+    public long getReplyCount(){return mReplies;}
+
+    /**
+     * One connection: applies commands, answers requests, pushes readings
+     * and drops the connection when its time is up. Both threads write,
+     * so writes go through send().
+     */
+    private class Session extends Thread implements FrameDecoder.Listener {
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private final long mDropAt;  //System.nanoTime() to drop at, 0 for never
+        private final byte[] mReply = new byte[CommandFrame.FRAME_SIZE];
+        private final byte[] mReading = new byte[CommandFrame.FRAME_SIZE];
+        private int mSeq;
+        private boolean mDone;
+        volatile boolean mFailed;
+
+        Session(InputStream in, OutputStream out, long dropAt){
+            super("SimulatedRobot telemetry");
+            setDaemon(true);
+            mIn = in;
+            mOut = out;
+            mDropAt = dropAt;
+        }
+
+        @Override
+        public void onFrame(int opcode, int arg, int payload, int seq){
+            final long now = System.nanoTime();
+            switch(opcode){
+            case CommandFrame.OP_DRIVE:
+                sonarDistance(now);
+                mThrottle = (byte) arg;
+                mSteer = payload;
+                mLastCommandNanos = now;
+                break;
+            case CommandFrame.OP_MOVE:
+                sonarDistance(now);
+                mThrottle = arg == CommandFrame.MOVE_FORWARD ? CommandFrame.DRIVE_MAX
+                          : arg == CommandFrame.MOVE_BACKWARD ? -CommandFrame.DRIVE_MAX : 0;
+                mSteer = arg == CommandFrame.MOVE_RIGHT ? CommandFrame.DRIVE_MAX
+                       : arg == CommandFrame.MOVE_LEFT ? -CommandFrame.DRIVE_MAX : 0;
+                mLastCommandNanos = now;
+                break;
+            case CommandFrame.OP_IR:
+            case CommandFrame.OP_SONAR:
+                int value = opcode == CommandFrame.OP_IR ? irLevel(now) : sonarDistance(now);
+                CommandFrame.encode(mReply, 0, opcode, arg, value, seq);
+                if(send(mReply)) mReplies++;
+                break;
+            default:
+            }
+        }
+
+        @Override
+        public void run(){
+            int opcode = CommandFrame.OP_SONAR;
+            while(true){
+                int hz = mTelemetryHz;
+                synchronized(this){
+                    try{
+                        //both sensors are pushed in turn
+                        if(!mDone) wait(hz > 0 ? Math.max(1, 500 / hz) : 100);
+                    }
+                    catch(InterruptedException e){
+                        return;
+                    }
+                    if(mDone) return;
+                }
+                final long now = System.nanoTime();
+                if(mDropAt != 0 && now >= mDropAt){
+                    //ends the read in serve(), which cleans up
+                    try{mIn.close(); mOut.close();}
+                    catch(IOException e){}
+                    return;
+                }
+                if(hz <= 0) continue;
+                int value = opcode == CommandFrame.OP_IR ? irLevel(now) : sonarDistance(now);
+                CommandFrame.encode(mReading, 0, opcode, 0, value, mSeq++);
+                if(!send(mReading)) return;
+                mReadings++;
+                opcode = opcode == CommandFrame.OP_IR ? CommandFrame.OP_SONAR : CommandFrame.OP_IR;
+            }
+        }
+
+        private boolean send(byte[] frame){
+            synchronized(mOut){
+                try{
+                    mOut.write(frame, 0, frame.length);
+                    mOut.flush();
+                    return true;
+                }
+                catch(IOException e){
+                    mFailed = true;
+                    return false;
+                }
+            }
+        }
+
+        synchronized void finish(){
+            mDone = true;
+            notify();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        int telemetryHz = 10;
+        long dropMillis = 0;
+        for(int i = 0; i < args.length; i++){
+            if("--telemetry".equals(args[i]) && i + 1 < args.length) telemetryHz = Integer.parseInt(args[++i]);
+            else if("--drop".equals(args[i]) && i + 1 < args.length) dropMillis = Long.parseLong(args[++i]);
+            else port = Integer.parseInt(args[i]);
+        }
+        SimulatedRobot robot = new SimulatedRobot(telemetryHz);
+        robot.setDropInterval(dropMillis);
+        System.out.println("listening on port " + robot.listen(port));
+        long frames = -1;
+        while(true){
+            Thread.sleep(5000);
+            if(robot.getFrameCount() == frames) continue;
+            frames = robot.getFrameCount();
+            System.out.println("sessions " + robot.getSessionCount() + " frames " + frames
+                               + " deltas " + robot.getDeltaCount() + " drive " + robot.getThrottle()
+                               + "/" + robot.getSteer() + " readings " + robot.getReadingCount()
+                               + " replies " + robot.getReplyCount());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over TCP, addresses are host:port.
+ *
+ * Reaches a SimulatedRobot listening on another machine, or on the
+ * development host from the emulator (10.0.2.2 is the host there). Nagle
+ * is turned off, commands are small and latency matters more than packet
+ * count.
+ *
+ * Has no Android dependencies.
+ */
+public class TcpTransport implements Transport {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+    private final int mConnectTimeout;
+
+    public TcpTransport(){
+        this(DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+    public TcpTransport(int connectTimeoutMillis){
+        mConnectTimeout = connectTimeoutMillis;
+    }
+
+    @Override
+    public Connection open(String address, boolean secure) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if(colon <= 0) throw new IOException("address is not host:port: " + address);
+        int port;
+        try{
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+        catch(NumberFormatException e){
+            throw new IOException("bad port in " + address);
+        }
+        return new TcpConnection(address.substring(0, colon), port);
+    }
+
+    private class TcpConnection implements Connection {
+        private final String mHost;
+        private final int mPort;
+        private final Socket mSocket = new Socket();
+
+        TcpConnection(String host, int port){
+            mHost = host;
+            mPort = port;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeout);
+        }
+        @Override
+        public InputStream getInputStream() throws IOException {return mSocket.getInputStream();}
+        @Override
+        public OutputStream getOutputStream() throws IOException {return mSocket.getOutputStream();}
+        @Override
+        public void close() throws IOException {mSocket.close();}
+    }
+}
@@ -0,0 +1,253 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Polls the robot's IR and sonar sensors with several requests in flight.
+ *
+ * A request is an OP_IR or OP_SONAR frame whose arg is the sensor channel;
+ * the robot answers with the same opcode, channel and sequence and the
+ * reading in the payload. Waiting for each answer before asking again
+ * would leave the link idle for a whole round trip per reading, so up to
+ * the window size of requests are kept outstanding and answers are
+ * matched back to their request by sequence number.
+ *
+ * Sensors are polled at a fixed rate with schedule(), or once with
+ * request(). tick() expires requests unanswered after the timeout, sends
+ * whatever is due while the window has room and says when it wants to
+ * be called again. A poll that comes due while the window is full is
+ * sent late rather than twice. Answers go to onFrame(), readings come
+ * out typed through the Listener.
+ *
+ * Time is System.nanoTime() passed in by the caller. Nothing is allocated
+ * after construction. Has no Android dependencies. Not thread safe, tick()
+ * and onFrame() are meant to run on the same thread.
+ */
+public class TelemetryPoller {
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_WINDOW = 16;
+    public static final long DEFAULT_TIMEOUT_NANOS = 300000000L;
+    //sensors that can be polled at once
+    public static final int MAX_SCHEDULES = 8;
+    //one-shot requests waiting for room in the window
+    private static final int MAX_PENDING = 8;
+
+    /**
+     * Receives readings and timeouts, on the thread calling onFrame() or
+     * tick(). timestamp is when the reading arrived or the request expired.
+     */
+    public interface Listener {
+        //level is the IR reflectance, 0..1023, higher is closer
+        void onIrReading(int channel, int level, long timestamp);
+        //distance to the nearest obstacle in cm
+        void onSonarReading(int channel, int distance, long timestamp);
+        //a request sent with opcode to channel was not answered in time
+        void onTimeout(int opcode, int channel, long timestamp);
+    }
+
+    private final CommandSink mSink;
+    private final Listener mListener;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mTimeout = DEFAULT_TIMEOUT_NANOS;
+    private int mSequence;
+
+    //polled sensors
+    private final int[] mScheduleOpcode = new int[MAX_SCHEDULES];
+    private final int[] mScheduleChannel = new int[MAX_SCHEDULES];
+    private final long[] mScheduleInterval = new long[MAX_SCHEDULES];
+    private final long[] mScheduleDue = new long[MAX_SCHEDULES];  //0 is right away
+    private int mSchedules;
+
+    //one-shot requests not sent yet, a ring
+    private final int[] mPendingOpcode = new int[MAX_PENDING];
+    private final int[] mPendingChannel = new int[MAX_PENDING];
+    private int mPendingHead, mPendingCount;
+
+    //requests in flight, a free slot has opcode 0
+    private final int[] mFlightOpcode = new int[MAX_WINDOW];
+    private final int[] mFlightChannel = new int[MAX_WINDOW];
+    private final int[] mFlightSequence = new int[MAX_WINDOW];
+    private final long[] mFlightSent = new long[MAX_WINDOW];
+    private int mInFlight;
+
+    //requests sent by one tick go out in one write
+    private final byte[] mBatch = new byte[MAX_WINDOW * CommandFrame.FRAME_SIZE];
+
+    //statistics
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+    private long mSent;
+    private long mAnswered;
+    private long mTimeouts;
+    private long mUnmatched;
+
+    public TelemetryPoller(CommandSink sink, Listener listener){
+        mSink = sink;
+        mListener = listener;
+    }
+
+    private static void checkOpcode(int opcode){
+        if(opcode != CommandFrame.OP_IR && opcode != CommandFrame.OP_SONAR){
+            throw new IllegalArgumentException("not a sensor opcode: " + opcode);
+        }
+    }
+
+    /**
+     * Poll a sensor hz times a second from the next tick() on.
+     * Calling it again for the same sensor changes the rate, 0 stops polling.
+     * @param opcode CommandFrame.OP_IR or OP_SONAR
+     * @param channel sensor channel, 0..255
+     */
+    public void schedule(int opcode, int channel, int hz){
+        checkOpcode(opcode);
+        int i = 0;
+        while(i < mSchedules && (mScheduleOpcode[i] != opcode || mScheduleChannel[i] != channel)) i++;
+        if(hz <= 0){
+            if(i == mSchedules) return;
+            mSchedules--;
+            mScheduleOpcode[i] = mScheduleOpcode[mSchedules];
+            mScheduleChannel[i] = mScheduleChannel[mSchedules];
+            mScheduleInterval[i] = mScheduleInterval[mSchedules];
+            mScheduleDue[i] = mScheduleDue[mSchedules];
+            return;
+        }
+        if(i == mSchedules){
+            if(mSchedules == MAX_SCHEDULES) throw new IllegalStateException("too many sensors polled");
+            mSchedules++;
+            mScheduleOpcode[i] = opcode;
+            mScheduleChannel[i] = channel & 0xFF;
+            mScheduleDue[i] = 0;
+        }
+        mScheduleInterval[i] = 1000000000L / hz;
+    }
+
+    /**
+     * Ask for one reading, sent on the next tick() with room in the window.
+     * @return false if too many one-shot requests are waiting already
+     */
+    public boolean request(int opcode, int channel){
+        checkOpcode(opcode);
+        if(mPendingCount == MAX_PENDING) return false;
+        int tail = (mPendingHead + mPendingCount) % MAX_PENDING;
+        mPendingOpcode[tail] = opcode;
+        mPendingChannel[tail] = channel & 0xFF;
+        mPendingCount++;
+        return true;
+    }
+
+    /**
+     * Expire old requests and send what is due.
+     * @return nanoseconds until tick() should be called again,
+     *         Long.MAX_VALUE if nothing is scheduled or in flight
+     */
+    public long tick(long now){
+        expire(now);
+
+        int len = 0;
+        while(mPendingCount > 0 && mInFlight < mWindow){
+            len += send(mPendingOpcode[mPendingHead], mPendingChannel[mPendingHead], now, len);
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING;
+            mPendingCount--;
+        }
+        while(mInFlight < mWindow){
+            //most overdue first, so a small window is shared fairly
+            int i = -1;
+            for(int k = 0; k < mSchedules; k++){
+                if(mScheduleDue[k] - now <= 0 && (i < 0 || mScheduleDue[k] - mScheduleDue[i] < 0)) i = k;
+            }
+            if(i < 0) break;
+            len += send(mScheduleOpcode[i], mScheduleChannel[i], now, len);
+            //after a stall polls are skipped, not sent in a burst to catch up
+            long due = mScheduleDue[i] + mScheduleInterval[i];
+            mScheduleDue[i] = due - now > 0 ? due : now + mScheduleInterval[i];
+        }
+        //polls come from no sensor sample, keep them out of the latency stages
+        if(len > 0) mSink.write(mBatch, 0, len, 0);
+
+        //wake for the next poll, or the next expiry
+        long wait = Long.MAX_VALUE;
+        if(mInFlight < mWindow){
+            if(mPendingCount > 0) wait = 0;
+            for(int i = 0; i < mSchedules; i++) wait = Math.min(wait, Math.max(0, mScheduleDue[i] - now));
+        }
+        for(int slot = 0; slot < MAX_WINDOW; slot++){
+            if(mFlightOpcode[slot] != 0) wait = Math.min(wait, Math.max(0, mFlightSent[slot] + mTimeout - now));
+        }
+        return wait;
+    }
+
+    //encode a request at mBatch[offset] and put it in flight, returns its size
+    private int send(int opcode, int channel, long now, int offset){
+        int slot = 0;
+        while(mFlightOpcode[slot] != 0) slot++;
+        mSequence = (mSequence + 1) & CommandFrame.SEQUENCE_MASK;
+        mFlightOpcode[slot] = opcode;
+        mFlightChannel[slot] = channel;
+        mFlightSequence[slot] = mSequence;
+        mFlightSent[slot] = now;
+        mInFlight++;
+        mSent++;
+        return CommandFrame.encode(mBatch, offset, opcode, channel, 0, mSequence);
+    }
+
+    private void expire(long now){
+        for(int slot = 0; slot < MAX_WINDOW; slot++){
+            if(mFlightOpcode[slot] == 0 || now - mFlightSent[slot] < mTimeout) continue;
+            int opcode = mFlightOpcode[slot];
+            mFlightOpcode[slot] = 0;
+            mInFlight--;
+            mTimeouts++;
+            mListener.onTimeout(opcode, mFlightChannel[slot], now);
+        }
+    }
+
+    /**
+     * Hand over a frame received from the robot.
+     * Readings that answer no request in flight (late, or pushed by the
+     * robot unasked) are delivered too, but counted as unmatched.
+     * @param arg unsigned, as FrameDecoder delivers it
+     * @return true if the frame was a reading
+     */
+    public boolean onFrame(int opcode, int arg, int payload, int seq, long now){
+        if(opcode != CommandFrame.OP_IR && opcode != CommandFrame.OP_SONAR) return false;
+        int slot = 0;
+        while(slot < MAX_WINDOW && (mFlightOpcode[slot] != opcode || mFlightChannel[slot] != arg
+                                    || mFlightSequence[slot] != seq)) slot++;
+        if(slot < MAX_WINDOW){
+            mFlightOpcode[slot] = 0;
+            mInFlight--;
+            mAnswered++;
+            mRoundTrip.record((now - mFlightSent[slot]) / 1000L);
+        }
+        else{
+            mUnmatched++;
+        }
+        if(opcode == CommandFrame.OP_IR) mListener.onIrReading(arg, payload, now);
+        else mListener.onSonarReading(arg, payload, now);
+        return true;
+    }
+
+    /**
+     * Forget requests in flight or waiting, without timeouts, e.g. when
+     * the connection was replaced. Polls start over on the next tick().
+     */
+    public void reset(){
+        for(int slot = 0; slot < MAX_WINDOW; slot++) mFlightOpcode[slot] = 0;
+        mInFlight = 0;
+        mPendingCount = 0;
+        for(int i = 0; i < mSchedules; i++) mScheduleDue[i] = 0;
+    }
+
+    //requests kept in flight at most, 1..MAX_WINDOW
+    public void setWindow(int window){
+        mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+    }
+    public int getWindow(){return mWindow;}
+    public void setTimeout(long nanos){mTimeout = nanos;}
+    public long getTimeout(){return mTimeout;}
+
+    public int getInFlight(){return mInFlight;}
+    //time from request to answer, in microseconds
+    public LatencyHistogram getRoundTrip(){return mRoundTrip;}
+    public long getSentCount(){return mSent;}
+    public long getAnsweredCount(){return mAnswered;}
+    public long getTimeoutCount(){return mTimeouts;}
+    public long getUnmatchedCount(){return mUnmatched;}
+}
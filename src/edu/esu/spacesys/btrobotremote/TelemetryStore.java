@@ -0,0 +1,323 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Fixed memory history of telemetry readings, e.g. sonar distance and IR
+ * level, for charts and obstacle logic.
+ *
+ * Every series is kept at three resolutions, each in its own ring:
+ *   LEVEL_RAW     every reading
+ *   LEVEL_SECOND  min, max and average per second
+ *   LEVEL_TEN     min, max and average per ten seconds
+ * Rollups are built as readings arrive: each level keeps an open bucket
+ * that is closed into its ring when a reading falls past its end, and
+ * a closed second is folded into the open ten seconds. Once a ring is
+ * full the oldest entry is overwritten, so the store never grows; with
+ * the default sizes it holds a minute of raw readings at 20 Hz, ten
+ * minutes of seconds and an hour of ten seconds.
+ *
+ * Everything lives in primitive arrays allocated by the constructor.
+ * Queries copy into arrays the caller owns and allocate nothing.
+ * Timestamps are System.nanoTime() and must not go backwards within a
+ * series; an older one is taken as the newest seen. Has no Android
+ * dependencies. Not thread safe.
+ */
+public class TelemetryStore {
+    public static final int LEVEL_RAW = 0;
+    public static final int LEVEL_SECOND = 1;
+    public static final int LEVEL_TEN = 2;
+    public static final int LEVEL_COUNT = 3;
+
+    //default ring sizes
+    public static final int DEFAULT_RAW = 1200;
+    public static final int DEFAULT_SECONDS = 600;
+    public static final int DEFAULT_TENS = 360;
+
+    //bucket width of each level, raw has none
+    private static final long[] WIDTH = {0, 1000000000L, 10000000000L};
+
+    /**
+     * min, max and average of a range, filled in by summarize().
+     * Allocate one and reuse it.
+     */
+    public static class Summary {
+        public float min, max, avg;
+        public int count;   //readings in the range, 0 if none
+        public int level;   //resolution the summary was computed from
+    }
+
+    private final int mSeries;
+    private final int[] mCapacity = new int[LEVEL_COUNT];
+
+    //rings, entry i of series s is at [s * capacity + i]
+    private final long[][] mTime = new long[LEVEL_COUNT][];   //start of the bucket, or of the reading
+    private final float[][] mMin = new float[LEVEL_COUNT][];
+    private final float[][] mMax = new float[LEVEL_COUNT][];  //rollups only
+    private final double[][] mSum = new double[LEVEL_COUNT][]; //rollups only
+    private final int[][] mCount = new int[LEVEL_COUNT][];    //readings per bucket, rollups only
+    private final int[][] mHead = new int[LEVEL_COUNT][];     //oldest entry, by series
+    private final int[][] mSize = new int[LEVEL_COUNT][];
+
+    //open bucket of each rollup level, by series; count 0 is empty
+    private final long[][] mOpenStart = new long[LEVEL_COUNT][];
+    private final float[][] mOpenMin = new float[LEVEL_COUNT][];
+    private final float[][] mOpenMax = new float[LEVEL_COUNT][];
+    private final double[][] mOpenSum = new double[LEVEL_COUNT][];
+    private final int[][] mOpenCount = new int[LEVEL_COUNT][];
+
+    private final long[] mLast;
+    private final float[] mLastValue;
+
+    public TelemetryStore(int series){
+        this(series, DEFAULT_RAW, DEFAULT_SECONDS, DEFAULT_TENS);
+    }
+    /**
+     * @param series number of series, addressed as 0..series-1
+     * @param raw, seconds, tens ring size of each level, per series
+     */
+    public TelemetryStore(int series, int raw, int seconds, int tens){
+        mSeries = series;
+        mCapacity[LEVEL_RAW] = raw;
+        mCapacity[LEVEL_SECOND] = seconds;
+        mCapacity[LEVEL_TEN] = tens;
+        for(int level = 0; level < LEVEL_COUNT; level++){
+            int n = series * mCapacity[level];
+            mTime[level] = new long[n];
+            mMin[level] = new float[n];
+            mHead[level] = new int[series];
+            mSize[level] = new int[series];
+            if(level == LEVEL_RAW) continue;
+            mMax[level] = new float[n];
+            mSum[level] = new double[n];
+            mCount[level] = new int[n];
+            mOpenStart[level] = new long[series];
+            mOpenMin[level] = new float[series];
+            mOpenMax[level] = new float[series];
+            mOpenSum[level] = new double[series];
+            mOpenCount[level] = new int[series];
+        }
+        mLast = new long[series];
+        mLastValue = new float[series];
+    }
+
+    /**
+     * Add a reading to series.
+     * @param timestamp System.nanoTime() of the reading
+     */
+    public void record(int series, long timestamp, float value){
+        if(mSize[LEVEL_RAW][series] > 0 && timestamp - mLast[series] < 0) timestamp = mLast[series];
+        mLast[series] = timestamp;
+        mLastValue[series] = value;
+
+        int i = append(LEVEL_RAW, series, timestamp);
+        mMin[LEVEL_RAW][i] = value;
+
+        //close the open second if the reading is past it, then count the reading
+        long second = bucketStart(timestamp, WIDTH[LEVEL_SECOND]);
+        if(mOpenCount[LEVEL_SECOND][series] > 0 && mOpenStart[LEVEL_SECOND][series] != second){
+            closeBucket(LEVEL_SECOND, series);
+        }
+        addToBucket(LEVEL_SECOND, series, second, value, value, value, 1);
+    }
+
+    //move the open bucket of level into its ring and roll it up one level
+    private void closeBucket(int level, int series){
+        final long start = mOpenStart[level][series];
+        final float min = mOpenMin[level][series];
+        final float max = mOpenMax[level][series];
+        final double sum = mOpenSum[level][series];
+        final int count = mOpenCount[level][series];
+        int i = append(level, series, start);
+        mMin[level][i] = min;
+        mMax[level][i] = max;
+        mSum[level][i] = sum;
+        mCount[level][i] = count;
+        mOpenCount[level][series] = 0;
+
+        if(level + 1 == LEVEL_COUNT) return;
+        long next = bucketStart(start, WIDTH[level + 1]);
+        if(mOpenCount[level + 1][series] > 0 && mOpenStart[level + 1][series] != next){
+            closeBucket(level + 1, series);
+        }
+        addToBucket(level + 1, series, next, min, max, sum, count);
+    }
+
+    private void addToBucket(int level, int series, long start, float min, float max, double sum, int count){
+        if(mOpenCount[level][series] == 0){
+            mOpenStart[level][series] = start;
+            mOpenMin[level][series] = min;
+            mOpenMax[level][series] = max;
+            mOpenSum[level][series] = sum;
+            mOpenCount[level][series] = count;
+            return;
+        }
+        if(min < mOpenMin[level][series]) mOpenMin[level][series] = min;
+        if(max > mOpenMax[level][series]) mOpenMax[level][series] = max;
+        mOpenSum[level][series] += sum;
+        mOpenCount[level][series] += count;
+    }
+
+    //claim the next ring entry of series, overwriting the oldest when full
+    private int append(int level, int series, long time){
+        final int capacity = mCapacity[level];
+        int size = mSize[level][series];
+        int slot;
+        if(size < capacity){
+            slot = (mHead[level][series] + size) % capacity;
+            mSize[level][series] = size + 1;
+        }
+        else{
+            slot = mHead[level][series];
+            mHead[level][series] = (slot + 1) % capacity;
+        }
+        int i = series * capacity + slot;
+        mTime[level][i] = time;
+        return i;
+    }
+
+    //start of the bucket of width holding t, nanoTime can be negative
+    private static long bucketStart(long t, long width){
+        return t - ((t % width) + width) % width;
+    }
+
+    //array index of the k-th oldest entry of series at level
+    private int index(int level, int series, int k){
+        final int capacity = mCapacity[level];
+        return series * capacity + (mHead[level][series] + k) % capacity;
+    }
+
+    //first entry, oldest first, at or after time; size if none
+    private int lowerBound(int level, int series, long time){
+        int lo = 0, hi = mSize[level][series];
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            //a bucket that ends after time still holds readings in the range
+            long end = mTime[level][index(level, series, mid)] + WIDTH[level];
+            if(level == LEVEL_RAW ? end - time < 0 : end - time <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Copy the entries of series at level that overlap from..to, oldest
+     * first, into the caller's arrays. Rollup entries are whole buckets,
+     * the bucket still open is included last. At most times.length
+     * entries are copied. Raw entries have min, max and avg equal.
+     * @param times start of each entry, or the time of each raw reading
+     * @param min, max, avg may be null when not needed
+     * @return number of entries copied
+     */
+    public int query(int series, int level, long from, long to,
+                     long[] times, float[] min, float[] max, float[] avg){
+        final int size = mSize[level][series];
+        int n = 0;
+        for(int k = lowerBound(level, series, from); k < size && n < times.length; k++){
+            int i = index(level, series, k);
+            if(mTime[level][i] - to > 0) break;
+            times[n] = mTime[level][i];
+            if(level == LEVEL_RAW){
+                float v = mMin[level][i];
+                if(min != null) min[n] = v;
+                if(max != null) max[n] = v;
+                if(avg != null) avg[n] = v;
+            }
+            else{
+                if(min != null) min[n] = mMin[level][i];
+                if(max != null) max[n] = mMax[level][i];
+                if(avg != null) avg[n] = (float) (mSum[level][i] / mCount[level][i]);
+            }
+            n++;
+        }
+        //open bucket
+        if(level != LEVEL_RAW && n < times.length && mOpenCount[level][series] > 0){
+            long start = mOpenStart[level][series];
+            if(start + WIDTH[level] - from > 0 && start - to <= 0){
+                times[n] = start;
+                if(min != null) min[n] = mOpenMin[level][series];
+                if(max != null) max[n] = mOpenMax[level][series];
+                if(avg != null) avg[n] = (float) (mOpenSum[level][series] / mOpenCount[level][series]);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * min, max and average of series from..to, from the finest level that
+     * still reaches back to from. If none does, e.g. early in a session,
+     * from the finest level that has overwritten nothing yet, which is raw
+     * for the first minute. Coarse levels count whole buckets, so the
+     * range can grow to bucket edges.
+     * @param out filled in, out.count is 0 if there was nothing in the range
+     */
+    public void summarize(int series, long from, long to, Summary out){
+        int level = LEVEL_RAW;
+        while(level < LEVEL_COUNT && !reaches(level, series, from)) level++;
+        if(level == LEVEL_COUNT){
+            //the head only moves once a ring is full
+            level = LEVEL_RAW;
+            while(level < LEVEL_TEN && mHead[level][series] != 0) level++;
+        }
+        out.level = level;
+        out.count = 0;
+        double sum = 0;
+        final int size = mSize[level][series];
+        for(int k = lowerBound(level, series, from); k < size; k++){
+            int i = index(level, series, k);
+            if(mTime[level][i] - to > 0) break;
+            float lo = mMin[level][i];
+            float hi = level == LEVEL_RAW ? lo : mMax[level][i];
+            int count = level == LEVEL_RAW ? 1 : mCount[level][i];
+            sum += level == LEVEL_RAW ? lo : mSum[level][i];
+            merge(out, lo, hi, count);
+        }
+        //open buckets, a finer one is not folded into the coarser ones yet
+        for(int open = level; open > LEVEL_RAW; open--){
+            if(mOpenCount[open][series] == 0) continue;
+            long start = mOpenStart[open][series];
+            if(start + WIDTH[open] - from > 0 && start - to <= 0){
+                sum += mOpenSum[open][series];
+                merge(out, mOpenMin[open][series], mOpenMax[open][series], mOpenCount[open][series]);
+            }
+        }
+        out.avg = out.count > 0 ? (float) (sum / out.count) : 0f;
+    }
+
+    //true if the oldest entry of series at level, or its open bucket, starts by time
+    private boolean reaches(int level, int series, long time){
+        if(mSize[level][series] > 0) return mTime[level][index(level, series, 0)] - time <= 0;
+        if(level == LEVEL_RAW || mOpenCount[level][series] == 0) return false;
+        return mOpenStart[level][series] - time <= 0;
+    }
+
+    private static void merge(Summary out, float min, float max, int count){
+        if(out.count == 0){
+            out.min = min;
+            out.max = max;
+        }
+        else{
+            if(min < out.min) out.min = min;
+            if(max > out.max) out.max = max;
+        }
+        out.count += count;
+    }
+
+    public int getSeriesCount(){return mSeries;}
+    //entries kept at level for series, the open bucket not included
+    public int size(int series, int level){return mSize[level][series];}
+    public int capacity(int level){return mCapacity[level];}
+    //newest reading of series and its time, check size(series, LEVEL_RAW) first
+    public float latest(int series){return mLastValue[series];}
+    public long latestTime(int series){return mLast[series];}
+
+    //forget everything, e.g. for a new robot
+    public void clear(){
+        for(int level = 0; level < LEVEL_COUNT; level++){
+            for(int s = 0; s < mSeries; s++){
+                mHead[level][s] = 0;
+                mSize[level][s] = 0;
+                if(level != LEVEL_RAW) mOpenCount[level][s] = 0;
+            }
+        }
+    }
+}
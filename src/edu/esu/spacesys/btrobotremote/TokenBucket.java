@@ -0,0 +1,81 @@
+package edu.esu.spacesys.btrobotremote;
+
+/**
+ * Token bucket pacing writes to a link of limited throughput.
+ *
+ * Tokens are bytes. They accrue at the rate and are capped at the burst
+ * size, so after an idle period at most a burst goes out back to back and
+ * after that the link is fed at the rate. Time is passed in by the caller
+ * (System.nanoTime() in the app), which keeps the class free of clocks and
+ * Android.
+ */
+public class TokenBucket {
+    private double mRate;        //bytes per second
+    private final int mBurst;    //largest number of tokens held
+    private double mTokens;
+    private long mLastRefill;
+    private boolean mStarted;
+
+    /**
+     * @param bytesPerSecond sustained rate
+     * @param burstBytes tokens the bucket holds when full, starts full
+     */
+    public TokenBucket(int bytesPerSecond, int burstBytes){
+        if(bytesPerSecond <= 0) throw new IllegalArgumentException("rate must be positive: " + bytesPerSecond);
+        if(burstBytes <= 0) throw new IllegalArgumentException("burst must be positive: " + burstBytes);
+        mRate = bytesPerSecond;
+        mBurst = burstBytes;
+        mTokens = burstBytes;
+    }
+
+    private void refill(long now){
+        if(!mStarted){
+            mLastRefill = now;
+            mStarted = true;
+            return;
+        }
+        long elapsed = now - mLastRefill;
+        if(elapsed <= 0) return;
+        mTokens = Math.min(mBurst, mTokens + elapsed * mRate / 1e9);
+        mLastRefill = now;
+    }
+
+    //whole tokens available at time now
+    public synchronized int available(long now){
+        refill(now);
+        return (int) mTokens;
+    }
+
+    /**
+     * Nanoseconds to wait before bytes tokens are available, 0 if they
+     * are available now. Asking for more than the burst waits for a full bucket.
+     */
+    public synchronized long nanosUntil(int bytes, long now){
+        refill(now);
+        double missing = Math.min(bytes, mBurst) - mTokens;
+        if(missing <= 0) return 0;
+        return (long) Math.ceil(missing * 1e9 / mRate);
+    }
+
+    //take bytes tokens if they are available
+    public synchronized boolean tryConsume(int bytes, long now){
+        refill(now);
+        if(mTokens < bytes) return false;
+        mTokens -= bytes;
+        return true;
+    }
+
+    //take bytes tokens, going into debt if there are not enough
+    public synchronized void consume(int bytes, long now){
+        refill(now);
+        mTokens -= bytes;
+    }
+
+    public synchronized void setRate(double bytesPerSecond, long now){
+        if(!(bytesPerSecond > 0)) throw new IllegalArgumentException("rate must be positive: " + bytesPerSecond);
+        refill(now); //tokens accrued so far count at the old rate
+        mRate = bytesPerSecond;
+    }
+    public synchronized double getRate(){return mRate;}
+    public int getBurst(){return mBurst;}
+}
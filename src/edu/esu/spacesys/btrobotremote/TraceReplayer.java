@@ -0,0 +1,160 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Feeds a recorded sensor trace through the same MotionPipeline and
+ * DriveCommandMapper the app uses for live sensors, and hands the
+ * resulting command frames to a CommandSink.
+ *
+ * Time comes from a virtual clock that follows the trace timestamps.
+ * In MODE_REALTIME the replay sleeps so samples are delivered at the
+ * pace they were recorded; in MODE_FAST samples are processed back to
+ * back, which is what benchmarks want.
+ *
+ * Has no Android dependencies, run main() on any JVM:
+ *   java edu.esu.spacesys.btrobotremote.TraceReplayer trace [--realtime] [--repeat n] [--verbose] [--proportional]
+ */
+public class TraceReplayer implements MotionPipeline.Listener {
+    public static final int MODE_FAST = 0;
+    public static final int MODE_REALTIME = 1;
+
+    private final SensorTraceReader mReader;
+    private final MotionPipeline mPipeline;
+    private final DriveCommandMapper mMapper;
+    private final CommandEmitter mEmitter;
+    private final CommandSink mSink;
+    private final int mMode;
+
+    private final MotionEventBus.Sample mSample = new MotionEventBus.Sample();
+    private final byte[] mCommandBuffer = new byte[DriveCommandMapper.MAX_COMMAND_SIZE];
+
+    //virtual clock: nanoseconds since the first sample of the trace
+    private long mFirstTimestamp;
+    private long mVirtualTime;
+
+    //statistics
+    private long mSamples;
+    private long mCommandBytes;
+    private long mWallNanos;
+
+    public TraceReplayer(SensorTraceReader reader, MotionPipeline pipeline,
+                         DriveCommandMapper mapper, CommandSink sink, int mode){
+        mReader = reader;
+        mPipeline = pipeline;
+        mMapper = mapper;
+        mEmitter = new CommandEmitter(mapper);
+        mSink = sink;
+        mMode = mode;
+    }
+
+    /**
+     * Replay the whole trace from the start.
+     * @throws InterruptedException if interrupted while pacing a real time replay
+     */
+    public void run() throws InterruptedException {
+        //start from the same state every time so replays are deterministic
+        mReader.rewind();
+        mPipeline.reset();
+        mMapper.reset();
+        mEmitter.reset();
+        final long wallStart = System.nanoTime();
+        boolean first = true;
+
+        while(mReader.next(mSample)){
+            if(first){
+                mFirstTimestamp = mSample.timestamp;
+                first = false;
+            }
+            mVirtualTime = mSample.timestamp - mFirstTimestamp;
+
+            if(mMode == MODE_REALTIME){
+                long wait = mVirtualTime - (System.nanoTime() - wallStart);
+                if(wait > 0) Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+            mPipeline.process(mSample.type, mSample.timestamp, mSample.values, this);
+            mSamples++;
+        }
+        mWallNanos += System.nanoTime() - wallStart;
+    }
+
+    @Override
+    public void onAcceleration(float [] accel, long timestamp){
+        int len = mEmitter.emit(accel[0], accel[1], timestamp, mCommandBuffer, 0);
+        if(len > 0){
+            mSink.write(mCommandBuffer, 0, len, timestamp);
+            mCommandBytes += len;
+        }
+    }
+    @Override
+    public void onRotation(float [] rotation, long timestamp){
+        //rotation is only displayed by the app, it does not produce commands
+    }
+
+    //position of the virtual clock, nanoseconds since the first sample
+    public long getVirtualTime(){return mVirtualTime;}
+    public long getSampleCount(){return mSamples;}
+    public long getCommandBytes(){return mCommandBytes;}
+    //decides which commands are sent, and counts the ones held back
+    public CommandEmitter getEmitter(){return mEmitter;}
+    public long getWallNanos(){return mWallNanos;}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 1){
+            System.err.println("usage: TraceReplayer trace [--realtime] [--repeat n] [--verbose] [--proportional]");
+            System.exit(2);
+        }
+        int mode = MODE_FAST;
+        int repeat = 1;
+        boolean verbose = false;
+        DriveCommandMapper mapper = new DriveCommandMapper();
+        for(int i = 1; i < args.length; i++){
+            if("--realtime".equals(args[i])) mode = MODE_REALTIME;
+            else if("--repeat".equals(args[i]) && i + 1 < args.length) repeat = Integer.parseInt(args[++i]);
+            else if("--verbose".equals(args[i])) verbose = true;
+            else if("--proportional".equals(args[i])) mapper.setMode(DriveCommandMapper.MODE_PROPORTIONAL);
+        }
+
+        final boolean printFrames = verbose;
+        CommandSink sink = new CommandSink(){
+            @Override
+            public void write(byte[] out, int offset, int count, long timestamp){
+                if(!printFrames) return;
+                for(int i = offset; i < offset + count; i += CommandFrame.FRAME_SIZE){
+                    if(CommandFrame.opcode(out, i) == CommandFrame.OP_DRIVE){
+                        System.out.println("D " + CommandFrame.driveThrottle(out, i) + " "
+                                           + CommandFrame.payload(out, i) + " #"
+                                           + CommandFrame.sequence(out, i));
+                        continue;
+                    }
+                    System.out.println((char) CommandFrame.opcode(out, i) + " "
+                                       + (char) CommandFrame.arg(out, i) + " "
+                                       + CommandFrame.payload(out, i) + " #"
+                                       + CommandFrame.sequence(out, i));
+                }
+            }
+        };
+
+        SensorTraceReader reader = new SensorTraceReader(new File(args[0]));
+        try{
+            TraceReplayer replayer = new TraceReplayer(reader, new MotionPipeline(),
+                                                       mapper, sink, mode);
+            for(int i = 0; i < repeat; i++) replayer.run();
+
+            long samples = replayer.getSampleCount();
+            System.out.println("samples:       " + samples);
+            System.out.println("trace length:  " + replayer.getVirtualTime() / 1000000L + " ms");
+            System.out.println("command bytes: " + replayer.getCommandBytes());
+            System.out.println("suppressed:    " + replayer.getEmitter().getSuppressedCount()
+                               + " commands, " + replayer.getEmitter().getSuppressedBytes() + " bytes");
+            System.out.println("wall time:     " + replayer.getWallNanos() / 1000000L + " ms");
+            if(samples > 0){
+                System.out.println("per sample:    " + replayer.getWallNanos() / samples + " ns");
+            }
+        }
+        finally{
+            reader.close();
+        }
+    }
+}
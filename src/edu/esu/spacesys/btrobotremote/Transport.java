@@ -0,0 +1,40 @@
+package edu.esu.spacesys.btrobotremote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way to reach a robot: RFCOMM on the phone, TCP or an in-process pipe
+ * to a SimulatedRobot when testing without radio hardware.
+ *
+ * open() only prepares a connection, connect() makes it. That split lets
+ * another thread abort a connect() in progress by calling close(), which
+ * is how the service cancels attempts it no longer wants.
+ *
+ * Has no Android dependencies.
+ */
+public interface Transport {
+
+    /**
+     * One connection to a robot. close() may be called from any thread;
+     * it aborts a blocking connect() or read with an IOException.
+     */
+    interface Connection extends Closeable {
+        //blocks until connected, throws if the robot cannot be reached
+        void connect() throws IOException;
+        //streams of a connected connection
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+    }
+
+    /**
+     * Prepare a connection to address without connecting yet.
+     * @param address  what the transport understands as an address, e.g. a
+     *                 Bluetooth MAC address or host:port
+     * @param secure   ask for an authenticated and encrypted link, ignored by
+     *                 transports that have no such choice
+     */
+    Connection open(String address, boolean secure) throws IOException;
+}
@@ -0,0 +1,202 @@
+package edu.esu.spacesys.btrobotremote;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Last stage of the motion and telemetry path: keeps the latest values
+ * for the main screen and puts them on the views at most once per
+ * display frame.
+ *
+ * Sensors deliver far more samples than the display shows, and every
+ * setText() costs a layout pass on the main thread. The set methods only
+ * store the value and ask for a frame; when the frame comes the views
+ * whose value changed since they were last drawn are updated, the others
+ * are left alone. Frames come from the Choreographer on API 16 and up,
+ * before that from a handler posting every FRAME_MILLIS. Texts are built
+ * by a FloatFormatter per view, so drawing a frame allocates nothing.
+ *
+ * Must be used on the main thread.
+ */
+public class UiUpdateStage {
+    //frame interval when there is no Choreographer, about 60 Hz
+    private static final long FRAME_MILLIS = 16;
+
+    private final TextView mAccelView;
+    private final TextView mGyroView;
+    private final TextView mTelemetryView;
+    private final View[] mDirectionViews;
+    private final int[] mDirectionBits;
+
+    //one per view, the view keeps showing the formatter's array
+    private final FloatFormatter mAccelText = new FloatFormatter(64);
+    private final FloatFormatter mGyroText = new FloatFormatter(48);
+    private final FloatFormatter mTelemetryText = new FloatFormatter(64);
+
+    //latest values, and the values on screen
+    private float mAccelX, mAccelY, mAccelZ;
+    private float mShownAccelX = Float.NaN, mShownAccelY, mShownAccelZ;
+    private float mGyroX, mGyroY, mGyroZ;
+    private float mShownGyroX = Float.NaN, mShownGyroY, mShownGyroZ;
+    private int mDirections;
+    private int mShownDirections;
+    private int mSonar, mClosest, mIr;
+    private long mTimeouts;
+    private boolean mTelemetrySet;
+    private int mShownSonar, mShownClosest, mShownIr;
+    private long mShownTimeouts = -1;
+
+    private final Ticker mTicker;
+    private boolean mScheduled;
+
+    //statistics
+    private long mUpdates;   //set calls
+    private long mFrames;    //frames that ran
+    private long mViewsSet;  //views actually changed
+
+    public UiUpdateStage(Activity activity, Handler handler){
+        mAccelView = (TextView) activity.findViewById(R.id.accel_stats);
+        mGyroView = (TextView) activity.findViewById(R.id.gyro_stats);
+        mTelemetryView = (TextView) activity.findViewById(R.id.telemetry_stats);
+        mDirectionViews = new View[]{
+            activity.findViewById(R.id.forward), activity.findViewById(R.id.bottom),
+            activity.findViewById(R.id.left), activity.findViewById(R.id.right)};
+        mDirectionBits = new int[]{
+            DriveCommandMapper.DIR_FORWARD, DriveCommandMapper.DIR_BACKWARD,
+            DriveCommandMapper.DIR_LEFT, DriveCommandMapper.DIR_RIGHT};
+        mTicker = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new ChoreographerTicker() : new HandlerTicker(handler);
+    }
+
+    public void setAcceleration(float x, float y, float z){
+        mAccelX = x;
+        mAccelY = y;
+        mAccelZ = z;
+        requestFrame();
+    }
+    public void setRotation(float x, float y, float z){
+        mGyroX = x;
+        mGyroY = y;
+        mGyroZ = z;
+        requestFrame();
+    }
+    //DriveCommandMapper.DIR_ bits of the buttons to show pressed
+    public void setDirections(int directions){
+        mDirections = directions;
+        requestFrame();
+    }
+    //-1 for a value not known yet
+    public void setTelemetry(int sonar, int closest, int ir, long timeouts){
+        mSonar = sonar;
+        mClosest = closest;
+        mIr = ir;
+        mTimeouts = timeouts;
+        mTelemetrySet = true;
+        requestFrame();
+    }
+
+    private void requestFrame(){
+        mUpdates++;
+        if(mScheduled) return;
+        mScheduled = true;
+        mTicker.request();
+    }
+
+    //drop a pending frame, e.g. when the activity stops
+    public void cancel(){
+        if(!mScheduled) return;
+        mScheduled = false;
+        mTicker.cancel();
+    }
+
+    //put the changed values on the views
+    private void doFrame(){
+        mScheduled = false;
+        mFrames++;
+
+        if(mAccelX != mShownAccelX || mAccelY != mShownAccelY || mAccelZ != mShownAccelZ){
+            mAccelText.clear().append("Accelerometer[x, y, z]: ")
+                      .append(mAccelX, 4).append(", ").append(mAccelY, 4).append(", ")
+                      .append(mAccelZ, 4).append('\n');
+            setText(mAccelView, mAccelText);
+            mShownAccelX = mAccelX;
+            mShownAccelY = mAccelY;
+            mShownAccelZ = mAccelZ;
+            mViewsSet++;
+        }
+        if(mGyroX != mShownGyroX || mGyroY != mShownGyroY || mGyroZ != mShownGyroZ){
+            mGyroText.clear().append(mGyroX, 6).append(", ").append(mGyroY, 6)
+                     .append(", ").append(mGyroZ, 6);
+            setText(mGyroView, mGyroText);
+            mShownGyroX = mGyroX;
+            mShownGyroY = mGyroY;
+            mShownGyroZ = mGyroZ;
+            mViewsSet++;
+        }
+        int changed = mDirections ^ mShownDirections;
+        for(int i = 0; i < mDirectionViews.length; i++){
+            if((changed & mDirectionBits[i]) == 0) continue;
+            mDirectionViews[i].setPressed((mDirections & mDirectionBits[i]) != 0);
+            mViewsSet++;
+        }
+        mShownDirections = mDirections;
+        if(mTelemetrySet && (mSonar != mShownSonar || mClosest != mShownClosest
+                             || mIr != mShownIr || mTimeouts != mShownTimeouts)){
+            mTelemetryText.clear().append("Sonar: ").append(mSonar).append(" cm (closest ")
+                          .append(mClosest).append("), IR: ").append(mIr)
+                          .append(", timeouts: ").append(mTimeouts);
+            setText(mTelemetryView, mTelemetryText);
+            mShownSonar = mSonar;
+            mShownClosest = mClosest;
+            mShownIr = mIr;
+            mShownTimeouts = mTimeouts;
+            mViewsSet++;
+        }
+    }
+
+    //no String in between, the view wraps the formatter's array
+    private static void setText(TextView view, FloatFormatter text){
+        view.setText(text.buffer(), 0, text.length());
+    }
+
+    public long getUpdateCount(){return mUpdates;}
+    public long getFrameCount(){return mFrames;}
+    public long getViewsSetCount(){return mViewsSet;}
+
+    //source of frame callbacks
+    private interface Ticker {
+        void request();
+        void cancel();
+    }
+
+    //API 16 and up, in its own class so older versions never load Choreographer
+    private class ChoreographerTicker implements Ticker, Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void request(){mChoreographer.postFrameCallback(this);}
+        @Override
+        public void cancel(){mChoreographer.removeFrameCallback(this);}
+        @Override
+        public void doFrame(long frameTimeNanos){UiUpdateStage.this.doFrame();}
+    }
+
+    private class HandlerTicker implements Ticker, Runnable {
+        private final Handler mHandler;
+
+        HandlerTicker(Handler handler){
+            mHandler = handler;
+        }
+
+        @Override
+        public void request(){mHandler.postDelayed(this, FRAME_MILLIS);}
+        @Override
+        public void cancel(){mHandler.removeCallbacks(this);}
+        @Override
+        public void run(){doFrame();}
+    }
+}